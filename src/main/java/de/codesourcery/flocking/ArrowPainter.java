@@ -0,0 +1,150 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.awt.Graphics2D;
+
+import de.codesourcery.flocking.World.IBoidStateVisitor;
+
+/**
+ * Draws boids as arrows using Java2D.
+ *
+ * <p>Maps model coordinates to screen coordinates for a given {@link Viewport} and screen size , 
+ * see {@link #setViewport(Viewport, double, int, int)}. Each boid is drawn as a triangle pointing into its direction 
+ * of travel , {@link IRenderer#ARROW_LENGTH} long and 2*{@link IRenderer#ARROW_WIDTH} wide:</p>
+ * <pre>
+ *      heading
+ *        /\
+ *       /  \
+ *      /    \
+ *     /      \
+ * p1 +---+----+ p2
+ *      center
+ * </pre>
+ * <p>Used by {@link SoftwareRenderer} and {@link OffscreenRenderer} so both draw 
+ * (and {@link RenderBenchmark} measures) exactly the same thing.</p>
+ * 
+ * <p>This class is <b>not</b> thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ArrowPainter
+{
+    private double xScale = 1.0;
+    private double yScale = 1.0;
+
+    // model coordinates displayed at the top-left corner
+    private double originX;
+    private double originY;
+
+    // size of the visible part of the model
+    private double viewSize;
+    private boolean fullView = true;
+
+    private final int[] polygonX = new int[3];
+    private final int[] polygonY = new int[3];
+
+    /**
+     * Sets the part of the model to draw.
+     * 
+     * @param viewport
+     * @param modelMax model size
+     * @param width screen width in pixels
+     * @param height screen height in pixels
+     */
+    public void setViewport(Viewport viewport,double modelMax,int width,int height) 
+    {
+        viewSize = viewport.getSize( modelMax );
+        xScale = width / viewSize;
+        yScale = height / viewSize;
+        originX = viewport.getMinX( modelMax );
+        originY = viewport.getMinY( modelMax );
+        fullView = viewport.isFullView();
+    }
+
+    public int toScreenX(double modelX) 
+    {
+        return (int) Math.round( ( modelX - originX ) * xScale );
+    }
+
+    public int toScreenY(double modelY) 
+    {
+        return (int) Math.round( ( modelY - originY ) * yScale );
+    }
+
+    /**
+     * Draws one arrow (using the graphics' current colour).
+     * 
+     * @param graphics
+     * @param centerX
+     * @param centerY
+     * @param velocityX
+     * @param velocityY
+     * @param fill whether to fill the arrow or just draw its outline
+     */
+    public void drawArrow(Graphics2D graphics,double centerX,double centerY,double velocityX,double velocityY,boolean fill) 
+    {
+        double headingX = velocityX;
+        double headingY = velocityY;
+        double d = headingX*headingX + headingY*headingY;
+        if ( d > 0.00001 ) {
+            d = Math.sqrt( d );
+            headingX = headingX / d;
+            headingY = headingY / d;
+        }
+
+        // p1 and p2 lie on the heading rotated 90 degrees clockwise
+        polygonX[0] = toScreenX( centerX + headingY * IRenderer.ARROW_WIDTH );
+        polygonY[0] = toScreenY( centerY - headingX * IRenderer.ARROW_WIDTH );
+        polygonX[1] = toScreenX( centerX + headingX * IRenderer.ARROW_LENGTH );
+        polygonY[1] = toScreenY( centerY + headingY * IRenderer.ARROW_LENGTH );
+        polygonX[2] = toScreenX( centerX - headingY * IRenderer.ARROW_WIDTH );
+        polygonY[2] = toScreenY( centerY + headingX * IRenderer.ARROW_WIDTH );
+
+        if ( fill ) {
+            graphics.fillPolygon( polygonX , polygonY , 3 );
+        } else {
+            graphics.drawPolygon( polygonX , polygonY , 3 );
+        }
+    }
+
+    /**
+     * Draws all boids that are (at least partially) visible as filled arrows (using the graphics' current colour).
+     * 
+     * <p>When zoomed in , only visible boids are fetched from the world's spatial index.</p>
+     * 
+     * @param world
+     * @param graphics
+     */
+    public void drawArrows(World world,final Graphics2D graphics) 
+    {
+        final IBoidStateVisitor visitor = new IBoidStateVisitor() {
+
+            @Override
+            public void visit(double x,double y,double velocityX,double velocityY)
+            {
+                drawArrow( graphics , x , y , velocityX , velocityY , true );
+            }
+        };
+
+        if ( fullView ) {
+            world.visitAllBoids( visitor );
+        } else {
+            world.visitBoidsInRectangle( originX - IRenderer.ARROW_LENGTH , originY - IRenderer.ARROW_LENGTH , 
+                    originX + viewSize + IRenderer.ARROW_LENGTH , originY + viewSize + IRenderer.ARROW_LENGTH , visitor );
+        }
+    }
+}
@@ -28,22 +28,43 @@ public final class Boid
 {
 	// class NEEDS to be immutable, other code relies on that fact
 	
+    /**
+     * Neighbour count of boids whose acceleration has not been calculated yet.
+     */
+    public static final int UNKNOWN_NEIGHBOUR_COUNT = -1;
+    
     public final Vec2d acceleration;
     public final Vec2d location;
     public final Vec2d velocity;    
     
+    // number of neighbours that were found when the acceleration was last calculated
+    public final int neighbourCount;
+    
+    // number of subsequent simulation steps that may re-use this boid's
+    // acceleration instead of re-calculating it (see Simulation#setLevelOfDetail(int, int) )
+    public final int skipSteps;
+    
     public Boid(Vec2dMutable location, Vec2dMutable acceleration,Vec2dMutable velocity)
     {
     	this.acceleration = new Vec2d( acceleration );
     	this.location = new Vec2d( location );
     	this.velocity = new Vec2d( velocity );
+    	this.neighbourCount = UNKNOWN_NEIGHBOUR_COUNT;
+    	this.skipSteps = 0;
     }
     
     public Boid(Vec2d position, Vec2d acceleration,Vec2d velocity)
+    {
+        this( position , acceleration , velocity , UNKNOWN_NEIGHBOUR_COUNT , 0 );
+    }
+    
+    public Boid(Vec2d position, Vec2d acceleration,Vec2d velocity,int neighbourCount,int skipSteps)
     {
         this.location = position;
         this.acceleration = acceleration;
         this.velocity = velocity;
+        this.neighbourCount = neighbourCount;
+        this.skipSteps = skipSteps;
     }
     
     public Vec2d getVelocity()
@@ -66,6 +87,11 @@ public final class Boid
        return location;
     }
     
+    public int getNeighbourCount()
+    {
+        return neighbourCount;
+    }
+    
     public void visitNeighbors(World world , double neighborRadius,NeighborAggregator visitor) 
     {
         final Vec2d pos = getNeighbourCenter();
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Boid state store that keeps location , velocity and acceleration of each boid 
+ * outside of the Java heap.
+ *
+ * <p>Each boid occupies a fixed-size record of {@link #DOUBLES_PER_RECORD} doubles 
+ * (x , y , velocity x , velocity y , acceleration x , acceleration y) inside direct byte buffers. Records
+ * are grouped into chunks of {@link #CHUNK_SIZE} boids so that the store is not limited by the max. size of
+ * a single buffer and can grow without copying existing chunks.</p>
+ * <p>Compared to {@link Boid} instances (one object plus three {@link Vec2d}s per boid) this 
+ * saves the object headers and pointer indirection, heap usage no longer depends on the population size.</p>
+ * 
+ * <p>Stores may also be backed by a memory-mapped file (see {@link #map(FileChannel, int)}) , leaving it to the operating
+ * system's page cache to decide which parts are resident.</p>
+ * 
+ * <p>Reading and writing records is thread-safe as long as different threads write different
+ * records (and the caller establishes visibility between writers and readers). Methods that change the capacity are <b>not</b> thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class BoidStore implements IBoidStore
+{
+    public static final int DOUBLES_PER_RECORD = 6;
+
+    // record size in bytes
+    public static final int RECORD_SIZE = DOUBLES_PER_RECORD * 8;
+
+    private static final int CHUNK_BITS = 16;
+
+    // number of records per chunk
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private DoubleBuffer[] chunks = new DoubleBuffer[0];
+
+    // NULL unless this store is backed by a file
+    private final FileChannel channel;
+
+    /**
+     * Create instance.
+     * 
+     * @param capacity number of boids this store should be able to hold
+     */
+    public BoidStore(int capacity)
+    {
+        this.channel = null;
+        ensureCapacity( capacity );
+    }
+
+    private BoidStore(FileChannel channel) 
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a store backed by a memory-mapped file.
+     * 
+     * <p>The file grows as needed , existing records are retained. Mappings stay valid 
+     * until the store gets garbage-collected (even if the channel is closed).</p>
+     * 
+     * @param channel channel opened for reading and writing
+     * @param capacity
+     * @return
+     * @throws IOException
+     */
+    public static BoidStore map(FileChannel channel,int capacity) throws IOException 
+    {
+        final BoidStore result = new BoidStore( channel );
+        result.ensureCapacity( capacity );
+        return result;
+    }
+
+    /**
+     * Makes sure this store can hold at least the given number of boids.
+     * 
+     * <p>Existing records are retained.</p>
+     * 
+     * @param capacity
+     */
+    public void ensureCapacity(int capacity) 
+    {
+        final int chunkCount = ( capacity + CHUNK_SIZE - 1 ) >>> CHUNK_BITS;
+        if ( chunkCount > chunks.length ) 
+        {
+            final DoubleBuffer[] newChunks = Arrays.copyOf( chunks , chunkCount );
+            for ( int i = chunks.length ; i < chunkCount ; i++ ) {
+                newChunks[i] = createChunk( i ).order( ByteOrder.nativeOrder() ).asDoubleBuffer();
+            }
+            chunks = newChunks;
+        }
+    }
+
+    private ByteBuffer createChunk(int chunkNumber) 
+    {
+        if ( channel == null ) {
+            return ByteBuffer.allocateDirect( CHUNK_SIZE * RECORD_SIZE );
+        }
+        try {
+            return channel.map( MapMode.READ_WRITE , (long) chunkNumber * CHUNK_SIZE * RECORD_SIZE , CHUNK_SIZE * RECORD_SIZE );
+        } 
+        catch (IOException e) {
+            throw new RuntimeException("Failed to map chunk "+chunkNumber , e );
+        }
+    }
+
+    @Override
+    public void reset(SimulationParameters parameters,int capacity) 
+    {
+        ensureCapacity( capacity );
+    }
+
+    @Override
+    public int getCapacity() 
+    {
+        return chunks.length * CHUNK_SIZE;
+    }
+
+    @Override
+    public double getX(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD );
+    }
+
+    @Override
+    public double getY(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD + 1 );
+    }
+
+    @Override
+    public double getVelocityX(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD + 2 );
+    }
+
+    @Override
+    public double getVelocityY(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD + 3 );
+    }
+
+    @Override
+    public double getAccelerationX(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD + 4 );
+    }
+
+    @Override
+    public double getAccelerationY(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD + 5 );
+    }
+
+    @Override
+    public void set(int index,double x,double y,double velocityX,double velocityY,double accelerationX,double accelerationY) 
+    {
+        final DoubleBuffer chunk = chunks[ index >>> CHUNK_BITS ];
+        final int offset = ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD;
+        chunk.put( offset     , x );
+        chunk.put( offset + 1 , y );
+        chunk.put( offset + 2 , velocityX );
+        chunk.put( offset + 3 , velocityY );
+        chunk.put( offset + 4 , accelerationX );
+        chunk.put( offset + 5 , accelerationY );
+    }
+
+    /**
+     * Copies a record.
+     * 
+     * @param index record to copy
+     * @param target store to copy to
+     * @param targetIndex destination record
+     */
+    public void copy(int index,BoidStore target,int targetIndex) 
+    {
+        final DoubleBuffer chunk = chunks[ index >>> CHUNK_BITS ];
+        final int offset = ( index & CHUNK_MASK ) * DOUBLES_PER_RECORD;
+        target.set( targetIndex , chunk.get( offset ) , chunk.get( offset + 1 ) , chunk.get( offset + 2 ) , 
+                chunk.get( offset + 3 ) , chunk.get( offset + 4 ) , chunk.get( offset + 5 ) );
+    }
+
+    @Override
+    public void set(int index,Boid boid) 
+    {
+        set( index , boid.location.x , boid.location.y , boid.velocity.x , boid.velocity.y , boid.acceleration.x , boid.acceleration.y );
+    }
+
+    @Override
+    public Boid getBoid(int index) 
+    {
+        return new Boid( new Vec2d( getX( index ) , getY( index ) ) , 
+                new Vec2d( getAccelerationX( index ) , getAccelerationY( index ) ) , 
+                new Vec2d( getVelocityX( index ) , getVelocityY( index ) ) );
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets other programs drive a headless simulation through a line-based text protocol over TCP.
+ *
+ * <p>Each request is a single line , each response is a single line starting with <code>OK</code> or <code>ERROR</code>. 
+ * Clients may send any number of requests without waiting for responses (pipelining) , requests are executed in order and 
+ * responses are only flushed once all received requests have been executed. Requests from different 
+ * connections are executed one at a time.</p>
+ * 
+ * <p>Supported requests:</p>
+ * <ul>
+ *   <li><code>get</code> - returns the current simulation parameters as <code>name=value</code> pairs</li>
+ *   <li><code>set &lt;name&gt;=&lt;value&gt; ...</code> - changes one or more simulation parameters (see {@link SimulationParameters} 
+ *   for names) , changes take effect with the next step. Values must be finite , <code>modelMax</code> , <code>maxSpeed</code> and 
+ *   the radii must be positive and the population size must not exceed {@link #MAX_POPULATION_SIZE}. If any value gets rejected , 
+ *   the response is an <code>ERROR</code> line and none of the values are changed</li>
+ *   <li><code>advance [steps]</code> - advances the simulation by the given number of steps (default: 1) , returns the time it took</li>
+ *   <li><code>stats</code> - returns {@link WorldStatistics} of the current world</li>
+ *   <li><code>snapshot &lt;file&gt;</code> - saves the current world to a file on the server's file system using {@link WorldSnapshot}</li>
+ *   <li><code>quit</code> - closes the connection</li>
+ * </ul>
+ * <p>Example: <code>printf 'set cohesionWeight=0.5\nadvance 1000\nstats\n' | nc localhost 4712</code></p>
+ * 
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ControlServer
+{
+    public static final int DEFAULT_PORT = 4712;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // largest population a client may request , each boid costs a few hundred bytes of heap
+    public static final int MAX_POPULATION_SIZE = 10000000;
+
+    private final ISimulation simulation;
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService threadPool;
+
+    private final Object SIMULATION_LOCK = new Object();
+
+    // @GuardedBy( SIMULATION_LOCK )
+    private SimulationParameters parameters;
+
+    // most recent world returned by the simulation , @GuardedBy( SIMULATION_LOCK )
+    private World currentWorld;
+
+    // @GuardedBy( SIMULATION_LOCK )
+    private long stepCount;
+
+    private volatile boolean closed;
+
+    /**
+     * Create instance.
+     * 
+     * <p>The server only accepts connections from the local host.</p>
+     * 
+     * @param simulation simulation to control
+     * @param parameters simulation parameters currently used by the simulation
+     * @param port port to listen on , 0 picks a free port
+     * @throws IOException
+     */
+    public ControlServer(ISimulation simulation,SimulationParameters parameters,int port) throws IOException
+    {
+        this.simulation = simulation;
+        this.parameters = parameters;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind( new InetSocketAddress( InetAddress.getLoopbackAddress() , port ) );
+
+        final ThreadFactory threadFactory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread t = new Thread(r,"control-connection");
+                t.setDaemon( true );
+                return t;
+            }
+        };
+        this.threadPool = new ThreadPoolExecutor( 1 , Integer.MAX_VALUE , 1 , TimeUnit.MINUTES , new SynchronousQueue<Runnable>() , threadFactory );
+        this.threadPool.execute( new Runnable() {
+
+            @Override
+            public void run()
+            {
+                acceptLoop();
+            }
+        });
+    }
+
+    public int getPort() 
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() 
+    {
+        while ( ! closed ) 
+        {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } 
+            catch (IOException e) 
+            {
+                if ( ! closed ) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+
+            threadPool.execute( new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    try {
+                        handleConnection( socket );
+                    } 
+                    catch (SocketException e) {
+                        // client disconnected
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    finally 
+                    {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void handleConnection(Socket socket) throws IOException 
+    {
+        final BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream() , CHARSET ) );
+        final Writer out = new BufferedWriter( new OutputStreamWriter( socket.getOutputStream() , CHARSET ) );
+
+        String line;
+        while ( ! closed && ( line = in.readLine() ) != null ) 
+        {
+            line = line.trim();
+            if ( line.isEmpty() ) {
+                continue;
+            }
+            if ( line.equalsIgnoreCase( "quit" ) ) {
+                break;
+            }
+
+            String response;
+            try {
+                response = "OK "+execute( line );
+            } 
+            catch(IllegalArgumentException | IOException e) {
+                response = "ERROR "+e.getMessage();
+            }
+            out.write( response.trim() );
+            out.write( '\n' );
+
+            // only flush once all pipelined requests have been executed
+            if ( ! in.ready() ) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Executes a single request.
+     * 
+     * @param request
+     * @return response (without the leading <code>OK</code>)
+     * @throws IllegalArgumentException if the request is invalid
+     * @throws IOException
+     */
+    public String execute(String request) throws IllegalArgumentException, IOException 
+    {
+        final String[] parts = request.trim().split("\\s+");
+        final String command = parts[0].toLowerCase();
+
+        synchronized( SIMULATION_LOCK ) 
+        {
+            switch( command ) 
+            {
+                case "get":
+                    return toString( parameters );
+                case "set":
+                    if ( parts.length < 2 ) {
+                        throw new IllegalArgumentException("Usage: set <name>=<value> ...");
+                    }
+                    SimulationParameters newParameters = parameters;
+                    for ( int i = 1 ; i < parts.length ; i++ ) 
+                    {
+                        final int index = parts[i].indexOf( '=' );
+                        if ( index == -1 ) {
+                            throw new IllegalArgumentException("Expected <name>=<value> but got '"+parts[i]+"'");
+                        }
+                        newParameters = with( newParameters , parts[i].substring( 0 , index ) , parts[i].substring( index+1 ) );
+                    }
+                    parameters = newParameters;
+                    simulation.setSimulationParameters( newParameters );
+                    return toString( newParameters );
+                case "advance":
+                    final int steps = parts.length > 1 ? parseInt( parts[1] ) : 1;
+                    if ( steps < 1 ) {
+                        throw new IllegalArgumentException("Number of steps must be >= 1");
+                    }
+                    final long start = System.currentTimeMillis();
+                    for ( int i = 0 ; i < steps ; i++ ) 
+                    {
+                        final World world = simulation.advance();
+                        if ( currentWorld != null ) {
+                            currentWorld.release();
+                        }
+                        currentWorld = world;
+                    }
+                    stepCount += steps;
+                    return "step="+stepCount+" millis="+(System.currentTimeMillis() - start);
+                case "stats":
+                    if ( currentWorld == null ) {
+                        throw new IllegalArgumentException("Simulation has not been advanced yet");
+                    }
+                    return "step="+stepCount+" "+WorldStatistics.of( currentWorld );
+                case "snapshot":
+                    if ( parts.length < 2 ) {
+                        throw new IllegalArgumentException("Usage: snapshot <file>");
+                    }
+                    if ( currentWorld == null ) {
+                        throw new IllegalArgumentException("Simulation has not been advanced yet");
+                    }
+                    final File file = new File( request.trim().substring( parts[0].length() ).trim() );
+                    WorldSnapshot.save( currentWorld , file );
+                    return "step="+stepCount+" file="+file.getAbsolutePath();
+                default:
+                    throw new IllegalArgumentException("Unknown command '"+parts[0]+"'");
+            }
+        }
+    }
+
+    private static int parseInt(String value) 
+    {
+        try {
+            return Integer.parseInt( value );
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: '"+value+"'");
+        }
+    }
+
+    private static double parseDouble(String value) 
+    {
+        try {
+            return Double.parseDouble( value );
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: '"+value+"'");
+        }
+    }
+
+    private static double parseFinite(String name,String value) 
+    {
+        final double result = parseDouble( value );
+        if ( Double.isNaN( result ) || Double.isInfinite( result ) ) {
+            throw new IllegalArgumentException("Value of '"+name+"' must be finite but was "+value);
+        }
+        return result;
+    }
+
+    private static double parsePositive(String name,String value) 
+    {
+        final double result = parseFinite( name , value );
+        if ( result <= 0 ) {
+            throw new IllegalArgumentException("Value of '"+name+"' must be > 0 but was "+value);
+        }
+        return result;
+    }
+
+    private static String toString(SimulationParameters p) 
+    {
+        return "populationSize="+p.populationSize+" modelMax="+p.modelMax+" maxSteeringForce="+p.maxSteeringForce+" maxSpeed="+p.maxSpeed+
+                " cohesionWeight="+p.cohesionWeight+" separationWeight="+p.separationWeight+" alignmentWeight="+p.alignmentWeight+
+                " borderForceWeight="+p.borderForceWeight+" separationRadius="+p.separationRadius+" neighbourRadius="+p.neighbourRadius+
+                " borderRadius="+p.borderRadius;
+    }
+
+    // returns a copy of the parameters with a single value changed
+    private static SimulationParameters with(SimulationParameters p,String name,String value) 
+    {
+        int populationSize = p.populationSize;
+        double modelMax = p.modelMax;
+        double maxSteeringForce = p.maxSteeringForce;
+        double maxSpeed = p.maxSpeed;
+        double cohesionWeight = p.cohesionWeight;
+        double separationWeight = p.separationWeight;
+        double alignmentWeight = p.alignmentWeight;
+        double borderForceWeight = p.borderForceWeight;
+        double separationRadius = p.separationRadius;
+        double neighbourRadius = p.neighbourRadius;
+        double borderRadius = p.borderRadius;
+
+        switch( name ) 
+        {
+            case "populationSize":
+                populationSize = parseInt( value );
+                if ( populationSize < 1 || populationSize > MAX_POPULATION_SIZE ) {
+                    throw new IllegalArgumentException("Population size must be in range [1,"+MAX_POPULATION_SIZE+"]");
+                }
+                break;
+            case "modelMax":          modelMax = parsePositive( name , value ); break;
+            case "maxSteeringForce":  maxSteeringForce = parseFinite( name , value ); break;
+            case "maxSpeed":          maxSpeed = parsePositive( name , value ); break;
+            case "cohesionWeight":    cohesionWeight = parseFinite( name , value ); break;
+            case "separationWeight":  separationWeight = parseFinite( name , value ); break;
+            case "alignmentWeight":   alignmentWeight = parseFinite( name , value ); break;
+            case "borderForceWeight": borderForceWeight = parseFinite( name , value ); break;
+            case "separationRadius":  separationRadius = parsePositive( name , value ); break;
+            case "neighbourRadius":   neighbourRadius = parsePositive( name , value ); break;
+            case "borderRadius":      borderRadius = parsePositive( name , value ); break;
+            default:
+                throw new IllegalArgumentException("Unknown parameter '"+name+"'");
+        }
+        return new SimulationParameters( populationSize , modelMax , maxSteeringForce , maxSpeed , cohesionWeight , separationWeight , 
+                alignmentWeight , borderForceWeight , separationRadius , neighbourRadius , borderRadius );
+    }
+
+    /**
+     * Stops accepting connections.
+     * 
+     * <p>Connections that are currently executing a request get closed once it has been executed.</p>
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException 
+    {
+        closed = true;
+        serverSocket.close();
+        threadPool.shutdown();
+        synchronized( SIMULATION_LOCK ) 
+        {
+            if ( currentWorld != null ) {
+                currentWorld.release();
+                currentWorld = null;
+            }
+        }
+    }
+
+    /**
+     * Runs a headless simulation that is controlled through this server.
+     * 
+     * <p>Usage: <code>ControlServer [port]</code></p>
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        final int port = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_PORT;
+        final SimulationParameters parameters = SimulationParameters.getDefaultParameters();
+
+        final Simulation simulation = new Simulation( Simulation.createRandomWorld( parameters , new Random( System.currentTimeMillis() ) ) );
+        simulation.setFrameArena( new FrameArena( 2 ) );
+
+        final ControlServer server = new ControlServer( simulation , parameters , port );
+        System.out.println("Listening for control connections on port "+server.getPort());
+        Thread.sleep( Long.MAX_VALUE );
+    }
+}
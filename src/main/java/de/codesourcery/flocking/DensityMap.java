@@ -0,0 +1,476 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.awt.Color;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders boids as a density map , for populations so large that individual arrows can no longer be told apart.
+ *
+ * <p>Each boid is splatted into the pixel it is located in , accumulating the number of boids and the sum of their 
+ * velocities per pixel. Boids are first sorted (counting sort , in parallel) by horizontal screen band of {@link #ROWS_PER_BAND} rows. 
+ * Each band is then splatted into a single shared buffer and mapped to colours by one thread , so no synchronization 
+ * is needed and memory use does not grow with the number of threads:</p>
+ * <ul>
+ *   <li>brightness grows with the logarithm of the boid count , reaching its maximum at {@link #SATURATION_DENSITY} 
+ *   times the average number of boids per pixel (so it does not flicker when the max. count changes between frames)</li>
+ *   <li>hue encodes the average heading</li>
+ *   <li>saturation is the length of the average velocity relative to the max. speed , so pixels with boids 
+ *   moving in the same direction are coloured while pixels with boids heading in all directions are grey</li>
+ * </ul>
+ * <p>Apart from sorting and splatting (which are cheap) the rendering cost depends on the screen size only.</p>
+ * <p>When zoomed in , only boids fetched by {@link Viewport#collectVisibleBoids(World, BoidStore)} are splatted.</p>
+ * 
+ * <p>Internal buffers are re-used across invocations.</p>
+ * <p>This class is <b>not</b> thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class DensityMap
+{
+    /**
+     * Number of boids per pixel above which renderers should switch to drawing a density map.
+     * 
+     * @see #isDense(World, Viewport, int, int)
+     */
+    public static final double DENSITY_THRESHOLD = 1.0;
+
+    /**
+     * Boid count (relative to the average number of boids per pixel) at which pixels reach full brightness.
+     */
+    public static final double SATURATION_DENSITY = 4.0;
+
+    // number of boids a thread claims at once while sorting
+    private static final int SORT_CHUNK_SIZE = 16384;
+
+    // number of pixel rows per screen band
+    private static final int ROWS_PER_BAND = 8;
+
+    private static final int HUE_STEPS = 256;
+
+    // brightness of pixels whose boids head into all directions
+    private static final float GREY = 200;
+
+    // fully saturated colours by heading (as encoded by World#encodeHeading())
+    private static final int[] HUES = new int[ HUE_STEPS ];
+
+    static 
+    {
+        for ( int i = 0 ; i < HUE_STEPS ; i++ ) {
+            HUES[i] = Color.HSBtoRGB( i / (float) HUE_STEPS , 1 , 1 );
+        }
+    }
+
+    private final WorkerPool workers;
+
+    // accumulation buffers , cleared while mapping pixels to colours
+    private int[] counts = new int[0];
+    private float[] velocityX = new float[0];
+    private float[] velocityY = new float[0];
+
+    private int width;
+    private int height;
+    private int bandCount;
+    private int pixelsPerBand;
+
+    // pixel index of each boid , -1 for boids that are not drawn
+    private int[] pixelOfBoid = new int[0];
+
+    // boids sorted by band , band b covers [ bandStart[b] , bandStart[b+1] )
+    private int[] sortedPixel = new int[0];
+    private float[] sortedVelocityX = new float[0];
+    private float[] sortedVelocityY = new float[0];
+    private int[] bandStart = new int[0];
+
+    // number of boids per sort chunk and band (chunk-major) , turned into write positions before scattering
+    private int[] chunkBandOffsets = new int[0];
+    private int chunkCount;
+
+    // visible boids when zoomed in , created on demand
+    private BoidStore visibleBoids;
+
+    // per-frame state read by worker threads
+    private World world;
+    private IBoidStore store; // store to read boids from , null to read them from the world
+    private boolean skipOutside; // whether to skip boids outside the viewport instead of clamping them to the border
+    private int boidCount;
+    private double originX;
+    private double originY;
+    private double xScale;
+    private double yScale;
+    private float invMaxSpeed;
+    private float invLogSaturationCount;
+    private int backgroundColor;
+    private int[] pixels;
+
+    private final AtomicInteger nextChunk = new AtomicInteger();
+
+    private final Runnable locateTask = new Runnable() {
+
+        @Override
+        public void run()
+        {
+            for ( int chunk = nextChunk.getAndIncrement() ; chunk < chunkCount ; chunk = nextChunk.getAndIncrement() ) 
+            {
+                final int first = chunk * SORT_CHUNK_SIZE;
+                locate( chunk , first , Math.min( boidCount , first + SORT_CHUNK_SIZE ) );
+            }
+        }
+    };
+
+    private final Runnable scatterTask = new Runnable() {
+
+        @Override
+        public void run()
+        {
+            for ( int chunk = nextChunk.getAndIncrement() ; chunk < chunkCount ; chunk = nextChunk.getAndIncrement() ) 
+            {
+                final int first = chunk * SORT_CHUNK_SIZE;
+                scatter( chunk , first , Math.min( boidCount , first + SORT_CHUNK_SIZE ) );
+            }
+        }
+    };
+
+    private final Runnable colourTask = new Runnable() {
+
+        @Override
+        public void run()
+        {
+            for ( int band = nextChunk.getAndIncrement() ; band < bandCount ; band = nextChunk.getAndIncrement() ) 
+            {
+                splat( bandStart[band] , bandStart[band+1] );
+                final int first = band * pixelsPerBand;
+                colour( first , Math.min( width * height , first + pixelsPerBand ) );
+            }
+        }
+    };
+
+    /**
+     * Create instance.
+     * 
+     * @param threadCount number of threads to use (including the thread calling {@link #render(World, Viewport, int, int, int[], int)}), 
+     * a value of 1 does all work on the calling thread without setting up a thread pool
+     */
+    public DensityMap(int threadCount)
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        this.workers = new WorkerPool( "density-map-worker" , threadCount );
+    }
+
+    /**
+     * Check whether a world has so many boids that it should be rendered as a density map.
+     * 
+     * <p>When zoomed in , boids are assumed to be evenly distributed (so renderers can decide without 
+     * querying the visible boids first).</p>
+     * 
+     * @param world
+     * @param viewport part of the world to render
+     * @param width screen width in pixels
+     * @param height screen height in pixels
+     * @return
+     * @see #DENSITY_THRESHOLD
+     */
+    public static boolean isDense(World world,Viewport viewport,int width,int height) 
+    {
+        return world.getPopulationCount() / ( viewport.zoom * viewport.zoom ) > DENSITY_THRESHOLD * width * height;
+    }
+
+    /**
+     * Renders a world.
+     * 
+     * @param world
+     * @param viewport part of the world to render
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param pixels array to store RGB pixel values in , row by row starting at model coordinates (0,0) , needs to hold at least <code>width*height</code> elements
+     * @param backgroundColor colour (RGB) of pixels without boids
+     */
+    public void render(World world,Viewport viewport,int width,int height,int[] pixels,int backgroundColor) 
+    {
+        if ( pixels.length < width * height ) {
+            throw new IllegalArgumentException("Pixel array too small");
+        }
+        setSize( width , height );
+
+        final SimulationParameters params = world.getSimulationParameters();
+        this.world = world;
+        if ( viewport.isFullView() ) 
+        {
+            this.store = world.getBoidStore();
+            this.boidCount = world.getPopulationCount();
+            this.skipOutside = false;
+        } 
+        else 
+        {
+            if ( visibleBoids == null ) {
+                visibleBoids = new BoidStore( 0 );
+            }
+            this.store = visibleBoids;
+            this.boidCount = viewport.collectVisibleBoids( world , visibleBoids );
+            this.skipOutside = true;
+        }
+        this.originX = viewport.getMinX( params.modelMax );
+        this.originY = viewport.getMinY( params.modelMax );
+        this.xScale = width / viewport.getSize( params.modelMax );
+        this.yScale = height / viewport.getSize( params.modelMax );
+        this.invMaxSpeed = (float) ( 1 / params.maxSpeed );
+        final double saturationCount = Math.max( 1 , SATURATION_DENSITY * boidCount / ( width * (double) height ) );
+        this.invLogSaturationCount = (float) ( 1 / Math.log( 1 + saturationCount ) );
+        this.backgroundColor = backgroundColor;
+        this.pixels = pixels;
+
+        this.chunkCount = ( boidCount + SORT_CHUNK_SIZE - 1 ) / SORT_CHUNK_SIZE;
+        ensureCapacity( boidCount , chunkCount );
+
+        try {
+            nextChunk.set( 0 );
+            workers.execute( locateTask );
+
+            if ( workers.getThreadCount() == 1 ) 
+            {
+                // no need to sort when there's just one thread
+                splatUnsorted();
+                colour( 0 , width * height );
+                return;
+            }
+
+            computeOffsets();
+
+            nextChunk.set( 0 );
+            workers.execute( scatterTask );
+
+            nextChunk.set( 0 );
+            workers.execute( colourTask );
+        } finally {
+            this.world = null;
+            this.store = null;
+            this.pixels = null;
+        }
+    }
+
+    private void setSize(int width,int height) 
+    {
+        this.width = width;
+        this.height = height;
+        this.bandCount = ( height + ROWS_PER_BAND - 1 ) / ROWS_PER_BAND;
+        this.pixelsPerBand = width * ROWS_PER_BAND;
+        if ( counts.length != width * height ) 
+        {
+            counts = new int[ width * height ];
+            velocityX = new float[ width * height ];
+            velocityY = new float[ width * height ];
+        }
+        if ( bandStart.length < bandCount + 1 ) {
+            bandStart = new int[ bandCount + 1 ];
+        }
+    }
+
+    private void ensureCapacity(int boidCount,int chunkCount) 
+    {
+        if ( pixelOfBoid.length < boidCount ) 
+        {
+            pixelOfBoid = new int[ boidCount ];
+            sortedPixel = new int[ boidCount ];
+            sortedVelocityX = new float[ boidCount ];
+            sortedVelocityY = new float[ boidCount ];
+        }
+        if ( chunkBandOffsets.length < chunkCount * bandCount ) {
+            chunkBandOffsets = new int[ chunkCount * bandCount ];
+        }
+    }
+
+    // computes the pixel of each boid and counts boids per band
+    private void locate(int chunk,int first,int last) 
+    {
+        final IBoidStore store = this.store;
+        final int[] pixelOf = pixelOfBoid;
+        final int[] bandCounts = chunkBandOffsets;
+        final int countOffset = chunk * bandCount;
+        final int maxX = width - 1;
+        final int maxY = height - 1;
+        final int w = width;
+
+        for ( int band = 0 ; band < bandCount ; band++ ) {
+            bandCounts[ countOffset + band ] = 0;
+        }
+
+        for ( int i = first ; i < last ; i++ ) 
+        {
+            final double x;
+            final double y;
+            if ( store != null ) 
+            {
+                x = store.getX( i );
+                y = store.getY( i );
+            } 
+            else 
+            {
+                final Boid boid = world.getBoid( i );
+                x = boid.location.x;
+                y = boid.location.y;
+            }
+
+            final double screenX = ( x - originX ) * xScale;
+            final double screenY = ( y - originY ) * yScale;
+            if ( skipOutside && ( screenX < 0 || screenX >= width || screenY < 0 || screenY >= height ) ) {
+                pixelOf[i] = -1;
+                continue;
+            }
+            final int px = Math.max( 0 , Math.min( maxX , (int) screenX ) );
+            final int py = Math.max( 0 , Math.min( maxY , (int) screenY ) );
+            pixelOf[i] = py * w + px;
+            bandCounts[ countOffset + py / ROWS_PER_BAND ]++;
+        }
+    }
+
+    // turns per-chunk band counts into write positions so that each band holds the boids of chunk 0 , chunk 1 , ...
+    private void computeOffsets() 
+    {
+        final int[] offsets = chunkBandOffsets;
+        int position = 0;
+        for ( int band = 0 ; band < bandCount ; band++ ) 
+        {
+            bandStart[band] = position;
+            for ( int chunk = 0 ; chunk < chunkCount ; chunk++ ) 
+            {
+                final int index = chunk * bandCount + band;
+                final int count = offsets[ index ];
+                offsets[ index ] = position;
+                position += count;
+            }
+        }
+        bandStart[ bandCount ] = position;
+    }
+
+    private void scatter(int chunk,int first,int last) 
+    {
+        final IBoidStore store = this.store;
+        final int[] pixelOf = pixelOfBoid;
+        final int[] offsets = chunkBandOffsets;
+        final int offsetIndex = chunk * bandCount;
+        final int bandPixels = pixelsPerBand;
+
+        for ( int i = first ; i < last ; i++ ) 
+        {
+            final int pixel = pixelOf[i];
+            if ( pixel == -1 ) {
+                continue;
+            }
+
+            final int position = offsets[ offsetIndex + pixel / bandPixels ]++;
+            sortedPixel[ position ] = pixel;
+            if ( store != null ) 
+            {
+                sortedVelocityX[ position ] = (float) store.getVelocityX( i );
+                sortedVelocityY[ position ] = (float) store.getVelocityY( i );
+            } 
+            else 
+            {
+                final Boid boid = world.getBoid( i );
+                sortedVelocityX[ position ] = (float) boid.velocity.x;
+                sortedVelocityY[ position ] = (float) boid.velocity.y;
+            }
+        }
+    }
+
+    private void splatUnsorted() 
+    {
+        final IBoidStore store = this.store;
+        final int[] pixelOf = pixelOfBoid;
+        final int[] count = counts;
+        final float[] vx = velocityX;
+        final float[] vy = velocityY;
+        for ( int i = 0 ; i < boidCount ; i++ ) 
+        {
+            final int pixel = pixelOf[i];
+            if ( pixel == -1 ) {
+                continue;
+            }
+            count[ pixel ]++;
+            if ( store != null ) 
+            {
+                vx[ pixel ] += (float) store.getVelocityX( i );
+                vy[ pixel ] += (float) store.getVelocityY( i );
+            } 
+            else 
+            {
+                final Boid boid = world.getBoid( i );
+                vx[ pixel ] += (float) boid.velocity.x;
+                vy[ pixel ] += (float) boid.velocity.y;
+            }
+        }
+    }
+
+    private void splat(int first,int last) 
+    {
+        final int[] count = counts;
+        final float[] vx = velocityX;
+        final float[] vy = velocityY;
+        for ( int i = first ; i < last ; i++ ) 
+        {
+            final int pixel = sortedPixel[i];
+            count[ pixel ]++;
+            vx[ pixel ] += sortedVelocityX[i];
+            vy[ pixel ] += sortedVelocityY[i];
+        }
+    }
+
+    private void colour(int first,int last) 
+    {
+        final int[] result = pixels;
+        final int[] counts = this.counts;
+
+        for ( int i = first ; i < last ; i++ ) 
+        {
+            final int count = counts[i];
+            if ( count == 0 ) {
+                result[i] = backgroundColor;
+                continue;
+            }
+            final float sumX = velocityX[i];
+            final float sumY = velocityY[i];
+            counts[i] = 0;
+            velocityX[i] = 0;
+            velocityY[i] = 0;
+
+            final float brightness = Math.min( 1 , (float) Math.log( 1 + count ) * invLogSaturationCount );
+
+            final float avgX = sumX / count;
+            final float avgY = sumY / count;
+            final float saturation = Math.min( 1 , (float) Math.sqrt( avgX*avgX + avgY*avgY ) * invMaxSpeed );
+
+            final int hue = HUES[ (int) ( World.encodeHeading( avgX , avgY ) * ( HUE_STEPS / 4 ) ) & ( HUE_STEPS-1 ) ];
+            final float grey = GREY * ( 1 - saturation );
+            final int r = (int) ( ( grey + ( ( hue >> 16 ) & 0xff ) * saturation ) * brightness );
+            final int g = (int) ( ( grey + ( ( hue >>  8 ) & 0xff ) * saturation ) * brightness );
+            final int b = (int) ( ( grey + (   hue         & 0xff ) * saturation ) * brightness );
+            result[i] = 0xff000000 | r << 16 | g << 8 | b;
+        }
+    }
+
+    /**
+     * Shuts down the thread pool used by this instance.
+     * 
+     * <p>Rendering still works afterwards but all work will be done by the calling thread.</p>
+     */
+    public void dispose() 
+    {
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many independent simulations (for example parameter sweeps) in parallel.
+ *
+ * <p>Instead of having each simulation set up its own thread pool sized to all CPUs,
+ * this class schedules <b>whole</b> simulations as tasks on a shared thread pool so that each
+ * CPU advances exactly one single-threaded simulation at a time.</p>
+ * <p>Each pool thread keeps its {@link Simulation} instance (and the buffers it holds)
+ * and re-uses it for the next run.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class Ensemble
+{
+    private final ExecutorService threadPool;
+
+    private final long seed;
+
+    // simulations are re-used across runs executed by the same pool thread
+    private final ThreadLocal<Simulation> simulations = new ThreadLocal<>();
+
+    /**
+     * Invoked whenever a simulation run has finished.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public interface IResultListener
+    {
+        public void runFinished(Result result);
+    }
+
+    /**
+     * Summary of a single simulation run.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Result
+    {
+        // index of the run's parameters in the list passed to Ensemble#run()
+        public final int runIndex;
+        public final SimulationParameters parameters;
+        public final int steps;
+        public final long elapsedMillis;
+        // metrics of the final world state
+        public final WorldStatistics statistics;
+
+        public Result(int runIndex, SimulationParameters parameters, int steps, long elapsedMillis, WorldStatistics statistics)
+        {
+            this.runIndex = runIndex;
+            this.parameters = parameters;
+            this.steps = steps;
+            this.elapsedMillis = elapsedMillis;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "run #"+runIndex+" ("+steps+" steps, "+elapsedMillis+" ms): "+statistics;
+        }
+    }
+
+    public Ensemble(long seed)
+    {
+        this( Runtime.getRuntime().availableProcessors() , seed );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param threadCount max. number of simulations to run in parallel
+     * @param seed random seed used to create the initial world of each run, runs
+     * with the same population size and model size will start from identical states
+     */
+    public Ensemble(int threadCount,long seed)
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+
+        this.seed = seed;
+
+        final ThreadFactory threadFactory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread t= new Thread(r,"ensemble-worker");
+                t.setDaemon( true );
+                return t;
+            }
+        };
+        this.threadPool = new ThreadPoolExecutor( threadCount , threadCount , 1 , TimeUnit.MINUTES , new LinkedBlockingQueue<Runnable>() , threadFactory );
+    }
+
+    /**
+     * Runs one simulation per parameter set.
+     *
+     * <p>This method blocks until all runs have finished. The listener gets invoked (on the thread calling this
+     * method) as soon as each individual run finishes.</p>
+     *
+     * @param parameters
+     * @param stepsPerRun number of simulation steps to perform per run
+     * @param listener listener to notify about finished runs, may be <code>null</code>
+     * @return results in order of completion
+     * @throws InterruptedException
+     */
+    public List<Result> run(List<SimulationParameters> parameters,final int stepsPerRun,IResultListener listener) throws InterruptedException
+    {
+        final CompletionService<Result> completionService = new ExecutorCompletionService<>( threadPool );
+
+        for ( int i = 0 ; i < parameters.size() ; i++ )
+        {
+            final int runIndex = i;
+            final SimulationParameters params = parameters.get(i);
+            completionService.submit( new Callable<Result>() {
+
+                @Override
+                public Result call() throws Exception
+                {
+                    return runSimulation( runIndex , params , stepsPerRun );
+                }
+            });
+        }
+
+        final List<Result> results = new ArrayList<>( parameters.size() );
+        for ( int i = 0 ; i < parameters.size() ; i++ )
+        {
+            final Result result;
+            try {
+                result = completionService.take().get();
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException("Simulation run failed", e.getCause() );
+            }
+            results.add( result );
+            if ( listener != null ) {
+                listener.runFinished( result );
+            }
+        }
+        return results;
+    }
+
+    private Result runSimulation(int runIndex,SimulationParameters parameters,int steps)
+    {
+        final long start = System.currentTimeMillis();
+
+        final World initialWorld = Simulation.createRandomWorld( parameters , new Random( seed ) );
+
+        Simulation simulation = simulations.get();
+        if ( simulation == null ) {
+            simulation = new Simulation( initialWorld , 1 );
+            simulation.setFrameArena( new FrameArena( 2 ) );
+            simulations.set( simulation );
+        } else {
+            simulation.reset( initialWorld );
+        }
+
+        World world = initialWorld;
+        for ( int i = 0 ; i < steps ; i++ ) 
+        {
+            final World next = simulation.advance();
+            world.release();
+            world = next;
+        }
+        try {
+            return new Result( runIndex , parameters , steps , System.currentTimeMillis() - start , WorldStatistics.of( world ) );
+        } finally {
+            world.release();
+        }
+    }
+
+    /**
+     * Shuts down the thread pool used by this ensemble.
+     *
+     * <p>After this method has been called the ensemble is no longer in a usable state.</p>
+     */
+    public void dispose() {
+        threadPool.shutdownNow();
+    }
+
+    // sweep cohesion weight x separation weight
+    public static void main(String[] args) throws InterruptedException
+    {
+        final SimulationParameters defaults = SimulationParameters.getDefaultParameters();
+
+        // note that a separation weight of zero makes boids collapse onto (almost) the
+        // same location , degenerating the kd-tree
+        final List<SimulationParameters> sweep = new ArrayList<>();
+        for ( double cohesion = 0 ; cohesion <= 1.0 ; cohesion += 0.25 )
+        {
+            for ( double separation = 0.25 ; separation <= 1.0 ; separation += 0.25 )
+            {
+                sweep.add( new SimulationParameters( 1000 , defaults.modelMax , defaults.maxSteeringForce , defaults.maxSpeed ,
+                        cohesion , separation , defaults.alignmentWeight , defaults.borderForceWeight ,
+                        defaults.separationRadius , defaults.neighbourRadius , defaults.borderRadius ) );
+            }
+        }
+
+        final Ensemble ensemble = new Ensemble( System.currentTimeMillis() );
+        final long start = System.currentTimeMillis();
+        ensemble.run( sweep , 500 , new IResultListener() {
+
+            @Override
+            public void runFinished(Result result)
+            {
+                System.out.println("cohesion="+result.parameters.cohesionWeight+", separation="+result.parameters.separationWeight+" => "+result);
+            }
+        });
+        System.out.println("Finished "+sweep.size()+" runs in "+(System.currentTimeMillis()-start)+" ms");
+        ensemble.dispose();
+    }
+}
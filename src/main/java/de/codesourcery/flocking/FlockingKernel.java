@@ -0,0 +1,274 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+/**
+ * Flocking rules operating on primitive boid state.
+ *
+ * <p>Calculates exactly what {@link Simulation#flock(Boid, SimulationParameters)} does but reads boids
+ * from an {@link IBoidStore} and finds neighbours using a {@link SpatialGrid}, without creating any objects.
+ * Like the kd-tree query used by {@link World#visitBoids(double, double, double, World.IBoidVisitor)} , only 
+ * the {@link #MAX_NEIGHBOURS} boids closest to a boid (including the boid itself) are considered.</p>
+ * 
+ * <p>Instances hold scratch buffers and are <b>not</b> thread-safe , use one instance per thread.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class FlockingKernel
+{
+    public static final int MAX_NEIGHBOURS = 10;
+
+    // closest boids found so far , sorted ascending by distance
+    private final int[] nearest = new int[ MAX_NEIGHBOURS ];
+    private final double[] nearestDistanceSquared = new double[ MAX_NEIGHBOURS ];
+    private int nearestCount;
+
+    /**
+     * Advances a single boid by one simulation step.
+     * 
+     * @param input current state
+     * @param grid spatial index of the current state , built with a cell size of at least the neighbour radius
+     * @param index boid to advance
+     * @param output store to write the boid's new state to (at the same index)
+     * @param parameters
+     */
+    public void advance(IBoidStore input,SpatialGrid grid,int index,IBoidStore output,SimulationParameters parameters) 
+    {
+        final double x = input.getX( index );
+        final double y = input.getY( index );
+        final double vx = input.getVelocityX( index );
+        final double vy = input.getVelocityY( index );
+
+        findNearest( input , grid , x , y , parameters.neighbourRadius );
+
+        // aggregate neighbours , see Simulation.NeighborAggregator
+        double locationSumX = 0;
+        double locationSumY = 0;
+        double velocitySumX = 0;
+        double velocitySumY = 0;
+        double separationSumX = 0;
+        double separationSumY = 0;
+        int neighbourCount = 0;
+        int separationNeighbourCount = 0;
+
+        for ( int i = 0 ; i < nearestCount ; i++ ) 
+        {
+            final int other = nearest[i];
+            if ( other == index ) {
+                continue;
+            }
+            final double otherX = input.getX( other );
+            final double otherY = input.getY( other );
+
+            neighbourCount++;
+            locationSumX += otherX;
+            locationSumY += otherY;
+            velocitySumX += input.getVelocityX( other );
+            velocitySumY += input.getVelocityY( other );
+
+            final double distance = Math.sqrt( nearestDistanceSquared[i] );
+            if ( distance > 0 && distance < parameters.separationRadius ) 
+            {
+                double tmpX = x - otherX;
+                double tmpY = y - otherY;
+                double len = tmpX*tmpX+tmpY*tmpY;
+                if ( len > 0.00001 ) {
+                    len = Math.sqrt( len );
+                    tmpX /= len;
+                    tmpY /= len;
+                }
+                separationSumX += tmpX;
+                separationSumY += tmpY;
+                separationNeighbourCount++;
+            }
+        }
+
+        // cohesion (steer towards average location)
+        final double avgX = neighbourCount == 0 ? 0 : locationSumX / neighbourCount;
+        final double avgY = neighbourCount == 0 ? 0 : locationSumY / neighbourCount;
+        double cohesionX = 0;
+        double cohesionY = 0;
+        double dx = avgX - x;
+        double dy = avgY - y;
+        final double distance = Math.sqrt( dx*dx + dy*dy );
+        if ( distance > 0 ) 
+        {
+            double scale = distance < 100 ? parameters.maxSpeed * ( distance / 100.0 ) : parameters.maxSpeed;
+            if ( distance >= 0.00001 ) {
+                scale /= distance;
+            }
+            cohesionX = dx * scale - vx;
+            cohesionY = dy * scale - vy;
+            final double len = Math.sqrt( cohesionX*cohesionX + cohesionY*cohesionY );
+            if ( len >= parameters.maxSteeringForce && len >= 0.00001 ) 
+            {
+                cohesionX = cohesionX / len * parameters.maxSteeringForce;
+                cohesionY = cohesionY / len * parameters.maxSteeringForce;
+            }
+        }
+
+        // alignment
+        final double alignmentX = neighbourCount == 0 ? 0 : velocitySumX / neighbourCount;
+        final double alignmentY = neighbourCount == 0 ? 0 : velocitySumY / neighbourCount;
+
+        // separation
+        final double separationX = separationNeighbourCount == 0 ? 0 : separationSumX / separationNeighbourCount;
+        final double separationY = separationNeighbourCount == 0 ? 0 : separationSumY / separationNeighbourCount;
+
+        // border force
+        double borderX = 0;
+        double borderY = 0;
+        if ( x < parameters.borderRadius ) 
+        {
+            final double delta = (parameters.borderRadius-x) / parameters.borderRadius;
+            borderX = delta*delta;
+        } else if ( x > ( parameters.modelMax - parameters.borderRadius ) ) 
+        {
+            final double delta = (parameters.borderRadius -( parameters.modelMax - x )) / parameters.borderRadius;
+            borderX = -(delta*delta);
+        }
+        if ( y < parameters.borderRadius ) 
+        {
+            final double delta = (parameters.borderRadius-y) / parameters.borderRadius;
+            borderY = delta*delta;
+        } else if ( y > ( parameters.modelMax - parameters.borderRadius ) ) 
+        {
+            final double delta = (parameters.borderRadius -( parameters.modelMax - y )) / parameters.borderRadius;
+            borderY = -(delta*delta);
+        }
+
+        double len = normalizeScale( cohesionX , cohesionY ) * parameters.cohesionWeight;
+        double ax = cohesionX * len;
+        double ay = cohesionY * len;
+
+        len = normalizeScale( alignmentX , alignmentY ) * parameters.alignmentWeight;
+        ax += alignmentX * len;
+        ay += alignmentY * len;
+
+        len = normalizeScale( separationX , separationY ) * parameters.separationWeight;
+        ax += separationX * len;
+        ay += separationY * len;
+
+        ax += borderX * parameters.borderForceWeight;
+        ay += borderY * parameters.borderForceWeight;
+
+        // integrate
+        double newVx = vx + ax;
+        double newVy = vy + ay;
+        final double speed = Math.sqrt( newVx*newVx + newVy*newVy );
+        if ( speed >= parameters.maxSpeed && speed >= 0.00001 ) 
+        {
+            newVx = newVx / speed * parameters.maxSpeed;
+            newVy = newVy / speed * parameters.maxSpeed;
+        }
+
+        output.set( index , wrap( x + newVx , parameters.modelMax ) , wrap( y + newVy , parameters.modelMax ) , newVx , newVy , ax , ay );
+    }
+
+    // returns the factor that normalizes a vector , see Vec2dMutable#normalize()
+    private static double normalizeScale(double x,double y) 
+    {
+        final double len = Math.sqrt( x*x + y*y );
+        return len < 0.00001 ? 1 : 1 / len;
+    }
+
+    private static double wrap(double value,double modelMax) 
+    {
+        if ( value < 0 ) {
+            return modelMax + value;
+        }
+        return value >= modelMax ? value - modelMax : value;
+    }
+
+    private void findNearest(IBoidStore store,SpatialGrid grid,double x,double y,double radius) 
+    {
+        nearestCount = 0;
+
+        final int cellsPerSide = grid.getCellsPerSide();
+        final int cellX = grid.getCellX( x );
+        final int cellY = grid.getCellY( y );
+
+        // the boid's own cell usually holds the closest boids , searching it first
+        // lets us skip neighbouring cells that cannot contain anything closer
+        visitCell( store , grid , cellX , cellY , x , y , radius*radius );
+
+        final double cellSize = grid.getCellSize();
+        for ( int cy = cellY - 1 ; cy <= cellY + 1 ; cy++ ) 
+        {
+            if ( cy < 0 || cy >= cellsPerSide ) {
+                continue;
+            }
+            for ( int cx = cellX - 1 ; cx <= cellX + 1 ; cx++ ) 
+            {
+                if ( cx < 0 || cx >= cellsPerSide || ( cx == cellX && cy == cellY ) ) {
+                    continue;
+                }
+
+                // squared distance to the closest point of the cell
+                final double dx = cx < cellX ? x - ( cx + 1 ) * cellSize : ( cx > cellX ? cx * cellSize - x : 0 );
+                final double dy = cy < cellY ? y - ( cy + 1 ) * cellSize : ( cy > cellY ? cy * cellSize - y : 0 );
+                final double minDistanceSquared = dx*dx + dy*dy;
+
+                double maxDistanceSquared = radius*radius;
+                if ( nearestCount == MAX_NEIGHBOURS ) {
+                    maxDistanceSquared = Math.min( maxDistanceSquared , nearestDistanceSquared[ MAX_NEIGHBOURS-1 ] );
+                }
+                if ( minDistanceSquared <= maxDistanceSquared ) {
+                    visitCell( store , grid , cx , cy , x , y , maxDistanceSquared );
+                }
+            }
+        }
+    }
+
+    private void visitCell(IBoidStore store,SpatialGrid grid,int cellX,int cellY,double x,double y,double radiusSquared) 
+    {
+        final int end = grid.getCellEnd( cellX , cellY );
+        for ( int pos = grid.getCellStart( cellX , cellY ) ; pos < end ; pos++ ) 
+        {
+            final int other = grid.getBoid( pos );
+            final double dx = store.getX( other ) - x;
+            final double dy = store.getY( other ) - y;
+            final double distanceSquared = dx*dx + dy*dy;
+            if ( distanceSquared <= radiusSquared ) {
+                insertNearest( other , distanceSquared );
+            }
+        }
+    }
+
+    private void insertNearest(int boid,double distanceSquared) 
+    {
+        int i = nearestCount;
+        if ( i == MAX_NEIGHBOURS ) 
+        {
+            if ( distanceSquared >= nearestDistanceSquared[ i-1 ] ) {
+                return;
+            }
+            i--;
+        } else {
+            nearestCount++;
+        }
+
+        // insertion sort
+        while ( i > 0 && nearestDistanceSquared[ i-1 ] > distanceSquared ) 
+        {
+            nearest[i] = nearest[i-1];
+            nearestDistanceSquared[i] = nearestDistanceSquared[i-1];
+            i--;
+        }
+        nearest[i] = boid;
+        nearestDistanceSquared[i] = distanceSquared;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles {@link World} instances so that simulation steps do not have to allocate a new
+ * world (along with its slot array and all kd-tree nodes) each time.
+ *
+ * <p>Worlds handed out by {@link #acquire(SimulationParameters, int)} are reference-counted. Once
+ * every holder (the simulation , renderers , ...) has called {@link World#release()} the world returns to 
+ * this arena and gets reset and handed out again by a later call to <code>acquire()</code>.</p>
+ * <p>At most {@link #getCapacity()} idle worlds are kept, with a capacity of two or three (double/triple-buffering) 
+ * a simulation that is displayed by a renderer usually runs without allocating any new worlds.
+ * Worlds that are never released are simply left to the garbage collector.</p>
+ * <p>An arena creates either worlds holding {@link Boid} instances or worlds that keep
+ * their boids in an off-heap store , see {@link Storage}.</p>
+ * 
+ * <p>This class is thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see Simulation#setFrameArena(FrameArena)
+ */
+public final class FrameArena
+{
+    /**
+     * How worlds created by an arena store their boids.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static enum Storage 
+    {
+        /**
+         * {@link Boid} instances plus kd-tree.
+         */
+        OBJECTS,
+        /**
+         * Off-heap {@link BoidStore} , no spatial index.
+         */
+        OFF_HEAP,
+        /**
+         * Off-heap {@link QuantizedBoidStore} , no spatial index.
+         */
+        OFF_HEAP_QUANTIZED;
+    }
+
+    private final int capacity;
+
+    private final Storage storage;
+
+    // @GuardedBy( freeList )
+    private final ArrayDeque<World> freeList = new ArrayDeque<>();
+
+    // @GuardedBy( freeList )
+    private long createdCount;
+
+    // @GuardedBy( freeList )
+    private long recycledCount;
+
+    /**
+     * Create instance.
+     * 
+     * @param capacity max. number of idle worlds to keep
+     */
+    public FrameArena(int capacity)
+    {
+        this( capacity , Storage.OBJECTS );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param capacity max. number of idle worlds to keep
+     * @param storage how created worlds store their boids
+     */
+    public FrameArena(int capacity,Storage storage)
+    {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("Capacity must be >= 1");
+        }
+        if ( storage == null ) {
+            throw new IllegalArgumentException("Storage must not be NULL");
+        }
+        this.capacity = capacity;
+        this.storage = storage;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns an empty world with a fixed number of slots.
+     * 
+     * <p>The caller holds the only reference to the returned world.</p>
+     * 
+     * @param parameters
+     * @param populationCount
+     * @return
+     * @see World#World(SimulationParameters, int)
+     */
+    public World acquire(SimulationParameters parameters,int populationCount)
+    {
+        World world;
+        synchronized( freeList ) 
+        {
+            world = freeList.pollFirst();
+            if ( world != null ) {
+                recycledCount++;
+            } else {
+                createdCount++;
+            }
+        }
+
+        if ( world == null ) 
+        {
+            switch( storage ) 
+            {
+                case OFF_HEAP:
+                    return new World( parameters , new BoidStore( populationCount ) , populationCount , this );
+                case OFF_HEAP_QUANTIZED:
+                    return new World( parameters , new QuantizedBoidStore( parameters , populationCount ) , populationCount , this );
+                default:
+                    return new World( parameters , populationCount , this );
+            }
+        }
+        world.reset( parameters , populationCount );
+        return world;
+    }
+
+    // invoked by World#release() when the last reference has been released
+    protected void recycle(World world) 
+    {
+        synchronized( freeList ) 
+        {
+            if ( freeList.size() < capacity ) {
+                freeList.addFirst( world );
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        synchronized( freeList ) {
+            return "worlds created="+createdCount+", recycled="+recycledCount+", idle="+freeList.size();
+        }
+    }
+}
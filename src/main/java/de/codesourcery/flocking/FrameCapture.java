@@ -0,0 +1,323 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Captures worlds as a sequence of numbered PNG files (<code>frame_000000.png</code> , <code>frame_000001.png</code> , ...).
+ *
+ * <p>Rendering and encoding happens on a pool of encoder threads , each of them drawing with its own single-threaded
+ * {@link OffscreenRenderer}. {@link #capture(World)} only retains the world and hands it to the pool along with an image
+ * taken from a fixed set of {@link #getBufferCount()} buffers , so the simulation thread never renders or encodes 
+ * and no images get allocated while capturing. Each buffer returns to the set once its PNG file has been written.</p>
+ * 
+ * <p>If all buffers are in use , <code>capture()</code> either blocks until one becomes available (so no frame is lost 
+ * but the simulation is slowed down to the speed of the encoders) or skips the frame , see {@link #isBlockWhenBusy()}.
+ * Files are numbered consecutively by captured frame , skipped frames leave no gaps.</p>
+ * 
+ * <p>Each frame keeps its world retained until it has been drawn , simulations using a {@link FrameArena} should 
+ * size it to hold {@link #getBufferCount()} additional worlds.</p>
+ * 
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class FrameCapture
+{
+    public static final int DEFAULT_WIDTH = 1024;
+    public static final int DEFAULT_HEIGHT = 1024;
+
+    public static final String FILE_PATTERN = "frame_%06d.png";
+
+    private final File directory;
+    private final int width;
+    private final int height;
+    private final int bufferCount;
+    private final boolean blockWhenBusy;
+
+    // images not currently used by an encoder thread
+    private final BlockingQueue<BufferedImage> freeBuffers;
+
+    private final ExecutorService encoders;
+
+    // renderers are re-used across frames drawn by the same encoder thread
+    private final ThreadLocal<OffscreenRenderer> renderers = new ThreadLocal<>();
+
+    // @GuardedBy( allRenderers )
+    private final List<OffscreenRenderer> allRenderers = new ArrayList<>();
+
+    private final AtomicLong capturedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    // @GuardedBy( allRenderers )
+    private IOException writeError;
+
+    /**
+     * Create instance.
+     * 
+     * <p>Uses one encoder thread per CPU (minus one for the simulation) and skips frames while all encoders are busy.</p>
+     * 
+     * @param directory directory to write to , gets created if it does not exist. Existing files are overwritten.
+     * @throws IOException
+     */
+    public FrameCapture(File directory) throws IOException
+    {
+        this( directory , false );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * <p>Uses one encoder thread per CPU (minus one for the simulation).</p>
+     * 
+     * @param directory directory to write to , gets created if it does not exist. Existing files are overwritten.
+     * @param blockWhenBusy whether {@link #capture(World)} should wait for a free buffer instead of skipping the frame
+     * @throws IOException
+     */
+    public FrameCapture(File directory,boolean blockWhenBusy) throws IOException
+    {
+        this( directory , DEFAULT_WIDTH , DEFAULT_HEIGHT , Math.max( 1 , Runtime.getRuntime().availableProcessors() - 1 ) , blockWhenBusy );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param directory directory to write to , gets created if it does not exist. Existing files are overwritten.
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param encoderThreads number of threads to render and encode frames on
+     * @param blockWhenBusy whether {@link #capture(World)} should wait for a free buffer instead of skipping the frame
+     * @throws IOException
+     */
+    public FrameCapture(File directory,int width,int height,int encoderThreads,boolean blockWhenBusy) throws IOException
+    {
+        // one frame being encoded by each thread plus one waiting
+        this( directory , width , height , encoderThreads , 2 * encoderThreads , blockWhenBusy );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param directory directory to write to , gets created if it does not exist. Existing files are overwritten.
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param encoderThreads number of threads to render and encode frames on
+     * @param bufferCount max. number of frames being drawn , encoded or waiting for an encoder thread
+     * @param blockWhenBusy whether {@link #capture(World)} should wait for a free buffer instead of skipping the frame
+     * @throws IOException
+     */
+    public FrameCapture(File directory,int width,int height,int encoderThreads,int bufferCount,boolean blockWhenBusy) throws IOException
+    {
+        if ( width < 1 || height < 1 ) {
+            throw new IllegalArgumentException("Image size must be >= 1");
+        }
+        if ( encoderThreads < 1 || bufferCount < 1 ) {
+            throw new IllegalArgumentException("Encoder thread count and buffer count must be >= 1");
+        }
+        if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+            throw new IOException("Failed to create directory "+directory);
+        }
+
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        this.bufferCount = bufferCount;
+        this.blockWhenBusy = blockWhenBusy;
+
+        this.freeBuffers = new ArrayBlockingQueue<>( bufferCount );
+        for ( int i = 0 ; i < bufferCount ; i++ ) {
+            freeBuffers.add( new BufferedImage( width , height , BufferedImage.TYPE_INT_RGB ) );
+        }
+
+        final ThreadFactory threadFactory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread t= new Thread(r,"frame-capture");
+                t.setDaemon( true );
+                // keep the simulation thread responsive
+                t.setPriority( Thread.NORM_PRIORITY - 1 );
+                return t;
+            }
+        };
+        // never holds more than bufferCount tasks
+        this.encoders = new ThreadPoolExecutor( encoderThreads , encoderThreads , 1 , TimeUnit.MINUTES , new LinkedBlockingQueue<Runnable>() , threadFactory );
+    }
+
+    public int getBufferCount()
+    {
+        return bufferCount;
+    }
+
+    public boolean isBlockWhenBusy()
+    {
+        return blockWhenBusy;
+    }
+
+    /**
+     * Queues a world for capturing.
+     * 
+     * <p>The world is retained until it has been drawn.</p>
+     * 
+     * @param world
+     * @return <code>true</code> if the world was queued , <code>false</code> if it was skipped because 
+     * all buffers were busy (or the calling thread got interrupted while waiting for one)
+     */
+    public boolean capture(final World world) 
+    {
+        if ( closed ) {
+            throw new IllegalStateException("Capture has been closed");
+        }
+
+        BufferedImage buffer;
+        if ( blockWhenBusy ) 
+        {
+            try {
+                buffer = freeBuffers.take();
+            } 
+            catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                buffer = null;
+            }
+        } else {
+            buffer = freeBuffers.poll();
+        }
+
+        if ( buffer == null ) {
+            skippedCount.incrementAndGet();
+            return false;
+        }
+
+        final BufferedImage image = buffer;
+        final File file = new File( directory , String.format( FILE_PATTERN , capturedCount.getAndIncrement() ) );
+
+        world.retain();
+        encoders.execute( new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try 
+                {
+                    try {
+                        getRenderer().draw( world , image );
+                    } finally {
+                        world.release();
+                    }
+                    write( image , file );
+                } 
+                finally {
+                    freeBuffers.add( image );
+                }
+            }
+        });
+        return true;
+    }
+
+    private OffscreenRenderer getRenderer() 
+    {
+        OffscreenRenderer renderer = renderers.get();
+        if ( renderer == null ) 
+        {
+            renderer = new OffscreenRenderer( width , height , OffscreenRenderer.Mode.AUTO , 1 );
+            renderer.setup();
+            renderers.set( renderer );
+            synchronized( allRenderers ) {
+                allRenderers.add( renderer );
+            }
+        }
+        return renderer;
+    }
+
+    private void write(BufferedImage image,File file) 
+    {
+        synchronized( allRenderers ) 
+        {
+            if ( writeError != null ) {
+                return;
+            }
+        }
+
+        try 
+        {
+            if ( ! ImageIO.write( image , "png" , file ) ) {
+                throw new IOException("No PNG writer available");
+            }
+            writtenCount.incrementAndGet();
+        } 
+        catch (IOException e) 
+        {
+            e.printStackTrace();
+            synchronized( allRenderers ) 
+            {
+                if ( writeError == null ) {
+                    writeError = new IOException("Failed to write "+file,e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all queued frames and shuts down the encoder threads.
+     * 
+     * @throws IOException if writing any frame failed
+     * @throws InterruptedException
+     */
+    public void close() throws IOException, InterruptedException 
+    {
+        closed = true;
+        encoders.shutdown();
+        encoders.awaitTermination( Long.MAX_VALUE , TimeUnit.MILLISECONDS );
+
+        synchronized( allRenderers ) 
+        {
+            for ( OffscreenRenderer renderer : allRenderers ) {
+                renderer.destroy();
+            }
+            allRenderers.clear();
+
+            if ( writeError != null ) {
+                throw writeError;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "frames captured="+capturedCount.get()+", skipped="+skippedCount.get()+", written="+writtenCount.get();
+    }
+}
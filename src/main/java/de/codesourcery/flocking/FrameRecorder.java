@@ -0,0 +1,447 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the worlds returned by {@link ISimulation#advance()} to a compact binary file that
+ * can be played back using {@link ReplaySimulation}.
+ *
+ * <p>Boid locations and velocities are quantized to fixed-point integers ({@link #LOCATION_BITS} / {@link #VELOCITY_BITS} 
+ * fractional bits). Every {@link #getKeyframeInterval()} frames (and whenever the simulation parameters change) a keyframe holding 
+ * absolute values is written , all other frames only hold per-boid deltas to the previous frame: the change in velocity and the 
+ * difference between the actual location and the location predicted from the previous location and the new velocity.
+ * Deltas are zigzag-encoded as variable-length integers , most boids take 4-6 bytes per frame.</p>
+ * 
+ * <p>A boid is identified by its slot index in the world , so simulations need to keep boids 
+ * in the same slot across steps (like {@link Simulation} and {@link OffHeapSimulation} do , but 
+ * not {@link OutOfCoreSimulation}).</p>
+ *
+ * <p>Encoding and writing happens on a background thread. {@link #record(World)} only retains 
+ * the world and queues it , if the queue is full the frame gets dropped so that 
+ * the simulation is never stalled by a slow disk. Once writing failed (for example because the disk is full) 
+ * all further frames are dropped and {@link #close()} reports the error.</p>
+ *
+ * <p>File layout (big-endian):</p>
+ * <pre>
+ * int   magic ({@link #MAGIC})
+ * int   format version ({@link #VERSION})
+ * byte  location fraction bits
+ * byte  velocity fraction bits
+ * 
+ * frames:
+ * int   number of bytes following
+ * byte  frame type ({@link #KEYFRAME} or {@link #DELTA_FRAME})
+ * int   number of boids
+ * (keyframes only) int population size + 10 doubles simulation parameters , see {@link WorldSnapshot}
+ * per boid: 4 varints (x , y , velocity x , velocity y)
+ * </pre>
+ * 
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class FrameRecorder
+{
+    // 'BREC'
+    public static final int MAGIC = 0x42524543;
+
+    public static final int VERSION = 1;
+
+    public static final byte KEYFRAME = 1;
+    public static final byte DELTA_FRAME = 2;
+
+    // fixed-point resolution of locations (1/64th model unit)
+    public static final int LOCATION_BITS = 6;
+
+    // fixed-point resolution of velocities (1/1024th model unit)
+    public static final int VELOCITY_BITS = 10;
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 100;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    private final int keyframeInterval;
+
+    private final BlockingQueue<World> queue;
+
+    private final Thread writerThread;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private volatile boolean closed;
+
+    // set by the writer thread when it stopped because writing failed or it got interrupted
+    private volatile boolean failed;
+
+    // @GuardedBy( writerThread )
+    private IOException writeError;
+
+    /**
+     * Create instance.
+     * 
+     * @param file file to write to, gets overwritten if it already exists
+     * @throws IOException
+     */
+    public FrameRecorder(File file) throws IOException
+    {
+        this( file , DEFAULT_KEYFRAME_INTERVAL , DEFAULT_QUEUE_CAPACITY );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param file file to write to, gets overwritten if it already exists
+     * @param keyframeInterval number of frames between two keyframes
+     * @param queueCapacity max. number of frames waiting to be written
+     * @throws IOException
+     */
+    public FrameRecorder(File file,int keyframeInterval,int queueCapacity) throws IOException
+    {
+        if ( keyframeInterval < 1 || queueCapacity < 1 ) {
+            throw new IllegalArgumentException("Keyframe interval and queue capacity must be >= 1");
+        }
+        this.keyframeInterval = keyframeInterval;
+        this.queue = new ArrayBlockingQueue<>( queueCapacity );
+
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) , 1024*1024 ) );
+        try {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeByte( LOCATION_BITS );
+            out.writeByte( VELOCITY_BITS );
+        } 
+        catch(IOException e) 
+        {
+            out.close();
+            throw e;
+        }
+
+        this.writerThread = new Thread( new Writer( out ) , "frame-recorder" );
+        this.writerThread.setDaemon( true );
+        this.writerThread.start();
+    }
+
+    public int getKeyframeInterval()
+    {
+        return keyframeInterval;
+    }
+
+    /**
+     * Queues a world for recording.
+     * 
+     * <p>Does not block , the world is retained until it has been written 
+     * and dropped (without being recorded) if too many frames are waiting to be written 
+     * or writing failed.</p>
+     * 
+     * @param world
+     * @return <code>true</code> if the world was queued , <code>false</code> if it was dropped
+     * @throws IllegalStateException if {@link #close()} has been called
+     */
+    public boolean record(World world) 
+    {
+        if ( failed ) 
+        {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if ( closed ) {
+            throw new IllegalStateException("Recorder has been closed");
+        }
+
+        world.retain();
+        if ( queue.offer( world ) ) 
+        {
+            if ( ! failed ) {
+                return true;
+            }
+            // the writer thread failed after the check above and may already have discarded 
+            // the queue , nobody else is going to release the world
+            discardQueue();
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        world.release();
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    // releases all queued worlds
+    private void discardQueue() 
+    {
+        World world;
+        while ( ( world = queue.poll() ) != null ) {
+            world.release();
+        }
+    }
+
+    /**
+     * Writes all queued frames and closes the file.
+     * 
+     * @throws IOException if writing any frame failed
+     * @throws InterruptedException
+     */
+    public void close() throws IOException, InterruptedException 
+    {
+        closed = true;
+        writerThread.join();
+        synchronized( writerThread ) 
+        {
+            if ( writeError != null ) {
+                throw writeError;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final long frames = recordedCount.get();
+        final long bytes = bytesWritten.get();
+        return "frames recorded="+frames+", dropped="+droppedCount.get()+", bytes="+bytes+
+                ( frames > 0 ? ", avg. bytes/frame="+(bytes/frames) : "" );
+    }
+
+    protected final class Writer implements Runnable 
+    {
+        private final DataOutputStream out;
+
+        private final FrameEncoder encoder = new FrameEncoder();
+
+        private SimulationParameters lastParameters;
+        private int framesSinceKeyframe;
+
+        public Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void run() 
+        {
+            try 
+            {
+                try 
+                {
+                    while ( ! closed || ! queue.isEmpty() ) 
+                    {
+                        final World world = queue.poll( 100 , TimeUnit.MILLISECONDS );
+                        if ( world != null ) 
+                        {
+                            try {
+                                write( world );
+                            } finally {
+                                world.release();
+                            }
+                        }
+                    }
+                } 
+                finally {
+                    out.close();
+                }
+            } 
+            catch (IOException e) 
+            {
+                e.printStackTrace();
+                synchronized( writerThread ) {
+                    writeError = e;
+                }
+                failed = true;
+                discardQueue();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = true;
+                discardQueue();
+            }
+        }
+
+        private void write(World world) throws IOException 
+        {
+            final SimulationParameters parameters = world.getSimulationParameters();
+            final boolean isKeyframe = parameters != lastParameters || framesSinceKeyframe >= keyframeInterval;
+
+            final int length = encoder.encode( world , isKeyframe );
+            out.writeInt( length );
+            out.write( encoder.buffer , 0 , length );
+
+            if ( isKeyframe ) {
+                lastParameters = parameters;
+                framesSinceKeyframe = 1;
+            } else {
+                framesSinceKeyframe++;
+            }
+            recordedCount.incrementAndGet();
+            bytesWritten.addAndGet( 4 + length );
+        }
+    }
+
+    // encodes frames , keeps the quantized state of the last frame
+    protected static final class FrameEncoder implements World.IBoidStateVisitor
+    {
+        public byte[] buffer = new byte[ 64*1024 ];
+        private int position;
+
+        private int[] x = new int[0];
+        private int[] y = new int[0];
+        private int[] velocityX = new int[0];
+        private int[] velocityY = new int[0];
+
+        // number of boids in the previous frame , boids beyond this index are encoded with absolute values
+        private int previousCount;
+        private int index;
+
+        public int encode(World world,boolean isKeyframe) 
+        {
+            final int count = world.getPopulationCount();
+            if ( x.length < count ) 
+            {
+                x = Arrays.copyOf( x , count );
+                y = Arrays.copyOf( y , count );
+                velocityX = Arrays.copyOf( velocityX , count );
+                velocityY = Arrays.copyOf( velocityY , count );
+            }
+
+            position = 0;
+            ensureCapacity( 1 + 4 + 4 + 10*8 + count * 4 * 5 );
+
+            writeByte( isKeyframe ? KEYFRAME : DELTA_FRAME );
+            writeInt( count );
+            if ( isKeyframe ) 
+            {
+                final SimulationParameters params = world.getSimulationParameters();
+                writeInt( params.populationSize );
+                writeDouble( params.modelMax );
+                writeDouble( params.maxSteeringForce );
+                writeDouble( params.maxSpeed );
+                writeDouble( params.cohesionWeight );
+                writeDouble( params.separationWeight );
+                writeDouble( params.alignmentWeight );
+                writeDouble( params.borderForceWeight );
+                writeDouble( params.separationRadius );
+                writeDouble( params.neighbourRadius );
+                writeDouble( params.borderRadius );
+                previousCount = 0;
+            }
+
+            index = 0;
+            world.visitAllBoids( this );
+            previousCount = count;
+            return position;
+        }
+
+        @Override
+        public void visit(double locationX, double locationY, double velocityX, double velocityY)
+        {
+            final int i = index++;
+            final int qx = quantize( locationX , LOCATION_BITS );
+            final int qy = quantize( locationY , LOCATION_BITS );
+            final int qvx = quantize( velocityX , VELOCITY_BITS );
+            final int qvy = quantize( velocityY , VELOCITY_BITS );
+
+            if ( i < previousCount ) 
+            {
+                writeVarInt( qx - predict( x[i] , qvx ) );
+                writeVarInt( qy - predict( y[i] , qvy ) );
+                writeVarInt( qvx - this.velocityX[i] );
+                writeVarInt( qvy - this.velocityY[i] );
+            } 
+            else 
+            {
+                writeVarInt( qx );
+                writeVarInt( qy );
+                writeVarInt( qvx );
+                writeVarInt( qvy );
+            }
+            x[i] = qx;
+            y[i] = qy;
+            this.velocityX[i] = qvx;
+            this.velocityY[i] = qvy;
+        }
+
+        private void ensureCapacity(int size) 
+        {
+            if ( buffer.length < size ) {
+                buffer = new byte[ size ];
+            }
+        }
+
+        private void writeByte(int value) {
+            buffer[ position++ ] = (byte) value;
+        }
+
+        private void writeInt(int value) 
+        {
+            writeByte( value >>> 24 );
+            writeByte( value >>> 16 );
+            writeByte( value >>> 8 );
+            writeByte( value );
+        }
+
+        private void writeDouble(double value) 
+        {
+            final long bits = Double.doubleToLongBits( value );
+            writeInt( (int) ( bits >>> 32 ) );
+            writeInt( (int) bits );
+        }
+
+        // zigzag + LEB128 , at most 5 bytes
+        private void writeVarInt(int value) 
+        {
+            int v = ( value << 1 ) ^ ( value >> 31 );
+            while ( ( v & ~0x7f ) != 0 ) 
+            {
+                buffer[ position++ ] = (byte) ( ( v & 0x7f ) | 0x80 );
+                v >>>= 7;
+            }
+            buffer[ position++ ] = (byte) v;
+        }
+    }
+
+    protected static int quantize(double value,int fractionBits) 
+    {
+        return (int) Math.round( value * ( 1 << fractionBits ) );
+    }
+
+    protected static double dequantize(int value,int fractionBits) 
+    {
+        return value / (double) ( 1 << fractionBits );
+    }
+
+    /**
+     * Predicts the quantized location of a boid from its previous location and new velocity.
+     * 
+     * @param previousLocation
+     * @param velocity
+     * @return
+     */
+    protected static int predict(int previousLocation,int velocity) 
+    {
+        final int shift = VELOCITY_BITS - LOCATION_BITS;
+        return previousLocation + ( ( velocity + ( 1 << (shift-1) ) ) >> shift );
+    }
+}
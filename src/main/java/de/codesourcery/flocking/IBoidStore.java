@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+/**
+ * Storage for the state of a fixed number of boids , accessed through primitive values.
+ *
+ * <p>Each boid is identified by its index and has a location , a velocity
+ * and an acceleration.</p>
+ * 
+ * <p>Reading and writing records is thread-safe as long as different threads write different
+ * records (and the caller establishes visibility between writers and readers). Methods that change
+ * the capacity are <b>not</b> thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see BoidStore
+ * @see QuantizedBoidStore
+ */
+public interface IBoidStore
+{
+    /**
+     * Prepares this store for holding a new simulation state.
+     * 
+     * <p>Makes sure the store can hold the given number of boids. Existing records
+     * may become invalid.</p>
+     * 
+     * @param parameters parameters of the simulation whose state will be stored
+     * @param capacity
+     */
+    public void reset(SimulationParameters parameters,int capacity);
+
+    /**
+     * Returns the number of boids this store can hold.
+     * 
+     * @return
+     */
+    public int getCapacity();
+
+    public double getX(int index);
+
+    public double getY(int index);
+
+    public double getVelocityX(int index);
+
+    public double getVelocityY(int index);
+
+    public double getAccelerationX(int index);
+
+    public double getAccelerationY(int index);
+
+    /**
+     * Stores a boid's state.
+     * 
+     * @param index
+     * @param x
+     * @param y
+     * @param velocityX
+     * @param velocityY
+     * @param accelerationX
+     * @param accelerationY
+     */
+    public void set(int index,double x,double y,double velocityX,double velocityY,double accelerationX,double accelerationY);
+
+    /**
+     * Stores a boid's state.
+     * 
+     * @param index
+     * @param boid
+     */
+    public void set(int index,Boid boid);
+
+    /**
+     * Creates a {@link Boid} instance from a record.
+     * 
+     * <p>Meant for code that needs boid objects (debugging etc.) , performance-critical code 
+     * should use the primitive accessors instead.</p>
+     * 
+     * @param index
+     * @return
+     */
+    public Boid getBoid(int index);
+}
@@ -61,6 +61,8 @@ public interface IRenderer
      * <p>Note that the {@link World} instance passed to this method
      * must <b>never</b> be changed because the renderer may refer to until 
      * the next call to  {@link #render(World)} or even until {@link #destroy()} is called.</p>
+     * <p>The renderer takes over the caller's reference to the world and calls {@link World#release()}
+     * once it no longer needs it.</p>
      * 
      * @param world
      * @throws Exception
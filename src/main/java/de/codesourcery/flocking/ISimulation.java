@@ -27,6 +27,9 @@ public interface ISimulation
 	/**
 	 * Advances the simulation by one step and returns the new world state.
 	 * 
+	 * <p>Callers should invoke {@link World#release()} on the returned world once they no longer 
+	 * use it so that it may get recycled , see {@link FrameArena}.</p>
+	 * 
 	 * @return
 	 */
     public World advance();
@@ -24,13 +24,16 @@ import java.awt.GridBagLayout;
 import java.awt.event.KeyAdapter;
 import java.awt.event.MouseAdapter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -53,7 +56,8 @@ import org.apache.commons.lang.StringUtils;
  */
 public final class KDTree<T>
 {
-    private TreeNode<T> root;
+    // volatile because concurrent add() calls may race to create the root node
+    private volatile TreeNode<T> root;
 
     private static final int LEFT = 0;
     private static final int RIGHT = 1;    
@@ -96,8 +100,12 @@ public final class KDTree<T>
      */
     public static abstract class TreeNode<T> 
     {
-    	// used to lock this node for exclusive access
-        private final AtomicBoolean lock = new AtomicBoolean(false);
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<TreeNode> LOCK = AtomicIntegerFieldUpdater.newUpdater( TreeNode.class , "locked" );
+
+    	// used to lock this node for exclusive access (1 = locked)
+        // (not using an AtomicBoolean here saves one object per tree node)
+        private volatile int locked;
 
         /**
          * Inserts a new leaf-node into this subtree.
@@ -110,8 +118,9 @@ public final class KDTree<T>
          * @param depth current tree depth (used to determine split-axis , even depths are x-axis splits, odd depths
          * are y-axis splits)
          * @param value the new leaf node to add
+         * @param spare node to use when a split becomes necessary (instead of allocating a new one), may be <code>null</code>
          */
-        public abstract void add(double x,double y,int depth , LeafNode<T> value);
+        public abstract void add(double x,double y,int depth , LeafNode<T> value,NonLeafNode<T> spare);
 
         /**
          * Check whether this node is actually a leaf-node.
@@ -155,6 +164,18 @@ public final class KDTree<T>
          */
         public abstract void findApproxNearestNeighbors(int depth , NearestNeighborGatherer<T> gatherer);  
 
+        /**
+         * Visit all values located inside a rectangle.
+         * 
+         * @param depth the current node's depth in the tree.
+         * @param minX
+         * @param minY
+         * @param maxX
+         * @param maxY
+         * @param visitor
+         */
+        public abstract void visitRange(int depth , double minX , double minY , double maxX , double maxY , ValueVisitor<T> visitor);
+
         /**
          * Locks this tree node for exclusive access.
          * 
@@ -163,7 +184,7 @@ public final class KDTree<T>
          */
         protected final void lock() 
         {
-            while( ! lock.compareAndSet( false , true ) );
+            while( ! LOCK.compareAndSet( this , 0 , 1 ) );
         }
 
         /**
@@ -173,7 +194,7 @@ public final class KDTree<T>
          * you may remove somebody elses lock...</p>
          */
         protected final void unlock() {
-            lock.set( false );
+            locked = 0;
         }
     }
 
@@ -184,7 +205,7 @@ public final class KDTree<T>
      */
     public static final class NonLeafNode<T> extends TreeNode<T>
     {
-        private final double splitValue;
+        private double splitValue;
 
         private TreeNode<T> left;
         private TreeNode<T> right;
@@ -194,6 +215,23 @@ public final class KDTree<T>
             this.splitValue = splitValue;
         }
 
+        // prepares a pooled node for re-use
+        protected void reset(double splitValue) 
+        {
+            this.splitValue = splitValue;
+            this.left = null;
+            this.right = null;
+        }
+
+        private static <T> NonLeafNode<T> newNode(NonLeafNode<T> spare,double splitValue) 
+        {
+            if ( spare != null ) {
+                spare.reset( splitValue );
+                return spare;
+            }
+            return new NonLeafNode<>( splitValue );
+        }
+
         public final void visitPreOrder(int x , int y , KDXYTreeVisitor<T> visitor) 
         {
             visitor.visit( x , y , this );
@@ -217,7 +255,7 @@ public final class KDTree<T>
             }
         }
 
-        public void add(double x,double y,int depth , LeafNode<T> value) 
+        public void add(double x,double y,int depth , LeafNode<T> value,NonLeafNode<T> spare) 
         {
             if ( (depth % 2 )== 0 ) 
             {
@@ -241,14 +279,14 @@ public final class KDTree<T>
                                 if ( ! tmp.supportsMultipleValues() ) {
                                     left = new MultiValuedLeafNode<>( (SingleValueLeafNode<T>) tmp );
                                 }
-                                left.add( x , y , depth , value );
+                                left.add( x , y , depth , value , null );
                             } 
                             else 
                             {
                                 final double splitY = (tmp.y+y)/2.0;
-                                final NonLeafNode<T> newNode = new NonLeafNode<>( splitY );                            
-                                newNode.add( tmp.x , tmp.y , depth +1 , tmp );
-                                newNode.add( x , y , depth +1 , value );
+                                final NonLeafNode<T> newNode = newNode( spare , splitY );                            
+                                newNode.add( tmp.x , tmp.y , depth +1 , tmp , null );
+                                newNode.add( x , y , depth +1 , value , null );
                                 left = newNode;
                             }
 
@@ -256,7 +294,7 @@ public final class KDTree<T>
 
                         } else {
                             unlock();
-                            left.add( x ,  y ,  depth + 1 , value );
+                            left.add( x ,  y ,  depth + 1 , value , spare );
                         } 
                     }
                 }
@@ -279,20 +317,20 @@ public final class KDTree<T>
                                 if ( ! tmp.supportsMultipleValues() ) {
                                     right = new MultiValuedLeafNode<>( (SingleValueLeafNode<T>) tmp );
                                 }
-                                right.add( x , y , depth , value );
+                                right.add( x , y , depth , value , null );
                             } 
                             else 
                             {                            
                                 final double splitY = (tmp.y+y)/2.0;
-                                final NonLeafNode<T> newNode = new NonLeafNode<>( splitY );
-                                newNode.add( tmp.x , tmp.y , depth +1 , tmp );
-                                newNode.add( x , y , depth +1 , value );
+                                final NonLeafNode<T> newNode = newNode( spare , splitY );
+                                newNode.add( tmp.x , tmp.y , depth +1 , tmp , null );
+                                newNode.add( x , y , depth +1 , value , null );
                                 right = newNode;
                             }
                             unlock();
                         } else {
                             unlock();
-                            right.add( x ,  y ,  depth + 1 , value );
+                            right.add( x ,  y ,  depth + 1 , value , spare );
                         } 
                     }                    
                 }
@@ -316,14 +354,14 @@ public final class KDTree<T>
                                 if ( ! tmp.supportsMultipleValues() ) {
                                     left = new MultiValuedLeafNode<>( (SingleValueLeafNode<T>) tmp );
                                 }
-                                left.add( x , y , depth , value );
+                                left.add( x , y , depth , value , null );
                             } 
                             else 
                             {                            
                                 final double splitX = (tmp.x+x)/2.0;
-                                final NonLeafNode<T> newNode = new NonLeafNode<>( splitX );
-                                newNode.add( tmp.x , tmp.y , depth +1 , tmp );
-                                newNode.add( x , y , depth +1 , value );
+                                final NonLeafNode<T> newNode = newNode( spare , splitX );
+                                newNode.add( tmp.x , tmp.y , depth +1 , tmp , null );
+                                newNode.add( x , y , depth +1 , value , null );
                                 left = newNode;
                             }
                             unlock();                            
@@ -331,7 +369,7 @@ public final class KDTree<T>
                         else 
                         {
                             unlock();
-                            left.add( x ,  y ,  depth + 1 , value );
+                            left.add( x ,  y ,  depth + 1 , value , spare );
                         } 
                     }
                 }
@@ -351,19 +389,19 @@ public final class KDTree<T>
                                 if ( ! tmp.supportsMultipleValues() ) {
                                     right = new MultiValuedLeafNode<>( (SingleValueLeafNode<T>) tmp );
                                 }
-                                right.add( x , y , depth , value );
+                                right.add( x , y , depth , value , null );
                             } 
                             else {                            
                                 final double splitX = (tmp.x+x)/2.0;
-                                final NonLeafNode<T> newNode = new NonLeafNode<>( splitX );                            
-                                newNode.add( tmp.x , tmp.y , depth +1 , tmp );
-                                newNode.add( x , y , depth +1 , value );
+                                final NonLeafNode<T> newNode = newNode( spare , splitX );                            
+                                newNode.add( tmp.x , tmp.y , depth +1 , tmp , null );
+                                newNode.add( x , y , depth +1 , value , null );
                                 right = newNode;
                             }
                             unlock();
                         } else {
                             unlock();
-                            right.add( x ,  y ,  depth + 1 , value );
+                            right.add( x ,  y ,  depth + 1 , value , spare );
                         } 
                     }                    
                 }
@@ -396,6 +434,21 @@ public final class KDTree<T>
             return "NODE[ split="+splitValue+" ]";
         }
 
+        @Override
+        public void visitRange(int depth , double minX , double minY , double maxX , double maxY , ValueVisitor<T> visitor)
+        {
+            // left subtree holds values < splitValue , right subtree values >= splitValue
+            final boolean xAxis = ( depth % 2 ) == 0;
+            final double min = xAxis ? minX : minY;
+            final double max = xAxis ? maxX : maxY;
+            if ( left != null && min < splitValue ) {
+                left.visitRange( depth + 1 , minX , minY , maxX , maxY , visitor );
+            }
+            if ( right != null && max >= splitValue ) {
+                right.visitRange( depth + 1 , minX , minY , maxX , maxY , visitor );
+            }
+        }
+
         @Override
         public void findApproxNearestNeighbors(int depth , NearestNeighborGatherer<T> gatherer)
         {
@@ -581,8 +634,9 @@ public final class KDTree<T>
 
     public static abstract class LeafNode<T> extends TreeNode<T>
     {
-        public final double x;
-        public final double y;
+        // not final because leaf nodes may be pooled
+        public double x;
+        public double y;
 
         public LeafNode(double x, double y)
         {
@@ -601,7 +655,7 @@ public final class KDTree<T>
         public abstract boolean supportsMultipleValues();
 
         @Override
-        public void add(double x, double y, int depth, LeafNode<T> value)
+        public void add(double x, double y, int depth, LeafNode<T> value,NonLeafNode<T> spare)
         {
             throw new RuntimeException("Not supported: add()");
         }
@@ -636,6 +690,14 @@ public final class KDTree<T>
         {
             throw new RuntimeException("This method must never be called.");            
         }
+
+        @Override
+        public final void visitRange(int depth , double minX , double minY , double maxX , double maxY , ValueVisitor<T> visitor)
+        {
+            if ( x >= minX && x <= maxX && y >= minY && y <= maxY ) {
+                visitValues( visitor );
+            }
+        }
     }
 
     /**
@@ -645,7 +707,7 @@ public final class KDTree<T>
      */
     public static final class SingleValueLeafNode<T> extends LeafNode<T>
     {
-        public final T value;
+        public T value;
 
         public SingleValueLeafNode(double x, double y, T value)
         {
@@ -653,6 +715,14 @@ public final class KDTree<T>
             this.value = value;
         }
 
+        // prepares a pooled node for re-use
+        protected void reset(double x,double y,T value) 
+        {
+            this.x = x;
+            this.y = y;
+            this.value = value;
+        }
+
         @Override
         public int getValueCount()
         {
@@ -671,7 +741,7 @@ public final class KDTree<T>
         }
 
         @Override
-        public void add(double x, double y, int depth, LeafNode<T> value)
+        public void add(double x, double y, int depth, LeafNode<T> value,NonLeafNode<T> spare)
         {
             throw new RuntimeException("Not supported: add() on single-valued leaf node");
         }
@@ -737,7 +807,7 @@ public final class KDTree<T>
         }
 
         @Override
-        public void add(double x, double y, int depth, LeafNode<T> node)
+        public void add(double x, double y, int depth, LeafNode<T> node,NonLeafNode<T> spare)
         {
             lock();
             if ( node.supportsMultipleValues() ) {
@@ -761,9 +831,22 @@ public final class KDTree<T>
         }
     }     
 
+    // node pools used by add(double,double,Object,int) , indexed by slot
+    private NonLeafNode<T>[] nonLeafPool;
+    private SingleValueLeafNode<T>[] leafPool;
+
     public KDTree() {
     }
 
+    /**
+     * Removes all values from this tree.
+     * 
+     * <p>Nodes created by {@link #add(double, double, Object, int)} are kept and re-used by subsequent calls to this method.</p>
+     */
+    public void clear() {
+        root = null;
+    }
+
     public void visitPreOrder(KDXYTreeVisitor<T> visitor) {
 
         if ( root != null ) {
@@ -803,10 +886,295 @@ public final class KDTree<T>
      */
     public void add(double x,double y,T value) 
     {
-        if ( root == null ) {
-            root = new NonLeafNode<T>(x);
+        TreeNode<T> node = root;
+        if ( node == null ) 
+        {
+            synchronized( this ) 
+            {
+                if ( root == null ) {
+                    root = new NonLeafNode<T>(x);
+                }
+                node = root;
+            }
+        }
+        node.add( x,y , 0 , new SingleValueLeafNode<>( x , y , value) , null );
+    }
+
+    /**
+     * Stores a value at a specific (x,y) location, re-using the tree nodes associated
+     * with a given slot.
+     * 
+     * <p>Each slot owns one leaf node and one inner node that get re-used after {@link #clear()} has been called,
+     * so re-populating a tree with the same number of values does (almost) not allocate any objects.</p>
+     * <p>This method is thread-safe as long as concurrent invocations use different slots.</p>
+     * 
+     * @param x
+     * @param y
+     * @param value
+     * @param slot slot number, must be less than the capacity passed to {@link #ensureCapacity(int)}
+     */
+    public void add(double x,double y,T value,int slot) 
+    {
+        SingleValueLeafNode<T> leaf = leafPool[slot];
+        if ( leaf == null ) {
+            leaf = new SingleValueLeafNode<>( x , y , value );
+            leafPool[slot] = leaf;
+        } else {
+            leaf.reset( x , y , value );
+        }
+
+        NonLeafNode<T> spare = nonLeafPool[slot];
+        if ( spare == null ) {
+            spare = new NonLeafNode<>( 0 );
+            nonLeafPool[slot] = spare;
+        }
+
+        TreeNode<T> node = root;
+        if ( node == null ) 
+        {
+            synchronized( this ) 
+            {
+                if ( root == null ) {
+                    root = new NonLeafNode<T>(x);
+                }
+                node = root;
+            }
+        }
+        node.add( x,y , 0 , leaf , spare );
+    }
+
+    /**
+     * Makes sure the node pools used by {@link #add(double, double, Object, int)} can hold
+     * at least the given number of slots.
+     * 
+     * <p>This method is <b>not</b> thread-safe.</p>
+     * 
+     * @param slotCount
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public void ensureCapacity(int slotCount) 
+    {
+        if ( leafPool == null ) 
+        {
+            leafPool = new SingleValueLeafNode[ slotCount ];
+            nonLeafPool = new NonLeafNode[ slotCount ];
+        } 
+        else if ( leafPool.length < slotCount ) 
+        {
+            leafPool = Arrays.copyOf( leafPool , slotCount );
+            nonLeafPool = Arrays.copyOf( nonLeafPool , slotCount );
+        }
+    }
+
+    /**
+     * Replaces the contents of this tree with a set of values , building a balanced tree.
+     * 
+     * <p>Much faster than adding values one-by-one and yields a tree of minimal depth. Each inner node 
+     * splits its values at the median location , subtrees with many values are built in parallel.</p>
+     * <p>This method is <b>not</b> thread-safe.</p>
+     * 
+     * @param x X coordinate of each value
+     * @param y Y coordinate of each value
+     * @param values
+     * @param count number of values to add , starting at index 0
+     */
+    public void build(double[] x,double[] y,T[] values,int count) 
+    {
+        if ( count == 0 ) {
+            root = null;
+            return;
+        }
+
+        final int[] indices = new int[ count ];
+        for ( int i = 0 ; i < count ; i++ ) {
+            indices[i] = i;
+        }
+
+        final BulkBuilder<T> builder = new BulkBuilder<>( x , y , values , indices , 0 , count , 0 );
+        BUILD_POOL.invoke( builder );
+
+        final TreeNode<T> result = builder.result;
+        if ( result.isLeaf() ) 
+        {
+            // root always needs to be an inner node
+            final LeafNode<T> leaf = (LeafNode<T>) result;
+            final NonLeafNode<T> newRoot = new NonLeafNode<>( leaf.x );
+            newRoot.right = leaf;
+            root = newRoot;
+        } else {
+            root = result;
+        }
+    }
+
+    // subtrees with fewer values are built on the current thread
+    private static final int PARALLEL_BUILD_THRESHOLD = 16 * 1024;
+
+    private static final ForkJoinPool BUILD_POOL = new ForkJoinPool();
+
+    // builds a subtree from a range of value indices , re-ordering the range in the process 
+    protected static final class BulkBuilder<T> extends RecursiveAction 
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] x;
+        private final double[] y;
+        private final T[] values;
+        private final int[] indices;
+        private final int start;
+        private final int end;
+        private final int depth;
+
+        public TreeNode<T> result;
+
+        public BulkBuilder(double[] x,double[] y,T[] values,int[] indices,int start,int end,int depth)
+        {
+            this.x = x;
+            this.y = y;
+            this.values = values;
+            this.indices = indices;
+            this.start = start;
+            this.end = end;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute()
+        {
+            result = build( start , end , depth );
+        }
+
+        private TreeNode<T> build(int first,int last,int level) 
+        {
+            final int count = last - first;
+            if ( count == 0 ) {
+                return null;
+            }
+            if ( count == 1 ) 
+            {
+                final int index = indices[first];
+                return new SingleValueLeafNode<>( x[index] , y[index] , values[index] );
+            }
+
+            final double[] keys = ( level % 2 ) == 0 ? x : y;
+
+            // select median and partition range into values < split / >= split
+            select( keys , first , last , first + count/2 );
+            double split = keys[ indices[ first + count/2 ] ];
+            int middle = partition( keys , first , last , split );
+            if ( middle == first ) 
+            {
+                // more than half of the values share the smallest key , split at the next larger key instead
+                double nextKey = Double.POSITIVE_INFINITY;
+                for ( int i = first ; i < last ; i++ ) 
+                {
+                    final double key = keys[ indices[i] ];
+                    if ( key > split && key < nextKey ) {
+                        nextKey = key;
+                    }
+                }
+
+                if ( nextKey == Double.POSITIVE_INFINITY ) 
+                {
+                    // all keys on this axis are equal
+                    if ( allEqual( ( level % 2 ) == 0 ? y : x , first , last ) ) {
+                        return createMultiValuedLeaf( first , last );
+                    }
+                } else {
+                    split = nextKey;
+                    middle = partition( keys , first , last , split );
+                }
+            }
+
+            final NonLeafNode<T> node = new NonLeafNode<>( split );
+            if ( count >= PARALLEL_BUILD_THRESHOLD ) 
+            {
+                final BulkBuilder<T> left = new BulkBuilder<>( x , y , values , indices , first , middle , level+1 );
+                final BulkBuilder<T> right = new BulkBuilder<>( x , y , values , indices , middle , last , level+1 );
+                invokeAll( left , right );
+                node.left = left.result;
+                node.right = right.result;
+            } 
+            else 
+            {
+                node.left = build( first , middle , level+1 );
+                node.right = build( middle , last , level+1 );
+            }
+            return node;
+        }
+
+        private boolean allEqual(double[] keys,int first,int last) 
+        {
+            final double key = keys[ indices[first] ];
+            for ( int i = first+1 ; i < last ; i++ ) 
+            {
+                if ( keys[ indices[i] ] != key ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private TreeNode<T> createMultiValuedLeaf(int first,int last) 
+        {
+            final int index = indices[first];
+            final MultiValuedLeafNode<T> leaf = new MultiValuedLeafNode<>( x[index] , y[index] , values[index] );
+            for ( int i = first+1 ; i < last ; i++ ) {
+                leaf.values.add( values[ indices[i] ] );
+            }
+            return leaf;
+        }
+
+        // moves all indices with keys < split to the start of the range and returns the first index with key >= split
+        private int partition(double[] keys,int first,int last,double split) 
+        {
+            int store = first;
+            for ( int i = first ; i < last ; i++ ) 
+            {
+                if ( keys[ indices[i] ] < split ) {
+                    swap( i , store++ );
+                }
+            }
+            return store;
+        }
+
+        // quickselect , places the index with the n-th smallest key at position n
+        private void select(double[] keys,int first,int last,int n) 
+        {
+            int lo = first;
+            int hi = last - 1;
+            while ( lo < hi ) 
+            {
+                final double pivot = keys[ indices[ ( lo + hi ) >>> 1 ] ];
+                int i = lo;
+                int j = hi;
+                while ( i <= j ) 
+                {
+                    while ( keys[ indices[i] ] < pivot ) {
+                        i++;
+                    }
+                    while ( keys[ indices[j] ] > pivot ) {
+                        j--;
+                    }
+                    if ( i <= j ) {
+                        swap( i++ , j-- );
+                    }
+                }
+                if ( n <= j ) {
+                    hi = j;
+                } else if ( n >= i ) {
+                    lo = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void swap(int i,int j) 
+        {
+            final int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
         }
-        root.add( x,y , 0 , new SingleValueLeafNode<>( x , y , value) );
     }
 
     public void visitApproxNearestNeighbours(double x,double y,double radius,int maxCount,ValueVisitor<T> visitor) {
@@ -818,6 +1186,25 @@ public final class KDTree<T>
         }
     }
 
+    /**
+     * Visits all values located inside a rectangle.
+     * 
+     * <p>Only subtrees that overlap the rectangle are visited.</p>
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @param visitor
+     */
+    public void visitRange(double minX,double minY,double maxX,double maxY,ValueVisitor<T> visitor) 
+    {
+        final TreeNode<T> node = root;
+        if ( node != null ) {
+            node.visitRange( 0 , minX , minY , maxX , maxY , visitor );
+        }
+    }
+
     public void visitPreOrder(KDLeafVisitor<T> visitor) {
         if ( root != null ) {
             root.visitPreOrder( visitor );
@@ -15,21 +15,49 @@
  */
 package de.codesourcery.flocking;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.concurrent.CountDownLatch;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.LWJGLException;
+import org.lwjgl.input.Mouse;
+import org.lwjgl.opengl.ARBDrawInstanced;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.ARBMapBufferRange;
+import org.lwjgl.opengl.ARBSync;
+import org.lwjgl.opengl.ContextCapabilities;
 import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.DisplayMode;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
 import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GLContext;
+import org.lwjgl.opengl.GLSync;
 
-import de.codesourcery.flocking.World.IBoidVisitor;
+import de.codesourcery.flocking.World.IBoidStateVisitor;
 
 /**
  * Simulation renderer that uses OpenGL/LWJGL for rendering.
  *
+ * <p>If the OpenGL implementation supports instanced arrays (OpenGL 3.3 or the <code>ARB_instanced_arrays</code> and
+ * <code>ARB_draw_instanced</code> extensions , Mesa's llvmpipe software renderer does) only the location and heading of each 
+ * boid get uploaded (3 floats , copied as-is from worlds that hold render data , see {@link World#enableRenderData()}) 
+ * and a vertex shader turns them into arrows. Otherwise 
+ * arrow vertices are computed on the CPU.</p>
+ * <p>Per-frame data is streamed through a {@link StreamingBuffer}.</p>
+ * <p>Worlds with more than {@link DensityMap#DENSITY_THRESHOLD} boids per pixel are drawn as a {@link DensityMap} 
+ * that gets uploaded as a texture.</p>
+ * <p>The mouse wheel zooms , dragging with the left mouse button pans and clicking the right mouse button shows the whole model again.
+ * When zoomed in only visible boids are fetched from the world's spatial index (see {@link Viewport#collectVisibleBoids(World, BoidStore)}).</p>
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public class LWJGLRenderer implements IRenderer {
@@ -37,15 +65,75 @@ public class LWJGLRenderer implements IRenderer {
     private double xInc;
     private double yInc;
 
-    // VBOs 
-    // (only re-allocated if simulation size/population count is changed)
-    private MyIntBuffer vertexBuffer;
-    private MyIntBuffer indexBuffer;
-    
-    private final Object WORLD_LOCK = new Object();
+    // model coordinates displayed at the bottom-left corner
+    private double originX;
+    private double originY;
+
+    // zoom factor per mouse wheel step
+    private static final double ZOOM_STEP = 1.25;
+
+    // only accessed by the rendering thread
+    private Viewport viewport = Viewport.FULL;
+
+    // visible boids when zoomed in , created on demand
+    private BoidStore visibleBoids;
+
+    // per-frame vertex data (CPU path) or per-boid attributes (instanced rendering)
+    private StreamingBuffer streamingBuffer;
+
+    // instanced rendering , program is 0 if not supported
+    private int program;
+    private int scaleUniform;
+    private int originUniform;
+    private int templateBuffer;
+    private boolean useARBInstancing;
+
+    // density map rendering , set up on demand
+    private DensityMap densityMap;
+    private int[] densityPixels;
+    private IntBuffer densityUploadBuffer;
+    private int densityTexture;
+    private int densityTextureWidth;
+    private int densityTextureHeight;
+
+    // arrow vertices , x along the heading and y perpendicular to it (see drawBoid())
+    private static final float[] ARROW_TEMPLATE = { 0 , (float) ARROW_WIDTH , (float) ARROW_LENGTH , 0 , 0 , (float) -ARROW_WIDTH };
+
+    private static final String VERTEX_SHADER = 
+            "#version 120\n"+
+            "attribute vec2 vertex;\n"+          // arrow template vertex
+            "attribute vec3 boid;\n"+            // per instance: render record (see World#RENDER_RECORD_SIZE)
+            "uniform vec2 scale;\n"+             // model to screen coordinates
+            "uniform vec2 origin;\n"+            // model coordinates at the bottom-left corner
+            "\n"+
+            "vec2 direction(float a) {\n"+       // inverse of World#encodeHeading() , not normalized
+            "  if ( a < 1.0 ) return vec2( 1.0 - a , a );\n"+
+            "  if ( a < 2.0 ) return vec2( 1.0 - a , 2.0 - a );\n"+
+            "  if ( a < 3.0 ) return vec2( a - 3.0 , 2.0 - a );\n"+
+            "  return vec2( a - 3.0 , a - 4.0 );\n"+
+            "}\n"+
+            "\n"+
+            "void main() {\n"+
+            "  vec2 heading = normalize( direction( boid.z ) );\n"+
+            "  vec2 rotated = vec2( heading.y , -heading.x );\n"+
+            "  vec2 location = boid.xy + vertex.x * heading + vertex.y * rotated;\n"+
+            "  gl_Position = gl_ProjectionMatrix * vec4( ( location - origin ) * scale , 0.0 , 1.0 );\n"+
+            "}\n";
+
+    private static final String FRAGMENT_SHADER = 
+            "#version 120\n"+
+            "void main() {\n"+
+            "  gl_FragColor = vec4( 0.5 , 0.5 , 1.0 , 1.0 );\n"+
+            "}\n";
     
-    // @GuardedBy( WORLD_LOCK )
-    private World currentWorld = null;
+    // hands worlds from render() to the rendering thread
+    private final TripleBuffer<World> worlds = new TripleBuffer<World>() 
+    {
+        @Override
+        protected void discard(World world) {
+            world.release();
+        }
+    };
     
     private volatile boolean destroy = false;
     
@@ -82,18 +170,20 @@ public class LWJGLRenderer implements IRenderer {
         Display.create();
 
         initGL(); 
+        streamingBuffer = new StreamingBuffer();
+        setupInstancing();
         
         while (!Display.isCloseRequested() && ! destroy ) 
         {
             if ( Display.wasResized() ) {
                 initGL();
             }
+            processMouseEvents();
 
-            synchronized ( WORLD_LOCK ) 
-            {
-                if ( currentWorld != null ) {
-                    renderWorld( currentWorld );
-                }
+            // the world stays valid until the next call to acquire()
+            final World world = worlds.acquire();
+            if ( world != null ) {
+                renderWorld( world );
             }
 
             Display.update();
@@ -101,17 +191,27 @@ public class LWJGLRenderer implements IRenderer {
         }
 
         System.out.println("Deleting VBOs");
-    	if ( vertexBuffer != null ) {
-    		vertexBuffer.deleteBuffer();
+        streamingBuffer.delete();
+
+    	if ( program != 0 ) 
+    	{
+    	    GL20.glDeleteProgram( program );
+    	    GL15.glDeleteBuffers( templateBuffer );
+    	}
+
+    	if ( densityMap != null ) 
+    	{
+    	    densityMap.dispose();
+    	    GL11.glDeleteTextures( densityTexture );
     	}
-    	
-    	if ( indexBuffer != null ) {
-    		indexBuffer.deleteBuffer();
-    	}    	
     	
         System.out.println("Destroying OpenGL rendering context.");
         Display.destroy();
         
+        if ( destroy ) {
+            // render() is not invoked while destroy() waits for us
+            worlds.clear();
+        }
         destroyLatch.countDown();
     }
     
@@ -121,6 +221,30 @@ public class LWJGLRenderer implements IRenderer {
         Display.setTitle( title );
     }
 
+    private void processMouseEvents() 
+    {
+        final double width = Display.getWidth();
+        final double height = Display.getHeight();
+        while ( Mouse.next() ) 
+        {
+            if ( Mouse.getEventButton() == 1 && Mouse.getEventButtonState() ) {
+                viewport = Viewport.FULL;
+            }
+
+            final int wheel = Mouse.getEventDWheel();
+            if ( wheel != 0 ) 
+            {
+                final double factor = wheel > 0 ? ZOOM_STEP : 1 / ZOOM_STEP;
+                viewport = viewport.zoom( factor , Mouse.getEventX() / width , Mouse.getEventY() / height );
+            }
+
+            if ( Mouse.isButtonDown( 0 ) && ( Mouse.getEventDX() != 0 || Mouse.getEventDY() != 0 ) ) {
+                // move the model along with the mouse (Y axis points up , just like model Y coordinates)
+                viewport = viewport.pan( -Mouse.getEventDX() / width , -Mouse.getEventDY() / height );
+            }
+        }
+    }
+
     private void initGL() 
     {
         GL11.glMatrixMode(GL11.GL_PROJECTION);
@@ -130,11 +254,89 @@ public class LWJGLRenderer implements IRenderer {
 //        GL11.glMatrixMode(GL11.GL_MODELVIEW);
     }
 
+    private void setupInstancing() 
+    {
+        final ContextCapabilities caps = GLContext.getCapabilities();
+        final boolean arb = ! caps.OpenGL33 && caps.OpenGL20 && caps.GL_ARB_instanced_arrays && caps.GL_ARB_draw_instanced;
+        if ( ! caps.OpenGL33 && ! arb ) 
+        {
+            System.out.println("Instanced rendering not supported , computing vertices on the CPU.");
+            return;
+        }
+
+        final int vertexShader = compileShader( GL20.GL_VERTEX_SHADER , VERTEX_SHADER );
+        final int fragmentShader = compileShader( GL20.GL_FRAGMENT_SHADER , FRAGMENT_SHADER );
+        if ( vertexShader == 0 || fragmentShader == 0 ) {
+            System.out.println("Failed to compile shaders , computing vertices on the CPU.");
+            return;
+        }
+
+        final int newProgram = GL20.glCreateProgram();
+        GL20.glAttachShader( newProgram , vertexShader );
+        GL20.glAttachShader( newProgram , fragmentShader );
+        // compatibility profiles only draw if attribute 0 is an enabled array
+        GL20.glBindAttribLocation( newProgram , 0 , "vertex" );
+        GL20.glBindAttribLocation( newProgram , 1 , "boid" );
+        GL20.glLinkProgram( newProgram );
+        GL20.glDeleteShader( vertexShader );
+        GL20.glDeleteShader( fragmentShader );
+
+        if ( GL20.glGetProgram( newProgram , GL20.GL_LINK_STATUS ) == GL11.GL_FALSE ) 
+        {
+            System.out.println("Failed to link shader program: "+GL20.glGetProgramInfoLog( newProgram , 4096 ) );
+            GL20.glDeleteProgram( newProgram );
+            return;
+        }
+
+        final FloatBuffer template = BufferUtils.createFloatBuffer( ARROW_TEMPLATE.length );
+        template.put( ARROW_TEMPLATE ).flip();
+        templateBuffer = GL15.glGenBuffers();
+        GL15.glBindBuffer( GL15.GL_ARRAY_BUFFER , templateBuffer );
+        GL15.glBufferData( GL15.GL_ARRAY_BUFFER , template , GL15.GL_STATIC_DRAW );
+        GL15.glBindBuffer( GL15.GL_ARRAY_BUFFER , 0 );
+
+        scaleUniform = GL20.glGetUniformLocation( newProgram , "scale" );
+        originUniform = GL20.glGetUniformLocation( newProgram , "origin" );
+        useARBInstancing = arb;
+        program = newProgram;
+        System.out.println("Using instanced rendering"+( arb ? " (ARB extensions)." : "." ) );
+    }
+
+    private static int compileShader(int type,String source) 
+    {
+        final int shader = GL20.glCreateShader( type );
+        GL20.glShaderSource( shader , source );
+        GL20.glCompileShader( shader );
+        if ( GL20.glGetShader( shader , GL20.GL_COMPILE_STATUS ) == GL11.GL_FALSE ) 
+        {
+            System.out.println("Failed to compile shader: "+GL20.glGetShaderInfoLog( shader , 4096 ) );
+            GL20.glDeleteShader( shader );
+            return 0;
+        }
+        return shader;
+    }
+
     private void renderWorld(World world) 
     {
+        final Viewport view = viewport;
+        if ( DensityMap.isDense( world , view , Display.getWidth() , Display.getHeight() ) ) {
+            renderDensityMap( world , view );
+            return;
+        }
+
         final double modelMax = world.getSimulationParameters().modelMax;
-        xInc = Display.getWidth() / modelMax;
-        yInc = Display.getHeight() / modelMax;
+        xInc = Display.getWidth() / view.getSize( modelMax );
+        yInc = Display.getHeight() / view.getSize( modelMax );
+        originX = view.getMinX( modelMax );
+        originY = view.getMinY( modelMax );
+
+        // number of visible boids , -1 if all boids need to be drawn
+        final int visibleCount = view.isFullView() ? -1 : collectVisibleBoids( world , view );
+
+        if ( program != 0 ) {
+            renderWorldInstanced( world , visibleCount );
+            return;
+        }
 
         GL11.glEnable(GL11.GL_DEPTH_TEST);
         GL11.glDepthMask(true);
@@ -146,84 +348,181 @@ public class LWJGLRenderer implements IRenderer {
         
         GL11.glColor3f(0.5f, 0.5f, 1.0f);
 
-        GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);  
-        
-        final int triangleCount = world.getPopulationCount();
+        final int triangleCount = visibleCount == -1 ? world.getPopulationCount() : visibleCount;
+        if ( triangleCount == 0 ) {
+            return;
+        }
 
-        // setup vertex data       
-        final int vertexArrayLen = triangleCount * 3 * 2 ; // one triangle = 3 vertices * 2 int's per vertex
-        final MyIntBuffer vertexBuffer = getVertexBuffer( vertexArrayLen ); 
-        
-        final IntBuffer vertexIntBuffer = vertexBuffer.getBuffer();
-        final IBoidVisitor visitor = new IBoidVisitor() {
+        // setup vertex data (one triangle = 3 vertices * 2 int's per vertex)
+        final IntBuffer vertexIntBuffer = streamingBuffer.map( triangleCount * 3 * 2 * 4 ).asIntBuffer();
+        final IBoidStateVisitor visitor = new IBoidStateVisitor() {
 
             @Override
-            public void visit(Boid boid)
+            public void visit(double x,double y,double velocityX,double velocityY)
             {
-                drawBoid( boid , vertexIntBuffer );
+                drawBoid( x , y , velocityX , velocityY , vertexIntBuffer );
             }
         };
-        world.visitAllBoids( visitor );
+        if ( visibleCount == -1 ) {
+            world.visitAllBoids( visitor );
+        } else {
+            visitVisibleBoids( visibleCount , visitor );
+        }
+        streamingBuffer.unmap();
 
-        vertexBuffer.rewind();      
-      
-        GL15.glBindBuffer( GL15.GL_ARRAY_BUFFER , vertexBuffer.getHandle() );
-        GL15.glBufferData( GL15.GL_ARRAY_BUFFER , vertexBuffer.getBuffer() , GL15.GL_DYNAMIC_DRAW);
+        GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);  
         GL11.glVertexPointer(2, GL11.GL_INT, 0, 0);        
+        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0 , triangleCount*3 );
+        streamingBuffer.fence();
 
-        // setup index data
-        MyIntBuffer indexBuffer = getIndexBuffer( triangleCount*3 );      
-        GL15.glBindBuffer( GL15.GL_ELEMENT_ARRAY_BUFFER , indexBuffer.getHandle() );
-        GL15.glBufferData( GL15.GL_ELEMENT_ARRAY_BUFFER , indexBuffer.getBuffer() , GL15.GL_STATIC_DRAW );
-        
-        GL11.glDrawElements(GL11.GL_TRIANGLES, triangleCount*3 , GL11.GL_UNSIGNED_INT, 0);
-        
         GL15.glBindBuffer( GL15.GL_ARRAY_BUFFER , 0 );
-        GL15.glBindBuffer( GL15.GL_ELEMENT_ARRAY_BUFFER , 0 );
-        
         GL11.glDisableClientState(GL11.GL_VERTEX_ARRAY);
         
         GL11.glEnable(GL11.GL_DEPTH_TEST);
         GL11.glDepthMask(true);        
     }
 
-    private MyIntBuffer getVertexBuffer(int elementCount) 
+    private int collectVisibleBoids(World world,Viewport view) 
     {
-        if ( vertexBuffer == null || vertexBuffer.getSize() != elementCount ) 
-        {
-        	if ( vertexBuffer != null ) {
-        		vertexBuffer.deleteBuffer();
-        	}
-            vertexBuffer = new MyIntBuffer( elementCount );
+        if ( visibleBoids == null ) {
+            visibleBoids = new BoidStore( 0 );
         }
-        vertexBuffer.rewind();
-        return vertexBuffer;
+        return view.collectVisibleBoids( world , visibleBoids );
     }
-    
-    private MyIntBuffer getIndexBuffer(int vertexCount) 
+
+    private void visitVisibleBoids(int count,IBoidStateVisitor visitor) 
     {
-        if ( indexBuffer == null || indexBuffer.getSize() != vertexCount ) 
+        final BoidStore boids = visibleBoids;
+        for ( int i = 0 ; i < count ; i++ ) {
+            visitor.visit( boids.getX( i ) , boids.getY( i ) , boids.getVelocityX( i ) , boids.getVelocityY( i ) );
+        }
+    }
+
+    private void renderDensityMap(World world,Viewport view) 
+    {
+        final int width = Display.getWidth();
+        final int height = Display.getHeight();
+
+        if ( densityMap == null ) 
         {
-        	if ( indexBuffer != null ) {
-        		indexBuffer.deleteBuffer();
-        	}        	
-            indexBuffer = new MyIntBuffer( vertexCount );
-            IntBuffer buffer = indexBuffer.getBuffer();
-            for ( int i = 0 ; i < vertexCount ; i+= 3 ) {
-                buffer.put( i );
-                buffer.put( i+1 );
-                buffer.put( i+2 );
+            densityMap = new DensityMap( Runtime.getRuntime().availableProcessors() );
+            densityTexture = GL11.glGenTextures();
+            GL11.glBindTexture( GL11.GL_TEXTURE_2D , densityTexture );
+            GL11.glTexParameteri( GL11.GL_TEXTURE_2D , GL11.GL_TEXTURE_MIN_FILTER , GL11.GL_NEAREST );
+            GL11.glTexParameteri( GL11.GL_TEXTURE_2D , GL11.GL_TEXTURE_MAG_FILTER , GL11.GL_NEAREST );
+        }
+
+        if ( densityPixels == null || densityPixels.length < width * height ) 
+        {
+            densityPixels = new int[ width * height ];
+            densityUploadBuffer = BufferUtils.createIntBuffer( width * height );
+        }
+
+        // rows start at model y = 0 , just like texture rows and the projection's Y axis
+        densityMap.render( world , view , width , height , densityPixels , 0 );
+        densityUploadBuffer.clear();
+        densityUploadBuffer.put( densityPixels , 0 , width * height ).flip();
+
+        GL11.glDisable(GL11.GL_DEPTH_TEST);
+        GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT );
+
+        GL11.glBindTexture( GL11.GL_TEXTURE_2D , densityTexture );
+        if ( width != densityTextureWidth || height != densityTextureHeight ) 
+        {
+            GL11.glTexImage2D( GL11.GL_TEXTURE_2D , 0 , GL11.GL_RGBA8 , width , height , 0 , GL12.GL_BGRA , GL12.GL_UNSIGNED_INT_8_8_8_8_REV , densityUploadBuffer );
+            densityTextureWidth = width;
+            densityTextureHeight = height;
+        } else {
+            GL11.glTexSubImage2D( GL11.GL_TEXTURE_2D , 0 , 0 , 0 , width , height , GL12.GL_BGRA , GL12.GL_UNSIGNED_INT_8_8_8_8_REV , densityUploadBuffer );
+        }
+
+        GL11.glEnable( GL11.GL_TEXTURE_2D );
+        GL11.glColor3f( 1 , 1 , 1 );
+        GL11.glBegin( GL11.GL_QUADS );
+        GL11.glTexCoord2f( 0 , 0 );
+        GL11.glVertex2f( 0 , 0 );
+        GL11.glTexCoord2f( 1 , 0 );
+        GL11.glVertex2f( width , 0 );
+        GL11.glTexCoord2f( 1 , 1 );
+        GL11.glVertex2f( width , height );
+        GL11.glTexCoord2f( 0 , 1 );
+        GL11.glVertex2f( 0 , height );
+        GL11.glEnd();
+        GL11.glDisable( GL11.GL_TEXTURE_2D );
+        GL11.glBindTexture( GL11.GL_TEXTURE_2D , 0 );
+    }
+
+    private void renderWorldInstanced(World world,int visibleCount) 
+    {
+        final int count = visibleCount == -1 ? world.getPopulationCount() : visibleCount;
+
+        GL11.glDisable(GL11.GL_DEPTH_TEST);
+        GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT );
+        if ( count == 0 ) {
+            return;
+        }
+
+        // per-boid attributes
+        final FloatBuffer data = streamingBuffer.map( count * World.RENDER_RECORD_SIZE * 4 ).asFloatBuffer();
+        final FloatBuffer renderData = world.getRenderData();
+        final IBoidStateVisitor visitor = new IBoidStateVisitor() {
+
+            @Override
+            public void visit(double x,double y,double velocityX,double velocityY)
+            {
+                data.put( (float) x ).put( (float) y ).put( World.encodeHeading( velocityX , velocityY ) );
             }
+        };
+        if ( visibleCount != -1 ) {
+            visitVisibleBoids( visibleCount , visitor );
+        } 
+        else if ( renderData != null ) 
+        {
+            // already written by the simulation
+            data.put( renderData );
+        } 
+        else {
+            world.visitAllBoids( visitor );
+        }
+        streamingBuffer.unmap();
+
+        GL20.glUseProgram( program );
+        GL20.glUniform2f( scaleUniform , (float) xInc , (float) yInc );
+        GL20.glUniform2f( originUniform , (float) originX , (float) originY );
+
+        // streaming buffer is still bound
+        GL20.glEnableVertexAttribArray( 1 );
+        GL20.glVertexAttribPointer( 1 , 3 , GL11.GL_FLOAT , false , 0 , 0 );
+
+        GL15.glBindBuffer( GL15.GL_ARRAY_BUFFER , templateBuffer );
+        GL20.glEnableVertexAttribArray( 0 );
+        GL20.glVertexAttribPointer( 0 , 2 , GL11.GL_FLOAT , false , 0 , 0 );
+
+        if ( useARBInstancing ) 
+        {
+            ARBInstancedArrays.glVertexAttribDivisorARB( 1 , 1 );
+            ARBDrawInstanced.glDrawArraysInstancedARB( GL11.GL_TRIANGLES , 0 , 3 , count );
+            ARBInstancedArrays.glVertexAttribDivisorARB( 1 , 0 );
         } 
-        indexBuffer.rewind();
-        return indexBuffer;
+        else 
+        {
+            GL33.glVertexAttribDivisor( 1 , 1 );
+            GL31.glDrawArraysInstanced( GL11.GL_TRIANGLES , 0 , 3 , count );
+            GL33.glVertexAttribDivisor( 1 , 0 );
+        }
+        streamingBuffer.fence();
+
+        GL20.glDisableVertexAttribArray( 1 );
+        GL20.glDisableVertexAttribArray( 0 );
+        GL15.glBindBuffer( GL15.GL_ARRAY_BUFFER , 0 );
+        GL20.glUseProgram( 0 );
     }
 
-    private void drawBoid(Boid b,IntBuffer buffer)
+    private void drawBoid(double centerX,double centerY,double velocityX,double velocityY,IntBuffer buffer)
     {
         // create vector perpendicular to heading
-        double headingNormalizedX = b.getVelocity().x;
-        double headingNormalizedY = b.getVelocity().y;
+        double headingNormalizedX = velocityX;
+        double headingNormalizedY = velocityY;
 
         double d = headingNormalizedX*headingNormalizedX + headingNormalizedY*headingNormalizedY;
         if ( d > 0.00001 ) {
@@ -246,17 +545,14 @@ public class LWJGLRenderer implements IRenderer {
          * p1 +----+----+ p2
          *        center
          */
-        final double centerX = b.getLocation().x;
-        final double centerY = b.getLocation().y;
-
-        int x1 = round( (centerX + rotatedX * ARROW_WIDTH) * xInc ); 
-        int y1 = round( ( centerY + rotatedY * ARROW_WIDTH ) * yInc );
+        int x1 = round( (centerX + rotatedX * ARROW_WIDTH - originX) * xInc ); 
+        int y1 = round( ( centerY + rotatedY * ARROW_WIDTH - originY ) * yInc );
 
-        int x2= round( (centerX + headingNormalizedX*ARROW_LENGTH) * xInc );
-        int y2 = round( (centerY + headingNormalizedY*ARROW_LENGTH) * yInc );                
+        int x2= round( (centerX + headingNormalizedX*ARROW_LENGTH - originX) * xInc );
+        int y2 = round( (centerY + headingNormalizedY*ARROW_LENGTH - originY) * yInc );                
 
-        int x3= round( (centerX + rotatedX * ARROW_WIDTH*-1 )*xInc);
-        int y3= round( (centerY + rotatedY * ARROW_WIDTH*-1 )*yInc);
+        int x3= round( (centerX + rotatedX * ARROW_WIDTH*-1 - originX)*xInc);
+        int y3= round( (centerY + rotatedY * ARROW_WIDTH*-1 - originY)*yInc);
 
         buffer.put(x1);
         buffer.put(y1);
@@ -268,52 +564,173 @@ public class LWJGLRenderer implements IRenderer {
         buffer.put(y3);
     }
     
-    protected static final class MyIntBuffer {
-        
-        private final int size;
-        private final IntBuffer buffer;
-        private final int handle;
-        
-        public MyIntBuffer(int elementCount) 
+    /**
+     * Streams per-frame data to the GPU without stalling on buffers that are still in use.
+     * 
+     * <p>Cycles through a ring of {@link #RING_SIZE} buffer objects that are written 
+     * using <code>glMapBufferRange()</code>. If fences are supported , the buffer is mapped unsynchronized
+     * after waiting (usually not at all) for the fence placed when it was last drawn from. Otherwise the buffer's 
+     * contents are invalidated on mapping , letting the driver orphan the old storage. Without 
+     * <code>glMapBufferRange()</code> data gets uploaded with <code>glBufferData()</code>.</p>
+     * <p>Must only be used by the thread owning the OpenGL context.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class StreamingBuffer 
+    {
+        public static final int RING_SIZE = 3;
+
+        // max. time to wait for a fence
+        private static final long FENCE_TIMEOUT_NANOS = 1000L * 1000 * 1000;
+
+        private final int[] handles = new int[ RING_SIZE ];
+        private final long[] capacities = new long[ RING_SIZE ];
+        private final GLSync[] fences = new GLSync[ RING_SIZE ];
+        private final ByteBuffer[] mappings = new ByteBuffer[ RING_SIZE ];
+
+        private final boolean coreMapping;
+        private final boolean coreSync;
+        private boolean mappingSupported;
+        private final boolean syncSupported;
+
+        // used if mapping is not supported
+        private ByteBuffer uploadBuffer;
+
+        private int current = -1;
+
+        public StreamingBuffer() 
         {
-            this.size = elementCount;
-            buffer = BufferUtils.createIntBuffer( elementCount );
-            
-            final IntBuffer buffer = BufferUtils.createIntBuffer(1);
-            GL15.glGenBuffers( buffer );
-            handle = buffer.get(0);            
+            final ContextCapabilities caps = GLContext.getCapabilities();
+            coreMapping = caps.OpenGL30;
+            coreSync = caps.OpenGL32;
+            mappingSupported = caps.OpenGL30 || caps.GL_ARB_map_buffer_range;
+            syncSupported = mappingSupported && ( caps.OpenGL32 || caps.GL_ARB_sync );
+
+            for ( int i = 0 ; i < RING_SIZE ; i++ ) {
+                handles[i] = GL15.glGenBuffers();
+            }
+            System.out.println("Streaming vertex data using "+
+                    ( syncSupported ? "unsynchronized mapping with fences." : mappingSupported ? "buffer invalidation." : "glBufferData()." ) );
         }
-        
-        public int getSize()
+
+        /**
+         * Binds the next buffer to <code>GL_ARRAY_BUFFER</code> and returns memory to write to.
+         * 
+         * @param bytes number of bytes to write
+         * @return buffer (in native byte order) with exactly <code>bytes</code> remaining
+         */
+        public ByteBuffer map(int bytes) 
+        {
+            current = ( current + 1 ) % RING_SIZE;
+            GL15.glBindBuffer( GL15.GL_ARRAY_BUFFER , handles[ current ] );
+
+            if ( ! mappingSupported ) 
+            {
+                if ( uploadBuffer == null || uploadBuffer.capacity() < bytes ) {
+                    uploadBuffer = BufferUtils.createByteBuffer( bytes );
+                }
+                uploadBuffer.clear().limit( bytes );
+                return uploadBuffer;
+            }
+
+            waitForFence( current );
+
+            if ( capacities[ current ] < bytes ) 
+            {
+                // leave some room for a growing population
+                final long capacity = bytes + bytes / 4;
+                GL15.glBufferData( GL15.GL_ARRAY_BUFFER , capacity , GL15.GL_STREAM_DRAW );
+                capacities[ current ] = capacity;
+            }
+
+            final int access = GL30.GL_MAP_WRITE_BIT | 
+                    ( syncSupported ? GL30.GL_MAP_UNSYNCHRONIZED_BIT | GL30.GL_MAP_INVALIDATE_RANGE_BIT : GL30.GL_MAP_INVALIDATE_BUFFER_BIT );
+            final ByteBuffer mapping;
+            if ( coreMapping ) {
+                mapping = GL30.glMapBufferRange( GL15.GL_ARRAY_BUFFER , 0 , bytes , access , mappings[ current ] );
+            } else {
+                mapping = ARBMapBufferRange.glMapBufferRange( GL15.GL_ARRAY_BUFFER , 0 , bytes , access , mappings[ current ] );
+            }
+
+            if ( mapping == null ) 
+            {
+                System.out.println("glMapBufferRange() failed , falling back to glBufferData().");
+                mappingSupported = false;
+                current--;
+                return map( bytes );
+            }
+            mappings[ current ] = mapping;
+            mapping.order( ByteOrder.nativeOrder() ).clear().limit( bytes );
+            return mapping;
+        }
+
+        /**
+         * Finishes writing to the buffer returned by {@link #map(int)} , the buffer stays bound.
+         */
+        public void unmap() 
         {
-            return size;
+            if ( mappingSupported ) {
+                GL15.glUnmapBuffer( GL15.GL_ARRAY_BUFFER );
+            } else {
+                uploadBuffer.rewind();
+                GL15.glBufferData( GL15.GL_ARRAY_BUFFER , uploadBuffer , GL15.GL_STREAM_DRAW );
+            }
         }
-        
-        public int getHandle()
+
+        /**
+         * Must be invoked after issuing all draw calls that read from the current buffer.
+         */
+        public void fence() 
         {
-            return handle;
+            if ( syncSupported ) {
+                fences[ current ] = coreSync ? GL32.glFenceSync( GL32.GL_SYNC_GPU_COMMANDS_COMPLETE , 0 ) : 
+                    ARBSync.glFenceSync( ARBSync.GL_SYNC_GPU_COMMANDS_COMPLETE , 0 );
+            }
         }
-        
-        public void rewind() {
-            buffer.rewind();
+
+        private void waitForFence(int index) 
+        {
+            final GLSync fence = fences[ index ];
+            if ( fence == null ) {
+                return;
+            }
+
+            final int result = coreSync ? GL32.glClientWaitSync( fence , GL32.GL_SYNC_FLUSH_COMMANDS_BIT , FENCE_TIMEOUT_NANOS ) : 
+                ARBSync.glClientWaitSync( fence , ARBSync.GL_SYNC_FLUSH_COMMANDS_BIT , FENCE_TIMEOUT_NANOS );
+            if ( result == GL32.GL_TIMEOUT_EXPIRED || result == GL32.GL_WAIT_FAILED ) {
+                // should never happen , make sure we don't overwrite data the GPU is still reading
+                GL11.glFinish();
+            }
+            deleteFence( index );
         }
-        
-        public IntBuffer getBuffer()
+
+        private void deleteFence(int index) 
         {
-            return buffer;
+            if ( fences[ index ] != null ) 
+            {
+                if ( coreSync ) {
+                    GL32.glDeleteSync( fences[ index ] );
+                } else {
+                    ARBSync.glDeleteSync( fences[ index ] );
+                }
+                fences[ index ] = null;
+            }
         }
-        
-        public void deleteBuffer() {
-        	GL15.glDeleteBuffers( handle );
+
+        public void delete() 
+        {
+            for ( int i = 0 ; i < RING_SIZE ; i++ ) 
+            {
+                deleteFence( i );
+                GL15.glDeleteBuffers( handles[i] );
+            }
         }
     }
 
     @Override
     public void render(World world) throws Exception
     {
-        synchronized(WORLD_LOCK) {
-            currentWorld = world;
-        }
+        worlds.publish( world );
     }
 
     @Override
@@ -15,7 +15,12 @@
  */
 package de.codesourcery.flocking;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
@@ -60,12 +65,76 @@ public class Main
 
 	private final Object RENDERER_LOCK  = new Object();
 
-	// GuardedBy( RENDERER_LOCK )
-	private IRenderer renderer=new SoftwareRenderer(false); // currently active renderer
+	// remote simulation to display (host[:port]) , null to run a local simulation
+	private String connectTo;
+
+	// port to publish the simulation on , -1 if it should not be published
+	private int servePort = -1;
+
+	// file to export the simulation to , null if it should not be exported
+	private File exportFile;
+
+	// directory to capture frames to , null if frames should not be captured
+	private File captureDirectory;
+
+	// whether capturing should slow down the simulation instead of skipping frames while all encoders are busy
+	private boolean captureEveryFrame;
+
+	// whether the Java2D renderer should draw on its own thread , see SoftwareRenderer
+	private boolean activeRendering;
+
+	// max. number of boids to export (max. population size that can be set in the controller window)
+	private static final int MAX_EXPORTED_BOIDS = 50000;
 
+	// GuardedBy( RENDERER_LOCK )
+	private IRenderer renderer; // currently active renderer
+
+	/**
+	 * Entry point.
+	 * 
+	 * @param args command-line arguments , <code>--offheap</code> runs the {@link OffHeapSimulation} , <code>--quantized</code>
+	 * runs it with 16-bit fixed-point state , <code>--snapshot &lt;file&gt;</code> starts from a world saved by {@link WorldSnapshot} , 
+	 * <code>--record &lt;file&gt;</code> records the simulation using a {@link FrameRecorder} , <code>--replay &lt;file&gt;</code> 
+	 * plays back a recording instead of running a simulation , <code>--serve &lt;port&gt;</code> publishes the simulation to remote 
+	 * viewers using a {@link WorldStreamServer} , <code>--connect &lt;host[:port]&gt;</code> displays a remote simulation instead of running one , 
+	 * <code>--export &lt;file&gt;</code> publishes the simulation to other processes using a {@link SharedMemoryExporter} , 
+	 * <code>--capture &lt;directory&gt;</code> writes each frame as a PNG file using a {@link FrameCapture} , frames are skipped while 
+	 * all encoders are busy unless <code>--capture-all</code> is given , which makes the simulation wait for the encoders instead , 
+	 * <code>--active-rendering</code> makes the {@link SoftwareRenderer} draw frames on its own thread instead of letting Swing repaint its window
+	 * @throws Exception
+	 */
 	public static void main(String[] args) throws Exception
 	{
-		new Main().run();
+		final List<String> options = Arrays.asList( args );
+		final Main main = new Main();
+		main.connectTo = option( options , "--connect" );
+		final String servePort = option( options , "--serve" );
+		main.servePort = servePort != null ? Integer.parseInt( servePort ) : -1;
+		main.exportFile = fileOption( options , "--export" );
+		main.captureDirectory = fileOption( options , "--capture" );
+		main.captureEveryFrame = options.contains( "--capture-all" );
+		main.activeRendering = options.contains( "--active-rendering" );
+		main.run( options.contains( "--offheap" ) || options.contains( "--quantized" ) , options.contains( "--quantized" ) , 
+				fileOption( options , "--snapshot" ) , fileOption( options , "--record" ) , fileOption( options , "--replay" ) );
+	}
+
+	private static File fileOption(List<String> options,String name) 
+	{
+		final String value = option( options , name );
+		return value != null ? new File( value ) : null;
+	}
+
+	private static String option(List<String> options,String name) 
+	{
+		final int index = options.indexOf( name );
+		if ( index == -1 ) {
+			return null;
+		}
+		if ( index+1 >= options.size() ) {
+			System.err.println(name+" requires a value");
+			System.exit(1);
+		}
+		return options.get( index+1 );
 	}
 
 	public Main() {
@@ -94,14 +163,52 @@ public class Main
 		ex.scheduleAtFixedRate( r , 0 , (int) Math.round(1000.0d / TARGET_FPS) , TimeUnit.MILLISECONDS );
 	}
 
-	private void run() throws Exception 
+	private void run(boolean offHeap,boolean quantized,File snapshot,File recording,File replay) throws Exception 
 	{
 		// initialize renderer
+		renderer = new SoftwareRenderer( false , true , activeRendering );
 		renderer.setup();
 
-		// setup simulation with default parameters
-		final SimulationParameters parameters = SimulationParameters.getDefaultParameters();
-		final ISimulation simulation = new Simulation( createWorld( parameters ) );
+		final FrameCapture capture;
+		if ( captureDirectory != null ) {
+			capture = new FrameCapture( captureDirectory , captureEveryFrame );
+			System.out.println("Capturing "+( captureEveryFrame ? "all frames" : "frames" )+" to "+captureDirectory);
+		} else {
+			capture = null;
+		}
+
+		// setup simulation with default parameters (or the snapshot's parameters)
+		final World initialWorld = snapshot != null ? loadSnapshot( snapshot ) : null;
+		final SimulationParameters parameters = initialWorld != null ? initialWorld.getSimulationParameters() : SimulationParameters.getDefaultParameters();
+		final ISimulation simulation;
+		if ( connectTo != null ) 
+		{
+			final String[] parts = connectTo.split(":");
+			final int port = parts.length > 1 ? Integer.parseInt( parts[1] ) : WorldStreamServer.DEFAULT_PORT;
+			System.out.println("Connecting to "+parts[0]+":"+port);
+			simulation = new WorldStreamClient( parts[0] , port );
+		}
+		else if ( replay != null ) 
+		{
+			System.out.println("Playing back "+replay);
+			simulation = new ReplaySimulation( replay );
+		}
+		else if ( offHeap ) 
+		{
+			if ( initialWorld != null ) {
+				System.out.println("Snapshots are not supported by the off-heap simulation , starting from a random world.");
+			}
+			System.out.println("Using off-heap simulation"+( quantized ? " (quantized)." : "." ) );
+			simulation = new OffHeapSimulation( parameters , new Random( System.currentTimeMillis() ) , Runtime.getRuntime().availableProcessors() , quantized );
+		} 
+		else 
+		{
+			final Simulation sim = new Simulation( initialWorld != null ? initialWorld : createWorld( parameters ) );
+			// triple-buffering: the world being simulated , the world being displayed and the one that just finished
+			// (plus the worlds waiting to be captured)
+			sim.setFrameArena( new FrameArena( 3 + ( capture != null ? capture.getBufferCount() : 0 ) ) );
+			simulation = sim;
+		}
 
 		// show window for adjusting simulation parameters
 		final ControllerWindow window = new ControllerWindow( parameters ) 
@@ -149,7 +256,7 @@ public class Main
 
 					if ( ! useOpenGL || newRenderer == null ) 
 					{
-						IRenderer tmp = new SoftwareRenderer(false);
+						IRenderer tmp = new SoftwareRenderer( false , true , activeRendering );
 						try {
 							tmp.setup();
 							System.out.println("Using Java2D renderer.");
@@ -163,6 +270,10 @@ public class Main
 					}
 					renderer = newRenderer;
 				}
+				if ( simulation instanceof Simulation ) {
+					// let the simulation write the data uploaded by the OpenGL renderer
+					((Simulation) simulation).setRenderDataEnabled( renderer instanceof LWJGLRenderer );
+				}
 				resetFPSCounter();
 			}
 
@@ -176,8 +287,54 @@ public class Main
 
 		window.setVisible( true );
 		
+		final FrameRecorder recorder;
+		if ( recording != null ) {
+			System.out.println("Recording to "+recording);
+			recorder = new FrameRecorder( recording );
+		} else {
+			recorder = null;
+		}
+
+		final WorldStreamServer server;
+		if ( servePort != -1 ) {
+			server = new WorldStreamServer( servePort );
+			System.out.println("Publishing simulation on port "+server.getPort());
+		} else {
+			server = null;
+		}
+
+		final SharedMemoryExporter exporter;
+		if ( exportFile != null ) {
+			exporter = new SharedMemoryExporter( exportFile , Math.max( MAX_EXPORTED_BOIDS , parameters.populationSize ) );
+			System.out.println("Exporting simulation to "+exportFile);
+		} else {
+			exporter = null;
+		}
+
 		// enter main loop (does not return until terminate == true )
-		mainLoop(simulation);
+		mainLoop(simulation,recorder,capture,server,exporter);
+
+		if ( server != null ) {
+			server.close();
+		}
+		if ( exporter != null ) {
+			exporter.close();
+		}
+		if ( simulation instanceof OffHeapSimulation ) {
+			((OffHeapSimulation) simulation).close();
+		}
+
+		if ( recorder != null ) 
+		{
+			recorder.close();
+			System.out.println("Recording finished: "+recorder);
+		}
+
+		if ( capture != null ) 
+		{
+			capture.close();
+			System.out.println("Capture finished: "+capture);
+		}
 
 		// dispose renderer
 		renderer.destroy();
@@ -189,7 +346,7 @@ public class Main
 		System.exit(0);		
 	}
 
-	private void mainLoop(final ISimulation simulation) throws Exception 
+	private void mainLoop(final ISimulation simulation,FrameRecorder recorder,FrameCapture capture,WorldStreamServer server,SharedMemoryExporter exporter) throws Exception 
 	{
 		final DecimalFormat DF = new DecimalFormat("####0.0#");
 
@@ -201,18 +358,37 @@ public class Main
 				World world = simulation.advance();
 				time1 += System.currentTimeMillis();
 
+				if ( recorder != null ) {
+					recorder.record( world );
+				}
+				if ( capture != null ) {
+					capture.capture( world );
+				}
+				if ( server != null ) {
+					server.publish( world );
+				}
+				if ( exporter != null ) {
+					exporter.export( world );
+				}
 
 				synchronized ( RENDERER_LOCK ) 
 				{
 					if ( ! terminate ) 
 					{  						
+						// renderer takes over our reference
 						renderer.render( world );
+					} else {
+						world.release();
 					}
 				}
 
 				if ( ! terminate && (fpsCount.incrementAndGet() % 100 ) == 0 ) 
 				{
-					System.out.println("Simulation time: "+time1+" ms");
+					if ( simulation instanceof Simulation ) {
+						System.out.println("Simulation time: "+time1+" ms ("+((Simulation) simulation).getWorkUnitController()+")");
+					} else {
+						System.out.println("Simulation time: "+time1+" ms");
+					}
 					final double deltaInSeconds = (System.currentTimeMillis()-fpsStartTime.get())/1000.0d;
 					final double avgFps = fpsCount.get() / deltaInSeconds;
 					synchronized ( RENDERER_LOCK ) {
@@ -223,14 +399,16 @@ public class Main
 		}
 	}
 
-	private World createWorld(SimulationParameters parameters) 
+	private static World loadSnapshot(File file) throws IOException 
 	{
-		final World world = new World(parameters); 
-
-		for ( int i = 0 ; i < parameters.populationSize ; i++ ) 
-		{
-			world.add( Simulation.createRandomBoid( parameters ) );
-		}
+		final long start = System.currentTimeMillis();
+		final World world = WorldSnapshot.load( file );
+		System.out.println("Loaded "+world.getPopulationCount()+" boids from "+file+" in "+(System.currentTimeMillis()-start)+" ms");
 		return world;
 	}
+
+	private World createWorld(SimulationParameters parameters) 
+	{
+		return Simulation.createRandomWorld( parameters , new Random( System.currentTimeMillis() ) );
+	}
 }
\ No newline at end of file
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Simulation that keeps all boid state outside of the Java heap.
+ *
+ * <p>Meant for populations of millions of boids where {@link Boid} objects and the kd-tree
+ * would dominate heap usage (and make full GCs take seconds). Worlds returned by {@link #advance()}
+ * keep their boids in a {@link BoidStore} , neighbours are found using a {@link SpatialGrid} and the
+ * flocking rules are evaluated by a {@link FlockingKernel}. Heap usage is (almost) independent of the population size.</p>
+ * <p>Note that direct memory is limited to the max. heap size by default , so large populations 
+ * require raising the limit (<code>-XX:MaxDirectMemorySize</code>).</p>
+ * 
+ * <p>Worlds are recycled through a triple-buffered {@link FrameArena} , so callers must release each world returned by 
+ * {@link #advance()} once they no longer use it (renderers do this automatically). Level-of-detail and adaptive work units 
+ * (see {@link Simulation}) are not supported.</p>
+ * <p>Boid state may optionally be stored as 16-bit fixed-point values (see {@link QuantizedBoidStore}) , trading
+ * precision for a four times smaller memory footprint.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class OffHeapSimulation implements ISimulation
+{
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int WORK_UNITS_PER_THREAD = 16;
+
+    private final Object WORLD_LOCK = new Object();
+
+    private final FrameArena arena;
+
+    // @GuardedBy( WORLD_LOCK )
+    private final SpatialGrid grid = new SpatialGrid();
+
+    // @GuardedBy( WORLD_LOCK )
+    private World currentWorld;
+
+    // @GuardedBy( WORLD_LOCK )
+    private SimulationParameters simulationParameters;
+
+    // latest parameters passed to setSimulationParameters() that 
+    // have not been picked up by advance() yet 
+    private final AtomicReference<SimulationParameters> pendingParameters = new AtomicReference<>();
+
+    private final int threadCount;
+
+    // null if this simulation runs single-threaded
+    private final WorkerPool workers;
+
+    public OffHeapSimulation(SimulationParameters parameters,Random rnd) 
+    {
+        this( parameters , rnd , THREAD_COUNT , false );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param parameters
+     * @param rnd random generator used to create the initial population
+     * @param threadCount number of threads to use
+     * @param quantized whether to store boid state as 16-bit fixed-point values
+     */
+    public OffHeapSimulation(SimulationParameters parameters,Random rnd,int threadCount,boolean quantized) 
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        this.threadCount = threadCount;
+        this.arena = new FrameArena( 3 , quantized ? FrameArena.Storage.OFF_HEAP_QUANTIZED : FrameArena.Storage.OFF_HEAP );
+
+        if ( threadCount > 1 ) 
+        {
+            this.workers = new WorkerPool( "simulation-worker" , threadCount );
+        } else {
+            this.workers = null;
+        }
+
+        this.simulationParameters = parameters;
+        this.currentWorld = arena.acquire( parameters , parameters.populationSize );
+        for ( int i = 0 ; i < parameters.populationSize ; i++ ) {
+            Simulation.setRandomBoid( currentWorld.getBoidStore() , i , parameters , rnd );
+        }
+        currentWorld.seal();
+    }
+
+    /**
+     * Returns the arena used to recycle worlds.
+     * 
+     * @return
+     */
+    public FrameArena getFrameArena()
+    {
+        return arena;
+    }
+
+    @Override
+    public void setSimulationParameters(SimulationParameters parameters)
+    {
+        if ( parameters == null ) {
+            throw new IllegalArgumentException("Parameters must not be NULL");
+        }
+        pendingParameters.set( parameters );
+    }
+
+    @Override
+    public World advance()
+    {
+        synchronized( WORLD_LOCK ) 
+        {
+            final SimulationParameters newParameters = pendingParameters.getAndSet( null );
+            if ( newParameters != null ) {
+                simulationParameters = newParameters;
+            }
+            final SimulationParameters parameters = simulationParameters;
+
+            final World oldWorld = currentWorld;
+            final int boidCount = Math.min( oldWorld.getPopulationCount() , parameters.populationSize );
+            final World newWorld = arena.acquire( parameters , parameters.populationSize );
+
+            final IBoidStore input = oldWorld.getBoidStore();
+            final IBoidStore output = newWorld.getBoidStore();
+
+            // boids beyond the population size are dropped (and thus excluded from the index) 
+            grid.build( input , boidCount , parameters.modelMax , parameters.neighbourRadius );
+
+            if ( workers == null ) 
+            {
+                final FlockingKernel kernel = new FlockingKernel();
+                for ( int pos = 0 ; pos < boidCount ; pos++ ) {
+                    kernel.advance( input , grid , grid.getBoid( pos ) , output , parameters );
+                }
+            } 
+            else 
+            {
+                // boids are processed in grid order so each work unit covers a compact area
+                final int unitCount = threadCount * WORK_UNITS_PER_THREAD;
+                final int unitSize = Math.max( 1 , ( boidCount + unitCount - 1 ) / unitCount );
+                final AtomicInteger nextUnit = new AtomicInteger();
+
+                workers.execute( threadCount , new Runnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        final FlockingKernel kernel = new FlockingKernel();
+                        int first;
+                        while ( ( first = nextUnit.getAndIncrement() * unitSize ) < boidCount ) 
+                        {
+                            final int last = Math.min( boidCount , first + unitSize );
+                            for ( int pos = first ; pos < last ; pos++ ) {
+                                kernel.advance( input , grid , grid.getBoid( pos ) , output , parameters );
+                            }
+                        }
+                    }
+                });
+            }
+
+            // add missing boids
+            if ( parameters.populationSize > boidCount ) 
+            {
+                final Random rnd = ThreadLocalRandom.current();
+                for ( int i = boidCount ; i < parameters.populationSize ; i++ ) {
+                    Simulation.setRandomBoid( output , i , parameters , rnd );
+                }
+            }
+            newWorld.seal();
+
+            currentWorld = newWorld;
+            oldWorld.release();
+            // the caller's reference
+            return newWorld.retain();
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     * 
+     * <p>The simulation may still be advanced afterwards but then runs on the calling thread only.</p>
+     */
+    public void close() 
+    {
+        if ( workers != null ) {
+            workers.shutdown();
+        }
+    }
+}
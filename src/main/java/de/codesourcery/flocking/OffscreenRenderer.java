@@ -0,0 +1,208 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+
+/**
+ * Renderer that draws into an offscreen {@link BufferedImage} instead of a window.
+ *
+ * <p>Works with <code>java.awt.headless=true</code> , so rendering can be tested and benchmarked (see {@link RenderBenchmark})
+ * on machines without a display. Draws boids using the same classes as the {@link SoftwareRenderer} ({@link ArrowPainter} , {@link TileRasterizer} 
+ * and {@link DensityMap}) , selected by {@link Mode}.</p>
+ * <p>Unlike the windowed renderers , {@link #render(World)} draws the world on the calling thread before returning 
+ * (and releases it right away).</p>
+ * 
+ * <p>This class is <b>not</b> thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class OffscreenRenderer implements IRenderer
+{
+    private static final Color BOID_COLOR = new Color(0.5f, 0.5f, 1.0f);
+
+    /**
+     * How boids get drawn.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static enum Mode 
+    {
+        /**
+         * One {@link Graphics2D#fillPolygon(int[], int[], int)} call per boid.
+         */
+        POLYGONS,
+        /**
+         * Parallel {@link TileRasterizer}.
+         */
+        TILES,
+        /**
+         * Always draw a {@link DensityMap}.
+         */
+        DENSITY,
+        /**
+         * {@link DensityMap} if {@link DensityMap#isDense(World, Viewport, int, int)} , tiles otherwise (what the {@link SoftwareRenderer} does).
+         */
+        AUTO;
+    }
+
+    private final int width;
+    private final int height;
+    private final Mode mode;
+    private final int threadCount;
+
+    private Viewport viewport = Viewport.FULL;
+
+    // created by setup()
+    private BufferedImage image;
+    private TileRasterizer rasterizer;
+    private DensityMap densityMap;
+
+    private final ArrowPainter arrows = new ArrowPainter();
+
+    public OffscreenRenderer(int width,int height,Mode mode)
+    {
+        this( width , height , mode , Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param mode
+     * @param threadCount number of threads to draw with , a value of 1 does all work on the calling thread
+     */
+    public OffscreenRenderer(int width,int height,Mode mode,int threadCount)
+    {
+        if ( width < 1 || height < 1 ) {
+            throw new IllegalArgumentException("Image size must be >= 1");
+        }
+        this.width = width;
+        this.height = height;
+        this.mode = mode;
+        this.threadCount = threadCount;
+    }
+
+    @Override
+    public void setup()
+    {
+        image = new BufferedImage( width , height , BufferedImage.TYPE_INT_RGB );
+        rasterizer = new TileRasterizer( threadCount );
+        densityMap = new DensityMap( threadCount );
+    }
+
+    /**
+     * Sets the part of the world to render.
+     * 
+     * @param viewport
+     */
+    public void setViewport(Viewport viewport)
+    {
+        this.viewport = viewport;
+    }
+
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Returns the image holding the last world passed to {@link #render(World)}.
+     * 
+     * @return image , only valid until the next call to {@link #render(World)}
+     */
+    public BufferedImage getImage()
+    {
+        return image;
+    }
+
+    @Override
+    public void render(World world)
+    {
+        try {
+            draw( world , image );
+        } 
+        finally {
+            world.release();
+        }
+    }
+
+    /**
+     * Draws a world into an image.
+     * 
+     * <p>Unlike {@link #render(World)} this method does not take over the caller's reference to the world.</p>
+     * 
+     * @param world
+     * @param target image of type {@link BufferedImage#TYPE_INT_RGB} whose size matches the size of this renderer
+     */
+    public void draw(World world,BufferedImage target) 
+    {
+        if ( target.getType() != BufferedImage.TYPE_INT_RGB || target.getWidth() != width || target.getHeight() != height ) {
+            throw new IllegalArgumentException("Target image needs to be a "+width+"x"+height+" TYPE_INT_RGB image");
+        }
+
+        final boolean dense = mode == Mode.DENSITY || ( mode == Mode.AUTO && DensityMap.isDense( world , viewport , width , height ) );
+        if ( mode == Mode.POLYGONS && ! dense ) {
+            drawPolygons( world , target );
+            return;
+        }
+
+        final int[] pixels = ( (DataBufferInt) target.getRaster().getDataBuffer() ).getData();
+        if ( dense ) {
+            densityMap.render( world , viewport , width , height , pixels , Color.BLACK.getRGB() );
+        } else {
+            rasterizer.rasterize( world , viewport , width , height , pixels , Color.BLACK.getRGB() , BOID_COLOR.getRGB() );
+        }
+    }
+
+    private void drawPolygons(World world,BufferedImage image) 
+    {
+        arrows.setViewport( viewport , world.getSimulationParameters().modelMax , width , height );
+
+        final Graphics2D graphics = image.createGraphics();
+        try 
+        {
+            graphics.setColor( Color.BLACK );
+            graphics.fillRect( 0 , 0 , width , height );
+            graphics.setColor( BOID_COLOR );
+            arrows.drawArrows( world , graphics );
+        } 
+        finally {
+            graphics.dispose();
+        }
+    }
+
+    @Override
+    public void displayTitle(String title)
+    {
+        // no window
+    }
+
+    @Override
+    public void destroy()
+    {
+        if ( rasterizer != null ) 
+        {
+            rasterizer.dispose();
+            densityMap.dispose();
+        }
+    }
+}
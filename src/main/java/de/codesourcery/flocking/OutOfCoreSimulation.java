@@ -0,0 +1,305 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Simulation for populations that do not fit into memory.
+ *
+ * <p>Boid state is kept in memory-mapped files (see {@link BoidStore#map(java.nio.channels.FileChannel, int)}) 
+ * with records sorted by tile. Tiles are the cells of a {@link SpatialGrid} and thus at least <code>neighbourRadius</code> wide, 
+ * so all neighbours of a tile's boids are located in the tile itself or in the surrounding tiles (the tile's halo).</p>
+ * <p>Each step performs two sequential passes over the data:</p>
+ * <ol>
+ *   <li>tiles are advanced in row-major order, writing new states to a temporary file. Only the rows of tiles
+ *   around the tile being processed need to be resident.</li>
+ *   <li>new states are sorted by tile (bucket sort) into the output file , since boids move less than one tile 
+ *   per step writes only touch a few tiles near the one being read.</li>
+ * </ol>
+ * <p>Eviction is left to the operating system's page cache , so step times degrade with disk bandwidth once the files exceed the
+ * available RAM instead of failing with an {@link OutOfMemoryError}.</p>
+ * 
+ * <p>The population size is fixed at construction time , changes to it are ignored.</p>
+ * <p>Worlds returned by {@link #advance()} are views of the mapped files , they stay valid until the next call to <code>advance()</code>
+ * and must not be used after {@link #close()} has been called.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class OutOfCoreSimulation implements ISimulation
+{
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int WORK_UNITS_PER_THREAD = 16;
+
+    private final Object WORLD_LOCK = new Object();
+
+    private final int populationSize;
+
+    private final File[] files = new File[3];
+    private final RandomAccessFile[] openFiles = new RandomAccessFile[3];
+
+    // @GuardedBy( WORLD_LOCK ) , current state sorted by tile
+    private BoidStore input;
+    // @GuardedBy( WORLD_LOCK ) , new states in input order
+    private BoidStore temp;
+    // @GuardedBy( WORLD_LOCK ) , new states sorted by tile
+    private BoidStore output;
+
+    // @GuardedBy( WORLD_LOCK ) , tile geometry of 'input'
+    private final SpatialGrid tiles = new SpatialGrid();
+
+    // @GuardedBy( WORLD_LOCK ) , number of boids per tile / insertion pointers while sorting
+    private int[] tileCounts = new int[0];
+
+    // @GuardedBy( WORLD_LOCK )
+    private SimulationParameters simulationParameters;
+
+    // @GuardedBy( WORLD_LOCK ) , parameters used to tile 'input'
+    private SimulationParameters tileParameters;
+
+    // latest parameters passed to setSimulationParameters() that 
+    // have not been picked up by advance() yet 
+    private final AtomicReference<SimulationParameters> pendingParameters = new AtomicReference<>();
+
+    private final int threadCount;
+
+    // null if this simulation runs single-threaded
+    private final WorkerPool workers;
+
+    public OutOfCoreSimulation(SimulationParameters parameters,Random rnd,File directory) throws IOException 
+    {
+        this( parameters , rnd , directory , THREAD_COUNT );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param parameters
+     * @param rnd random generator used to create the initial population
+     * @param directory directory to create the data files in
+     * @param threadCount number of threads to use
+     * @throws IOException
+     */
+    public OutOfCoreSimulation(SimulationParameters parameters,Random rnd,File directory,int threadCount) throws IOException 
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        this.threadCount = threadCount;
+        this.populationSize = parameters.populationSize;
+        this.simulationParameters = parameters;
+
+        final BoidStore[] stores = new BoidStore[3];
+        try 
+        {
+            for ( int i = 0 ; i < 3 ; i++ ) 
+            {
+                files[i] = File.createTempFile( "boids" , ".dat" , directory );
+                files[i].deleteOnExit();
+                openFiles[i] = new RandomAccessFile( files[i] , "rw" );
+                stores[i] = BoidStore.map( openFiles[i].getChannel() , populationSize );
+            }
+        } 
+        catch(IOException e) 
+        {
+            close();
+            throw e;
+        }
+        input = stores[0];
+        temp = stores[1];
+        output = stores[2];
+
+        // create boids in index order and sort them by tile
+        for ( int i = 0 ; i < populationSize ; i++ ) {
+            Simulation.setRandomBoid( temp , i , parameters , rnd );
+        }
+        sortTempIntoInput( parameters );
+
+        if ( threadCount > 1 ) 
+        {
+            this.workers = new WorkerPool( "simulation-worker" , threadCount );
+        } else {
+            this.workers = null;
+        }
+    }
+
+    @Override
+    public void setSimulationParameters(SimulationParameters parameters)
+    {
+        if ( parameters == null ) {
+            throw new IllegalArgumentException("Parameters must not be NULL");
+        }
+        pendingParameters.set( parameters );
+    }
+
+    @Override
+    public World advance()
+    {
+        synchronized( WORLD_LOCK ) 
+        {
+            step();
+            final World world = new World( simulationParameters , input , populationSize , null );
+            world.seal();
+            return world;
+        }
+    }
+
+    /**
+     * Advances the simulation by one step without creating a {@link World}.
+     */
+    public void step() 
+    {
+        synchronized( WORLD_LOCK ) 
+        {
+            final SimulationParameters newParameters = pendingParameters.getAndSet( null );
+            if ( newParameters != null ) 
+            {
+                if ( newParameters.populationSize != populationSize ) {
+                    System.err.println("Out-of-core simulation does not support changing the population size");
+                }
+                simulationParameters = newParameters;
+            }
+            final SimulationParameters parameters = simulationParameters;
+
+            // re-tile if tiles became smaller than the neighbour radius
+            if ( parameters.modelMax != tileParameters.modelMax || parameters.neighbourRadius > tileParameters.neighbourRadius ) 
+            {
+                for ( int i = 0 ; i < populationSize ; i++ ) {
+                    input.copy( i , temp , i );
+                }
+                sortTempIntoInput( parameters );
+            }
+
+            // pass 1: advance all boids in tile order
+            final BoidStore in = input;
+            final BoidStore out = temp;
+            final int count = populationSize;
+            if ( workers == null ) 
+            {
+                final FlockingKernel kernel = new FlockingKernel();
+                for ( int pos = 0 ; pos < count ; pos++ ) {
+                    kernel.advance( in , tiles , pos , out , parameters );
+                }
+            } 
+            else 
+            {
+                final int unitCount = threadCount * WORK_UNITS_PER_THREAD;
+                final int unitSize = Math.max( 1 , ( count + unitCount - 1 ) / unitCount );
+                final AtomicInteger nextUnit = new AtomicInteger();
+
+                workers.execute( threadCount , new Runnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        final FlockingKernel kernel = new FlockingKernel();
+                        int first;
+                        while ( ( first = nextUnit.getAndIncrement() * unitSize ) < count ) 
+                        {
+                            final int last = Math.min( count , first + unitSize );
+                            for ( int pos = first ; pos < last ; pos++ ) {
+                                kernel.advance( in , tiles , pos , out , parameters );
+                            }
+                        }
+                    }
+                });
+            }
+
+            // pass 2: sort by tile
+            sortTempIntoInput( parameters );
+        }
+    }
+
+    // bucket-sorts 'temp' by tile into 'output' and then swaps 'input' and 'output'
+    private void sortTempIntoInput(SimulationParameters parameters) 
+    {
+        tiles.configure( parameters.modelMax , parameters.neighbourRadius );
+
+        final int tileCount = tiles.getCellCount();
+        if ( tileCounts.length < tileCount ) {
+            tileCounts = new int[ tileCount ];
+        }
+        final int[] counts = tileCounts;
+        Arrays.fill( counts , 0 , tileCount , 0 );
+
+        for ( int i = 0 ; i < populationSize ; i++ ) {
+            counts[ tiles.getCell( temp.getX( i ) , temp.getY( i ) ) ]++;
+        }
+
+        // turn counts into insertion pointers
+        int start = 0;
+        for ( int i = 0 ; i < tileCount ; i++ ) 
+        {
+            final int tmp = counts[i];
+            counts[i] = start;
+            start += tmp;
+        }
+
+        for ( int i = 0 ; i < populationSize ; i++ ) 
+        {
+            final int tile = tiles.getCell( temp.getX( i ) , temp.getY( i ) );
+            temp.copy( i , output , counts[ tile ]++ );
+        }
+
+        // insertion pointers now point to the end of each tile
+        for ( int i = tileCount-1 ; i > 0 ; i-- ) {
+            counts[i] -= counts[i-1];
+        }
+        tiles.setSortedCellCounts( counts );
+        tileParameters = parameters;
+
+        final BoidStore tmp = input;
+        input = output;
+        output = tmp;
+    }
+
+    /**
+     * Stops worker threads , closes and deletes the data files.
+     * 
+     * <p>Note that the files' mappings (and thus disk space) are only released once 
+     * the stores get garbage-collected.</p>
+     */
+    public void close() 
+    {
+        synchronized( WORLD_LOCK ) 
+        {
+            if ( workers != null ) {
+                workers.shutdown();
+            }
+            for ( int i = 0 ; i < 3 ; i++ ) 
+            {
+                if ( openFiles[i] != null ) 
+                {
+                    try {
+                        openFiles[i].close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    openFiles[i] = null;
+                }
+                if ( files[i] != null ) {
+                    files[i].delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+
+/**
+ * Compares the quantized simulation state (see {@link QuantizedBoidStore}) against the double-precision engine.
+ *
+ * <p>Two {@link OffHeapSimulation}s are started from the same seed , one of them storing quantized values. 
+ * The report lists , at regular intervals:</p>
+ * <ul>
+ *   <li>trajectory deviation: distance between the same boid in both simulations. Since flocking is chaotic , small errors
+ *   grow over time, so this shows how long quantized runs stay close to the reference</li>
+ *   <li>one-step deviation: the reference state is quantized and both versions get advanced by a single step , showing
+ *   the error introduced per step</li>
+ * </ul>
+ * 
+ * <p>Usage: <code>QuantizationReport [population size] [steps] [report interval]</code></p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class QuantizationReport
+{
+    private static final DecimalFormat DF = new DecimalFormat("0.000000");
+
+    private QuantizationReport() {
+    }
+
+    public static void main(String[] args) 
+    {
+        final int populationSize = args.length > 0 ? Integer.parseInt( args[0] ) : 10000;
+        final int steps = args.length > 1 ? Integer.parseInt( args[1] ) : 500;
+        final int interval = args.length > 2 ? Integer.parseInt( args[2] ) : 50;
+
+        final SimulationParameters defaults = SimulationParameters.getDefaultParameters();
+        final SimulationParameters parameters = new SimulationParameters( populationSize , defaults.modelMax , defaults.maxSteeringForce , defaults.maxSpeed ,
+                defaults.cohesionWeight , defaults.separationWeight , defaults.alignmentWeight , defaults.borderForceWeight ,
+                defaults.separationRadius , defaults.neighbourRadius , defaults.borderRadius );
+
+        final long seed = System.currentTimeMillis();
+        final int threadCount = Runtime.getRuntime().availableProcessors();
+        final OffHeapSimulation reference = new OffHeapSimulation( parameters , new Random( seed ) , threadCount , false );
+        final OffHeapSimulation quantized = new OffHeapSimulation( parameters , new Random( seed ) , threadCount , true );
+
+        final QuantizedBoidStore bounds = new QuantizedBoidStore( parameters , 0 );
+        System.out.println("Population: "+populationSize+", model size: "+parameters.modelMax+", max. speed: "+parameters.maxSpeed);
+        System.out.println("Max. representation error: location="+DF.format( bounds.getLocationError() )+", velocity="+DF.format( bounds.getVelocityError() )+" (per component)");
+        System.out.println();
+        System.out.println("step | trajectory: mean location / max location / mean velocity | one step: mean location / max location / mean velocity");
+
+        World referenceWorld = null;
+        World quantizedWorld = null;
+        for ( int step = 1 ; step <= steps ; step++ ) 
+        {
+            if ( referenceWorld != null ) 
+            {
+                referenceWorld.release();
+                quantizedWorld.release();
+            }
+            referenceWorld = reference.advance();
+            quantizedWorld = quantized.advance();
+
+            if ( ( step % interval ) == 0 || step == 1 ) 
+            {
+                final Deviation trajectory = compare( referenceWorld.getBoidStore() , quantizedWorld.getBoidStore() , populationSize , parameters );
+                final Deviation oneStep = oneStepDeviation( referenceWorld.getBoidStore() , populationSize , parameters );
+                System.out.println( step+" | "+trajectory+" | "+oneStep );
+            }
+        }
+        reference.close();
+        quantized.close();
+    }
+
+    private static Deviation oneStepDeviation(IBoidStore state,int count,SimulationParameters parameters) 
+    {
+        final QuantizedBoidStore quantizedState = new QuantizedBoidStore( parameters , count );
+        for ( int i = 0 ; i < count ; i++ ) {
+            quantizedState.set( i , state.getX( i ) , state.getY( i ) , state.getVelocityX( i ) , state.getVelocityY( i ) , 
+                    state.getAccelerationX( i ) , state.getAccelerationY( i ) );
+        }
+
+        final IBoidStore referenceResult = advance( state , new BoidStore( count ) , count , parameters );
+        final IBoidStore quantizedResult = advance( quantizedState , new QuantizedBoidStore( parameters , count ) , count , parameters );
+        return compare( referenceResult , quantizedResult , count , parameters );
+    }
+
+    private static IBoidStore advance(IBoidStore input,IBoidStore output,int count,SimulationParameters parameters) 
+    {
+        final SpatialGrid grid = new SpatialGrid();
+        grid.build( input , count , parameters.modelMax , parameters.neighbourRadius );
+        final FlockingKernel kernel = new FlockingKernel();
+        for ( int i = 0 ; i < count ; i++ ) {
+            kernel.advance( input , grid , i , output , parameters );
+        }
+        return output;
+    }
+
+    private static Deviation compare(IBoidStore reference,IBoidStore other,int count,SimulationParameters parameters) 
+    {
+        final Deviation result = new Deviation();
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            // locations wrap around at the model border
+            final double dx = wrappedDistance( reference.getX( i ) , other.getX( i ) , parameters.modelMax );
+            final double dy = wrappedDistance( reference.getY( i ) , other.getY( i ) , parameters.modelMax );
+            final double locationError = Math.sqrt( dx*dx + dy*dy );
+
+            final double dvx = reference.getVelocityX( i ) - other.getVelocityX( i );
+            final double dvy = reference.getVelocityY( i ) - other.getVelocityY( i );
+
+            result.locationSum += locationError;
+            result.maxLocation = Math.max( result.maxLocation , locationError );
+            result.velocitySum += Math.sqrt( dvx*dvx + dvy*dvy );
+        }
+        result.count = count;
+        return result;
+    }
+
+    private static double wrappedDistance(double a,double b,double modelMax) 
+    {
+        final double d = Math.abs( a - b );
+        return Math.min( d , modelMax - d );
+    }
+
+    protected static final class Deviation 
+    {
+        public int count;
+        public double locationSum;
+        public double maxLocation;
+        public double velocitySum;
+
+        @Override
+        public String toString()
+        {
+            final int n = Math.max( 1 , count );
+            return DF.format( locationSum / n )+" / "+DF.format( maxLocation )+" / "+DF.format( velocitySum / n );
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact boid state store using 16-bit fixed-point values.
+ *
+ * <p>Each vector component is quantized to a <code>short</code> , so a record takes
+ * {@link #RECORD_SIZE} bytes instead of the 48 bytes used by {@link BoidStore} and four times as many boids fit into the CPU caches.
+ * Values get dequantized on the fly when read. Quantization ranges are derived from the simulation parameters:</p>
+ * <ul>
+ *   <li>locations: <code>[0,modelMax)</code> divided into 65536 intervals , represented by their centers</li>
+ *   <li>velocities: <code>[-maxSpeed,maxSpeed]</code> mapped to 65535 steps</li>
+ *   <li>accelerations: +/- the sum of all rule weights (the max. value a component may take) mapped to 65535 steps</li>
+ * </ul>
+ * <p>Values outside of these ranges get clamped. The max. error introduced by storing a value is half of the range's step size ,
+ * see {@link #getLocationError()} and {@link #getVelocityError()}.</p>
+ * 
+ * <p>Reading and writing records is thread-safe as long as different threads write different
+ * records (and the caller establishes visibility between writers and readers). Methods that change the capacity 
+ * or the quantization ranges are <b>not</b> thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see QuantizationReport
+ */
+public final class QuantizedBoidStore implements IBoidStore
+{
+    public static final int SHORTS_PER_RECORD = 6;
+
+    // record size in bytes
+    public static final int RECORD_SIZE = SHORTS_PER_RECORD * 2;
+
+    private static final int CHUNK_BITS = 16;
+
+    // number of records per chunk
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private ShortBuffer[] chunks = new ShortBuffer[0];
+
+    // quantization step sizes
+    private double locationStep;
+    private double velocityStep;
+    private double accelerationStep;
+
+    // value ranges
+    private double modelMax;
+    private double maxSpeed;
+    private double maxAcceleration;
+
+    /**
+     * Create instance.
+     * 
+     * @param parameters parameters used to derive quantization ranges
+     * @param capacity number of boids this store should be able to hold
+     */
+    public QuantizedBoidStore(SimulationParameters parameters,int capacity)
+    {
+        reset( parameters , capacity );
+    }
+
+    @Override
+    public void reset(SimulationParameters parameters,int capacity) 
+    {
+        modelMax = parameters.modelMax;
+        maxSpeed = parameters.maxSpeed;
+        maxAcceleration = parameters.cohesionWeight + parameters.alignmentWeight + parameters.separationWeight + parameters.borderForceWeight;
+        if ( maxAcceleration <= 0 ) {
+            maxAcceleration = 1;
+        }
+
+        locationStep = modelMax / 65536;
+        velocityStep = maxSpeed / 32767;
+        accelerationStep = maxAcceleration / 32767;
+
+        final int chunkCount = ( capacity + CHUNK_SIZE - 1 ) >>> CHUNK_BITS;
+        if ( chunkCount > chunks.length ) 
+        {
+            final ShortBuffer[] newChunks = Arrays.copyOf( chunks , chunkCount );
+            for ( int i = chunks.length ; i < chunkCount ; i++ ) {
+                newChunks[i] = ByteBuffer.allocateDirect( CHUNK_SIZE * RECORD_SIZE ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+            }
+            chunks = newChunks;
+        }
+    }
+
+    @Override
+    public int getCapacity() 
+    {
+        return chunks.length * CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the max. error of a stored location component.
+     * 
+     * @return
+     */
+    public double getLocationError() 
+    {
+        return locationStep / 2;
+    }
+
+    /**
+     * Returns the max. error of a stored velocity component.
+     * 
+     * @return
+     */
+    public double getVelocityError() 
+    {
+        return velocityStep / 2;
+    }
+
+    @Override
+    public double getX(int index) 
+    {
+        return ( ( chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * SHORTS_PER_RECORD ) & 0xffff ) + 0.5 ) * locationStep;
+    }
+
+    @Override
+    public double getY(int index) 
+    {
+        return ( ( chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * SHORTS_PER_RECORD + 1 ) & 0xffff ) + 0.5 ) * locationStep;
+    }
+
+    @Override
+    public double getVelocityX(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * SHORTS_PER_RECORD + 2 ) * velocityStep;
+    }
+
+    @Override
+    public double getVelocityY(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * SHORTS_PER_RECORD + 3 ) * velocityStep;
+    }
+
+    @Override
+    public double getAccelerationX(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * SHORTS_PER_RECORD + 4 ) * accelerationStep;
+    }
+
+    @Override
+    public double getAccelerationY(int index) 
+    {
+        return chunks[ index >>> CHUNK_BITS ].get( ( index & CHUNK_MASK ) * SHORTS_PER_RECORD + 5 ) * accelerationStep;
+    }
+
+    @Override
+    public void set(int index,double x,double y,double velocityX,double velocityY,double accelerationX,double accelerationY) 
+    {
+        final ShortBuffer chunk = chunks[ index >>> CHUNK_BITS ];
+        final int offset = ( index & CHUNK_MASK ) * SHORTS_PER_RECORD;
+        chunk.put( offset     , quantizeLocation( x ) );
+        chunk.put( offset + 1 , quantizeLocation( y ) );
+        chunk.put( offset + 2 , quantize( velocityX , velocityStep ) );
+        chunk.put( offset + 3 , quantize( velocityY , velocityStep ) );
+        chunk.put( offset + 4 , quantize( accelerationX , accelerationStep ) );
+        chunk.put( offset + 5 , quantize( accelerationY , accelerationStep ) );
+    }
+
+    private short quantizeLocation(double value) 
+    {
+        final long q = (long) Math.floor( value / locationStep );
+        if ( q < 0 ) {
+            return 0;
+        }
+        return (short) ( q > 65535 ? 65535 : q );
+    }
+
+    private static short quantize(double value,double step) 
+    {
+        final long q = Math.round( value / step );
+        if ( q < -32767 ) {
+            return -32767;
+        }
+        return (short) ( q > 32767 ? 32767 : q );
+    }
+
+    @Override
+    public void set(int index,Boid boid) 
+    {
+        set( index , boid.location.x , boid.location.y , boid.velocity.x , boid.velocity.y , boid.acceleration.x , boid.acceleration.y );
+    }
+
+    @Override
+    public Boid getBoid(int index) 
+    {
+        return new Boid( new Vec2d( getX( index ) , getY( index ) ) , 
+                new Vec2d( getAccelerationX( index ) , getAccelerationY( index ) ) , 
+                new Vec2d( getVelocityX( index ) , getVelocityY( index ) ) );
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures rendering throughput without a display.
+ *
+ * <p>Renders worlds through an {@link OffscreenRenderer} in each of its {@link OffscreenRenderer.Mode}s (the 
+ * drawing code used by the {@link SoftwareRenderer}) and reports milliseconds per frame and frames per second per
+ * population size. The windowed renderers are not measured: they need a display and their {@link IRenderer#render(World)}
+ * only hands the world to another thread , so there is nothing to time on the calling thread.</p>
+ * <p>Worlds are either generated (random locations and headings , see {@link Simulation#createRandomWorld(SimulationParameters, Random)}) 
+ * or played back from a recording made with {@link FrameRecorder}. Only the time spent in {@link IRenderer#render(World)} is measured.</p>
+ * 
+ * <p>Usage: <code>RenderBenchmark [--replay &lt;file&gt;] [--size &lt;width&gt;x&lt;height&gt;] [population size...]</code></p>
+ * <p>Sets <code>java.awt.headless=true</code> unless the property has been set on the command line.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class RenderBenchmark
+{
+    private static final int[] DEFAULT_POPULATIONS = { 1000 , 10000 , 100000 , 1000000 };
+
+    // frames rendered before measuring
+    private static final int WARMUP_FRAMES = 3;
+
+    // each measurement renders at least MIN_FRAMES frames and takes at least MIN_MILLIS
+    private static final int MIN_FRAMES = 5;
+    private static final long MIN_MILLIS = 1000;
+
+    // fixed so that runs on different machines render the same worlds
+    private static final long SEED = 0xdeadbeef;
+
+    private final int width;
+    private final int height;
+
+    /**
+     * Source of worlds to render.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected interface IWorldSource 
+    {
+        /**
+         * Returns the next world to render , the caller takes over the reference.
+         * 
+         * @return
+         */
+        public World nextWorld();
+    }
+
+    public RenderBenchmark(int width,int height)
+    {
+        this.width = width;
+        this.height = height;
+    }
+
+    public static void main(String[] args) throws IOException 
+    {
+        if ( System.getProperty( "java.awt.headless" ) == null ) {
+            System.setProperty( "java.awt.headless" , "true" );
+        }
+
+        File replay = null;
+        int width = 800;
+        int height = 600;
+        final List<Integer> populations = new ArrayList<>();
+        for ( int i = 0 ; i < args.length ; i++ ) 
+        {
+            if ( "--replay".equals( args[i] ) && i+1 < args.length ) {
+                replay = new File( args[++i] );
+            } 
+            else if ( "--size".equals( args[i] ) && i+1 < args.length ) 
+            {
+                final String[] parts = args[++i].split( "x" );
+                width = Integer.parseInt( parts[0] );
+                height = Integer.parseInt( parts[1] );
+            } else {
+                populations.add( Integer.parseInt( args[i] ) );
+            }
+        }
+
+        final RenderBenchmark benchmark = new RenderBenchmark( width , height );
+        System.out.println("Image size: "+width+"x"+height+", CPUs: "+Runtime.getRuntime().availableProcessors() );
+        System.out.println( String.format( "%-10s %12s %8s %12s %10s" , "mode" , "population" , "frames" , "ms/frame" , "frames/s" ) );
+
+        if ( replay != null ) 
+        {
+            for ( OffscreenRenderer.Mode mode : OffscreenRenderer.Mode.values() ) 
+            {
+                final ReplaySimulation simulation = new ReplaySimulation( replay );
+                try {
+                    benchmark.run( mode , new IWorldSource() {
+
+                        @Override
+                        public World nextWorld()
+                        {
+                            return simulation.advance();
+                        }
+                    });
+                } finally {
+                    simulation.close();
+                }
+            }
+            return;
+        }
+
+        final SimulationParameters defaults = SimulationParameters.getDefaultParameters();
+        for ( int populationSize : populations.isEmpty() ? toList( DEFAULT_POPULATIONS ) : populations ) 
+        {
+            final SimulationParameters parameters = new SimulationParameters( populationSize , defaults.modelMax , defaults.maxSteeringForce , defaults.maxSpeed ,
+                    defaults.cohesionWeight , defaults.separationWeight , defaults.alignmentWeight , defaults.borderForceWeight ,
+                    defaults.separationRadius , defaults.neighbourRadius , defaults.borderRadius );
+            final World world = Simulation.createRandomWorld( parameters , new Random( SEED ) );
+
+            for ( OffscreenRenderer.Mode mode : OffscreenRenderer.Mode.values() ) 
+            {
+                benchmark.run( mode , new IWorldSource() {
+
+                    @Override
+                    public World nextWorld()
+                    {
+                        return world.retain();
+                    }
+                });
+            }
+        }
+    }
+
+    private static List<Integer> toList(int[] values) 
+    {
+        final Integer[] result = new Integer[ values.length ];
+        for ( int i = 0 ; i < values.length ; i++ ) {
+            result[i] = values[i];
+        }
+        return Arrays.asList( result );
+    }
+
+    /**
+     * Renders worlds using a given mode and prints the results.
+     * 
+     * @param mode
+     * @param source
+     */
+    public void run(OffscreenRenderer.Mode mode,IWorldSource source) 
+    {
+        final OffscreenRenderer renderer = new OffscreenRenderer( width , height , mode );
+        renderer.setup();
+        try 
+        {
+            for ( int i = 0 ; i < WARMUP_FRAMES ; i++ ) {
+                renderer.render( source.nextWorld() );
+            }
+
+            int frames = 0;
+            long populationSum = 0;
+            long elapsedNanos = 0;
+            while ( frames < MIN_FRAMES || elapsedNanos < MIN_MILLIS * 1000 * 1000 ) 
+            {
+                final World world = source.nextWorld();
+                populationSum += world.getPopulationCount();
+
+                final long start = System.nanoTime();
+                renderer.render( world );
+                elapsedNanos += System.nanoTime() - start;
+                frames++;
+            }
+
+            final double millisPerFrame = elapsedNanos / ( frames * 1000000d );
+            System.out.println( String.format( "%-10s %12d %8d %12.3f %10.1f" , mode , populationSum / frames , frames , millisPerFrame , 1000 / millisPerFrame ) );
+        } 
+        finally {
+            renderer.destroy();
+        }
+    }
+}
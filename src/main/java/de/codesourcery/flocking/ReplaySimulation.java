@@ -0,0 +1,295 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Plays back a recording created by {@link FrameRecorder}.
+ *
+ * <p>Frames are streamed from disk , so recordings of any length can be replayed with 
+ * constant memory usage. Each call to {@link #advance()} returns the next recorded frame as fast as it 
+ * can be decoded , after the last frame playback starts over from the beginning.</p>
+ * <p>Returned worlds keep their boids in an off-heap store and are recycled by a {@link FrameArena}. Boid 
+ * accelerations are not recorded and are always zero.</p>
+ * 
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ReplaySimulation implements ISimulation
+{
+    private final File file;
+
+    private final FrameArena frameArena = new FrameArena( 3 , FrameArena.Storage.OFF_HEAP );
+
+    // @GuardedBy( this )
+    private DataInputStream in;
+
+    // @GuardedBy( this )
+    private SimulationParameters parameters;
+
+    // @GuardedBy( this )
+    private long frameCount;
+
+    // decoder state , @GuardedBy( this )
+    private byte[] buffer = new byte[ 64*1024 ];
+    private int position;
+    // length of the frame in 'buffer'
+    private int limit;
+    private int[] x = new int[0];
+    private int[] y = new int[0];
+    private int[] velocityX = new int[0];
+    private int[] velocityY = new int[0];
+    private int previousCount;
+
+    /**
+     * Create instance.
+     * 
+     * @param file recording to play back
+     * @throws IOException if the file could not be opened or is not a recording
+     */
+    public ReplaySimulation(File file) throws IOException
+    {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException 
+    {
+        final DataInputStream stream = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) , 1024*1024 ) );
+        try 
+        {
+            if ( stream.readInt() != FrameRecorder.MAGIC ) {
+                throw new IOException("Not a recording (bad magic): "+file);
+            }
+            final int version = stream.readInt();
+            if ( version != FrameRecorder.VERSION ) {
+                throw new IOException("Unsupported recording version "+version+": "+file);
+            }
+            final int locationBits = stream.readByte();
+            final int velocityBits = stream.readByte();
+            if ( locationBits != FrameRecorder.LOCATION_BITS || velocityBits != FrameRecorder.VELOCITY_BITS ) {
+                throw new IOException("Unsupported fixed-point resolution ("+locationBits+"/"+velocityBits+" bits): "+file);
+            }
+        } 
+        catch(IOException e) 
+        {
+            stream.close();
+            throw e;
+        }
+        in = stream;
+        previousCount = 0;
+    }
+
+    /**
+     * Returns the next recorded frame.
+     * 
+     * @throws RuntimeException if reading the recording failed
+     */
+    @Override
+    public synchronized World advance()
+    {
+        try 
+        {
+            if ( ! readFrame() ) 
+            {
+                // end of recording , start over
+                in.close();
+                open();
+                if ( ! readFrame() ) {
+                    throw new IOException("Recording contains no frames: "+file);
+                }
+            }
+            return decodeFrame();
+        } 
+        catch (IOException e) {
+            throw new RuntimeException("Failed to read recording "+file,e);
+        }
+    }
+
+    // reads the next frame into the buffer , returns false on end-of-file
+    private boolean readFrame() throws IOException 
+    {
+        final int length;
+        try {
+            length = in.readInt();
+        } 
+        catch(EOFException e) {
+            return false;
+        }
+
+        if ( length < 5 ) {
+            throw new IOException("Corrupted frame (length "+length+")");
+        }
+        if ( buffer.length < length ) {
+            buffer = new byte[ length ];
+        }
+        try {
+            in.readFully( buffer , 0 , length );
+        } 
+        catch(EOFException e) {
+            // truncated last frame (recording was not closed properly)
+            return false;
+        }
+        position = 0;
+        limit = length;
+        return true;
+    }
+
+    private World decodeFrame() throws IOException 
+    {
+        final byte type = buffer[ position++ ];
+        final int count = readInt();
+
+        if ( type == FrameRecorder.KEYFRAME ) 
+        {
+            parameters = new SimulationParameters( readInt() , readDouble() , readDouble() , readDouble() , readDouble() , readDouble() , 
+                    readDouble() , readDouble() , readDouble() , readDouble() , readDouble() );
+            previousCount = 0;
+        } 
+        else if ( type != FrameRecorder.DELTA_FRAME || parameters == null ) {
+            throw new IOException("Corrupted frame (type "+type+")");
+        }
+
+        // every boid takes at least four bytes (one per var-int)
+        if ( count < 0 || count > ( limit - position ) / 4 ) {
+            throw new IOException("Corrupted frame (boid count "+count+")");
+        }
+
+        if ( x.length < count ) 
+        {
+            x = Arrays.copyOf( x , count );
+            y = Arrays.copyOf( y , count );
+            velocityX = Arrays.copyOf( velocityX , count );
+            velocityY = Arrays.copyOf( velocityY , count );
+        }
+
+        final World world = frameArena.acquire( parameters , count );
+        try 
+        {
+            final IBoidStore store = world.getBoidStore();
+            final int known = Math.min( previousCount , count );
+            for ( int i = 0 ; i < count ; i++ ) 
+            {
+                final int qx,qy,qvx,qvy;
+                if ( i < known ) 
+                {
+                    final int dx = readVarInt();
+                    final int dy = readVarInt();
+                    qvx = velocityX[i] + readVarInt();
+                    qvy = velocityY[i] + readVarInt();
+                    qx = FrameRecorder.predict( x[i] , qvx ) + dx;
+                    qy = FrameRecorder.predict( y[i] , qvy ) + dy;
+                } 
+                else 
+                {
+                    qx = readVarInt();
+                    qy = readVarInt();
+                    qvx = readVarInt();
+                    qvy = readVarInt();
+                }
+                x[i] = qx;
+                y[i] = qy;
+                velocityX[i] = qvx;
+                velocityY[i] = qvy;
+
+                store.set( i , 
+                        FrameRecorder.dequantize( qx , FrameRecorder.LOCATION_BITS ) , FrameRecorder.dequantize( qy , FrameRecorder.LOCATION_BITS ) , 
+                        FrameRecorder.dequantize( qvx , FrameRecorder.VELOCITY_BITS ) , FrameRecorder.dequantize( qvy , FrameRecorder.VELOCITY_BITS ) , 
+                        0 , 0 );
+            }
+        } 
+        catch(IOException e) 
+        {
+            world.release();
+            throw e;
+        }
+        world.seal();
+
+        previousCount = count;
+        frameCount++;
+        return world;
+    }
+
+    private int readInt() throws IOException 
+    {
+        final byte[] b = buffer;
+        final int p = position;
+        if ( p + 4 > limit ) {
+            throw new IOException("Corrupted frame (truncated)");
+        }
+        position += 4;
+        return ( ( b[p] & 0xff ) << 24 ) | ( ( b[p+1] & 0xff ) << 16 ) | ( ( b[p+2] & 0xff ) << 8 ) | ( b[p+3] & 0xff );
+    }
+
+    private double readDouble() throws IOException 
+    {
+        final long hi = readInt() & 0xffffffffL;
+        final long lo = readInt() & 0xffffffffL;
+        return Double.longBitsToDouble( ( hi << 32 ) | lo );
+    }
+
+    private int readVarInt() throws IOException 
+    {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if ( position >= limit || shift > 28 ) {
+                throw new IOException("Corrupted frame (bad var-int)");
+            }
+            b = buffer[ position++ ];
+            result |= ( b & 0x7f ) << shift;
+            shift += 7;
+        } while ( b < 0 );
+        return ( result >>> 1 ) ^ -( result & 1 );
+    }
+
+    /**
+     * Returns the number of frames played back so far.
+     * 
+     * @return
+     */
+    public synchronized long getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Does nothing , recordings are always played back with the recorded simulation parameters.
+     */
+    @Override
+    public void setSimulationParameters(SimulationParameters parameters)
+    {
+    }
+
+    /**
+     * Closes the recording.
+     * 
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException 
+    {
+        in.close();
+    }
+}
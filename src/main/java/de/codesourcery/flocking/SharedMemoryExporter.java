@@ -0,0 +1,263 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Publishes worlds to other processes through a memory-mapped file.
+ *
+ * <p>The file holds a ring of frame slots , each frame gets written to slot <code>frame number % slot count</code>. 
+ * Every slot is guarded by a sequence lock: the slot's sequence number is odd while the slot is being written and 
+ * gets incremented to an even number once the frame is complete. Readers map the file , look up the latest frame number , 
+ * read the slot's sequence number , read the frame and then check that the sequence number is still the same (and even) , 
+ * retrying otherwise. Reading takes no locks , copies or system calls (see {@link SharedMemoryReader}).</p>
+ *
+ * <p>File layout (little-endian):</p>
+ * <pre>
+ * header ({@link #HEADER_SIZE} bytes):
+ *  0  int    magic ({@link #MAGIC})
+ *  4  int    format version ({@link #VERSION})
+ *  8  int    number of slots
+ *  12 int    max. number of boids per slot
+ *  16 long   slot size in bytes
+ *  24 long   number of the latest complete frame (frames are numbered starting with 1 , 0 = none yet)
+ * slots:
+ *  0  long   sequence number
+ *  8  long   frame number
+ *  16 int    number of boids in this frame
+ *  20 int    population count of the world (larger than the number of boids if the world exceeded the slot capacity)
+ *  24 double model max
+ *  32 double max. speed
+ *  {@link #SLOT_HEADER_SIZE} x , y , velocity x , velocity y (double) per boid
+ * </pre>
+ * 
+ * <p>The file is created under a temporary name and then atomically renamed to its final name , so readers never see a 
+ * partially initialized file. An existing file gets replaced , not overwritten: readers that still have it mapped 
+ * keep seeing its last frame instead of crashing and need to re-open the file to pick up new frames.</p>
+ * 
+ * <p>Exporting a frame is a plain copy into mapped memory and never blocks.</p>
+ * <p><b>The sequence lock is only correct on HotSpot running on x86.</b> Accesses to mapped memory are plain accesses , 
+ * Java 7 offers no way to order them (no <code>VarHandle</code> , no fences). Writes are separated by stores to a volatile 
+ * field instead , but the Java memory model does not forbid moving plain stores that follow a volatile store above it. 
+ * The exporter and {@link SharedMemoryReader} rely on HotSpot's JIT treating every volatile access as a full compiler 
+ * barrier (an implementation detail , not a guarantee) and on x86 not reordering stores with stores or loads with loads. 
+ * Other JVMs or CPUs with weaker memory models (for example ARM) may expose torn frames to readers.</p>
+ * 
+ * <p>This class is <b>not</b> thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SharedMemoryExporter
+{
+    // 'BSHM'
+    public static final int MAGIC = 0x4253484d;
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+
+    public static final int SLOT_HEADER_SIZE = 64;
+
+    public static final int BYTES_PER_BOID = 4 * 8;
+
+    public static final int DEFAULT_SLOT_COUNT = 4;
+
+    // header offsets
+    protected static final int SLOT_COUNT_OFFSET = 8;
+    protected static final int CAPACITY_OFFSET = 12;
+    protected static final int SLOT_SIZE_OFFSET = 16;
+    protected static final int LATEST_FRAME_OFFSET = 24;
+
+    // slot header offsets
+    protected static final int SEQUENCE_OFFSET = 0;
+    protected static final int FRAME_NUMBER_OFFSET = 8;
+    protected static final int COUNT_OFFSET = 16;
+    protected static final int POPULATION_COUNT_OFFSET = 20;
+    protected static final int MODEL_MAX_OFFSET = 24;
+    protected static final int MAX_SPEED_OFFSET = 32;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] slots;
+    private final DoubleBuffer[] slotData;
+    private final int capacity;
+
+    private long frameNumber;
+
+    // written between plain writes to the mapped file , keeps HotSpot's JIT (but not the 
+    // Java memory model) from reordering them , see class comment
+    private volatile int barrier;
+
+    /**
+     * Create instance.
+     * 
+     * @param file file to create , gets replaced if it already exists
+     * @param capacity max. number of boids per frame
+     * @throws IOException
+     */
+    public SharedMemoryExporter(File file,int capacity) throws IOException
+    {
+        this( file , capacity , DEFAULT_SLOT_COUNT );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param file file to create , gets replaced if it already exists
+     * @param capacity max. number of boids per frame
+     * @param slotCount number of frames in the ring
+     * @throws IOException
+     */
+    public SharedMemoryExporter(File file,int capacity,int slotCount) throws IOException
+    {
+        if ( capacity < 1 || slotCount < 1 ) {
+            throw new IllegalArgumentException("Capacity and slot count must be >= 1");
+        }
+        if ( SLOT_HEADER_SIZE + (long) capacity * BYTES_PER_BOID > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException("Capacity too large: "+capacity);
+        }
+
+        this.capacity = capacity;
+        final long slotSize = SLOT_HEADER_SIZE + (long) capacity * BYTES_PER_BOID;
+
+        // never truncate an existing file , readers that still have it mapped would crash with a SIGBUS
+        final File directory = file.getAbsoluteFile().getParentFile();
+        // (padded because createTempFile() rejects prefixes shorter than three characters)
+        final File tmpFile = File.createTempFile( file.getName()+".export" , ".tmp" , directory );
+        this.file = new RandomAccessFile( tmpFile , "rw" );
+        try 
+        {
+            final FileChannel channel = this.file.getChannel();
+
+            header = channel.map( MapMode.READ_WRITE , 0 , HEADER_SIZE );
+            header.order( ByteOrder.LITTLE_ENDIAN );
+
+            slots = new MappedByteBuffer[ slotCount ];
+            slotData = new DoubleBuffer[ slotCount ];
+            for ( int i = 0 ; i < slotCount ; i++ ) 
+            {
+                slots[i] = channel.map( MapMode.READ_WRITE , HEADER_SIZE + i * slotSize , slotSize );
+                slots[i].order( ByteOrder.LITTLE_ENDIAN );
+                slots[i].position( SLOT_HEADER_SIZE );
+                slotData[i] = slots[i].slice().order( ByteOrder.LITTLE_ENDIAN ).asDoubleBuffer();
+            }
+
+            header.putInt( 0 , MAGIC );
+            header.putInt( 4 , VERSION );
+            header.putInt( SLOT_COUNT_OFFSET , slotCount );
+            header.putInt( CAPACITY_OFFSET , capacity );
+            header.putLong( SLOT_SIZE_OFFSET , slotSize );
+            header.putLong( LATEST_FRAME_OFFSET , 0 );
+
+            Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.ATOMIC_MOVE , StandardCopyOption.REPLACE_EXISTING );
+        } 
+        catch(IOException e) 
+        {
+            this.file.close();
+            tmpFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a world to the next slot.
+     * 
+     * <p>Only the first {@link #getCapacity()} boids of larger worlds are exported.</p>
+     * 
+     * @param world
+     */
+    public void export(World world) 
+    {
+        final long frame = ++frameNumber;
+        final int slotIndex = (int) ( frame % slots.length );
+        final MappedByteBuffer slot = slots[ slotIndex ];
+        final DoubleBuffer data = slotData[ slotIndex ];
+
+        final int populationCount = world.getPopulationCount();
+        final int count = Math.min( populationCount , capacity );
+
+        // mark slot as being written
+        final long sequence = slot.getLong( SEQUENCE_OFFSET );
+        slot.putLong( SEQUENCE_OFFSET , sequence+1 );
+        barrier = 0;
+
+        slot.putLong( FRAME_NUMBER_OFFSET , frame );
+        slot.putInt( COUNT_OFFSET , count );
+        slot.putInt( POPULATION_COUNT_OFFSET , populationCount );
+        slot.putDouble( MODEL_MAX_OFFSET , world.getSimulationParameters().modelMax );
+        slot.putDouble( MAX_SPEED_OFFSET , world.getSimulationParameters().maxSpeed );
+
+        world.visitAllBoids( new World.IBoidStateVisitor() {
+
+            private int index;
+
+            @Override
+            public void visit(double x, double y, double velocityX, double velocityY)
+            {
+                if ( index < count ) 
+                {
+                    final int offset = index * 4;
+                    data.put( offset , x );
+                    data.put( offset+1 , y );
+                    data.put( offset+2 , velocityX );
+                    data.put( offset+3 , velocityY );
+                }
+                index++;
+            }
+        });
+
+        // mark slot as complete and publish frame number
+        barrier = 0;
+        slot.putLong( SEQUENCE_OFFSET , sequence+2 );
+        barrier = 0;
+        header.putLong( LATEST_FRAME_OFFSET , frame );
+    }
+
+    /**
+     * Returns the max. number of boids per frame.
+     * 
+     * @return
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of frames exported so far.
+     * 
+     * @return
+     */
+    public long getFrameCount()
+    {
+        return frameNumber;
+    }
+
+    public void close() throws IOException 
+    {
+        file.close();
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads frames published by a {@link SharedMemoryExporter} (possibly running in another process).
+ *
+ * <p>Frames can either be visited in place ({@link #visitLatestFrame(World.IBoidStateVisitor)}) or copied into 
+ * a {@link Frame} ({@link #readLatestFrame(Frame)}). Neither takes locks or performs system calls.</p>
+ * <p>Detecting torn frames depends on HotSpot and x86 the same way exporting them does , 
+ * see {@link SharedMemoryExporter} for details.</p>
+ * 
+ * <p>This class is <b>not</b> thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SharedMemoryReader
+{
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] slots;
+    private final DoubleBuffer[] slotData;
+
+    // read between plain reads from the mapped file , keeps HotSpot's JIT (but not the 
+    // Java memory model) from reordering them , see SharedMemoryExporter
+    private volatile int barrier;
+
+    /**
+     * A copy of an exported frame.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Frame 
+    {
+        public long frameNumber;
+        // number of boids in this frame
+        public int count;
+        public int populationCount;
+        public double modelMax;
+        public double maxSpeed;
+        // x , y , velocity x , velocity y per boid
+        public double[] data = new double[0];
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param file file written by a {@link SharedMemoryExporter}
+     * @throws IOException if the file could not be mapped or has not been written by an exporter
+     */
+    public SharedMemoryReader(File file) throws IOException
+    {
+        this.file = new RandomAccessFile( file , "r" );
+        try 
+        {
+            final FileChannel channel = this.file.getChannel();
+            if ( channel.size() < SharedMemoryExporter.HEADER_SIZE ) {
+                throw new IOException("Not a shared-memory export (too short): "+file);
+            }
+
+            // validate the header before mapping anything
+            final ByteBuffer tmp = ByteBuffer.allocate( SharedMemoryExporter.HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+            while ( tmp.hasRemaining() ) 
+            {
+                if ( channel.read( tmp , tmp.position() ) < 0 ) {
+                    throw new IOException("Not a shared-memory export (too short): "+file);
+                }
+            }
+            if ( tmp.getInt( 0 ) != SharedMemoryExporter.MAGIC ) {
+                throw new IOException("Not a shared-memory export (bad magic): "+file);
+            }
+            final int version = tmp.getInt( 4 );
+            if ( version != SharedMemoryExporter.VERSION ) {
+                throw new IOException("Unsupported shared-memory export version "+version+": "+file);
+            }
+
+            final int slotCount = tmp.getInt( SharedMemoryExporter.SLOT_COUNT_OFFSET );
+            final int capacity = tmp.getInt( SharedMemoryExporter.CAPACITY_OFFSET );
+            final long slotSize = tmp.getLong( SharedMemoryExporter.SLOT_SIZE_OFFSET );
+            if ( slotCount < 1 ) {
+                throw new IOException("Corrupted shared-memory export (slot count "+slotCount+"): "+file);
+            }
+            if ( capacity < 1 || slotSize != SharedMemoryExporter.SLOT_HEADER_SIZE + (long) capacity * SharedMemoryExporter.BYTES_PER_BOID || 
+                 slotSize > Integer.MAX_VALUE ) 
+            {
+                throw new IOException("Corrupted shared-memory export (slot size "+slotSize+" , capacity "+capacity+"): "+file);
+            }
+            if ( channel.size() < SharedMemoryExporter.HEADER_SIZE + slotCount * slotSize ) {
+                throw new IOException("Shared-memory export is truncated: "+file);
+            }
+
+            header = channel.map( MapMode.READ_ONLY , 0 , SharedMemoryExporter.HEADER_SIZE );
+            header.order( ByteOrder.LITTLE_ENDIAN );
+
+            slots = new MappedByteBuffer[ slotCount ];
+            slotData = new DoubleBuffer[ slotCount ];
+            for ( int i = 0 ; i < slotCount ; i++ ) 
+            {
+                slots[i] = channel.map( MapMode.READ_ONLY , SharedMemoryExporter.HEADER_SIZE + i * slotSize , slotSize );
+                slots[i].order( ByteOrder.LITTLE_ENDIAN );
+                slots[i].position( SharedMemoryExporter.SLOT_HEADER_SIZE );
+                slotData[i] = slots[i].slice().order( ByteOrder.LITTLE_ENDIAN ).asDoubleBuffer();
+            }
+        } 
+        catch(IOException e) 
+        {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of the latest complete frame.
+     * 
+     * @return frame number or 0 if no frame has been exported yet
+     */
+    public long getLatestFrameNumber() 
+    {
+        return header.getLong( SharedMemoryExporter.LATEST_FRAME_OFFSET );
+    }
+
+    /**
+     * Visits all boids of the latest frame in place.
+     * 
+     * <p>If the exporter overwrote the frame while it was being visited , the visitor 
+     * has seen inconsistent data and needs to discard whatever it gathered.</p>
+     * 
+     * @param visitor
+     * @return number of the visited frame , 0 if no frame has been exported yet or 
+     * -1 if the frame was overwritten while being visited
+     */
+    public long visitLatestFrame(World.IBoidStateVisitor visitor) 
+    {
+        final long frameNumber = getLatestFrameNumber();
+        if ( frameNumber == 0 ) {
+            return 0;
+        }
+
+        final int slotIndex = (int) ( frameNumber % slots.length );
+        final MappedByteBuffer slot = slots[ slotIndex ];
+        final long sequence = beginRead( slot , frameNumber );
+        if ( sequence == -1 ) {
+            return -1;
+        }
+
+        final DoubleBuffer data = slotData[ slotIndex ];
+        final int count = slot.getInt( SharedMemoryExporter.COUNT_OFFSET );
+        if ( count < 0 || count*4 > data.capacity() ) {
+            return -1; // torn read
+        }
+        for ( int i = 0 , offset = 0 ; i < count ; i++ , offset += 4 ) {
+            visitor.visit( data.get( offset ) , data.get( offset+1 ) , data.get( offset+2 ) , data.get( offset+3 ) );
+        }
+        return endRead( slot , sequence ) ? frameNumber : -1;
+    }
+
+    /**
+     * Copies the latest frame.
+     * 
+     * <p>Retries until a consistent copy has been made.</p>
+     * 
+     * @param frame frame to copy to , its data array gets replaced if it is too small
+     * @return <code>true</code> on success , <code>false</code> if no frame has been exported yet
+     */
+    public boolean readLatestFrame(Frame frame) 
+    {
+        while ( true ) 
+        {
+            final long frameNumber = getLatestFrameNumber();
+            if ( frameNumber == 0 ) {
+                return false;
+            }
+
+            final int slotIndex = (int) ( frameNumber % slots.length );
+            final MappedByteBuffer slot = slots[ slotIndex ];
+            final long sequence = beginRead( slot , frameNumber );
+            if ( sequence == -1 ) {
+                continue;
+            }
+
+            final int count = slot.getInt( SharedMemoryExporter.COUNT_OFFSET );
+            final int populationCount = slot.getInt( SharedMemoryExporter.POPULATION_COUNT_OFFSET );
+            final double modelMax = slot.getDouble( SharedMemoryExporter.MODEL_MAX_OFFSET );
+            final double maxSpeed = slot.getDouble( SharedMemoryExporter.MAX_SPEED_OFFSET );
+            if ( count < 0 || count*4 > slotData[ slotIndex ].capacity() ) {
+                continue; // torn read
+            }
+            if ( frame.data.length < count*4 ) {
+                frame.data = new double[ count*4 ];
+            }
+            final DoubleBuffer data = slotData[ slotIndex ].duplicate();
+            data.clear();
+            data.get( frame.data , 0 , count*4 );
+
+            if ( endRead( slot , sequence ) ) 
+            {
+                frame.frameNumber = frameNumber;
+                frame.count = count;
+                frame.populationCount = populationCount;
+                frame.modelMax = modelMax;
+                frame.maxSpeed = maxSpeed;
+                return true;
+            }
+        }
+    }
+
+    // returns the slot's sequence number or -1 if the slot is being written / does not hold the expected frame
+    private long beginRead(MappedByteBuffer slot,long frameNumber) 
+    {
+        final long sequence = slot.getLong( SharedMemoryExporter.SEQUENCE_OFFSET );
+        if ( ( sequence & 1 ) != 0 ) {
+            return -1;
+        }
+        if ( barrier != 0 || slot.getLong( SharedMemoryExporter.FRAME_NUMBER_OFFSET ) != frameNumber ) {
+            return -1;
+        }
+        return sequence;
+    }
+
+    // returns whether the slot has not been modified since beginRead()
+    private boolean endRead(MappedByteBuffer slot,long sequence) 
+    {
+        return barrier == 0 && slot.getLong( SharedMemoryExporter.SEQUENCE_OFFSET ) == sequence;
+    }
+
+    public void close() throws IOException 
+    {
+        file.close();
+    }
+
+    /**
+     * Prints statistics about the frames exported to a file.
+     * 
+     * <p>Usage: <code>SharedMemoryReader &lt;file&gt;</code></p>
+     * 
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length < 1 ) {
+            System.err.println("Usage: SharedMemoryReader <file>");
+            System.exit(1);
+        }
+
+        final SharedMemoryReader reader = new SharedMemoryReader( new File( args[0] ) );
+        final Frame frame = new Frame();
+        long lastFrameNumber = 0;
+        while ( true ) 
+        {
+            if ( reader.readLatestFrame( frame ) && frame.frameNumber != lastFrameNumber ) 
+            {
+                double speedSum = 0;
+                double centerX = 0;
+                double centerY = 0;
+                final double[] data = frame.data;
+                for ( int i = 0 , offset = 0 ; i < frame.count ; i++ , offset += 4 ) 
+                {
+                    centerX += data[offset];
+                    centerY += data[offset+1];
+                    speedSum += Math.sqrt( data[offset+2] * data[offset+2] + data[offset+3] * data[offset+3] );
+                }
+                final int count = Math.max( 1 , frame.count );
+                System.out.println("Frame "+frame.frameNumber+" ("+(frame.frameNumber-lastFrameNumber)+" since last read): "+frame.count+" boids , avg_speed="+
+                        (speedSum/count)+", center=("+(centerX/count)+","+(centerY/count)+")");
+                lastFrameNumber = frame.frameNumber;
+            }
+            Thread.sleep( 100 );
+        }
+    }
+}
@@ -15,18 +15,11 @@
  */
 package de.codesourcery.flocking;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.codesourcery.flocking.World.IBoidVisitor;
 
@@ -34,6 +27,8 @@ public final class Simulation implements ISimulation
 {
     private static final Random rnd = new Random(System.currentTimeMillis());
     
+    // max. number of threads and initial number of work units per thread,
+    // the actual values are picked by the WorkUnitController 
     private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int WORK_UNITS_PER_THREAD = 32;
 
@@ -43,122 +38,318 @@ public final class Simulation implements ISimulation
     
     private final Object WORLD_LOCK = new Object();
 
+
+    // @GuardedBy( WORLD_LOCK )
+    private final SpatialPartitioner partitioner = new SpatialPartitioner();
+
     // @GuardedBy( WORLD_LOCK )
     private World currentWorld;
+
+    // @GuardedBy( WORLD_LOCK ) , NULL if worlds should not be recycled
+    private FrameArena frameArena;
     
     // @GuardedBy( WORLD_LOCK )
     private SimulationParameters simulationParameters;
 
-    private final ExecutorService threadPool;
+    // latest parameters passed to setSimulationParameters() that 
+    // have not been picked up by advance() yet 
+    private final AtomicReference<SimulationParameters> pendingParameters = new AtomicReference<>();
+
+    private final int threadCount;
+
+    // temporal level-of-detail settings, see setLevelOfDetail(int,int)
+    private volatile int lodMaxSkippedSteps = 0;
+    private volatile int lodNeighbourThreshold = 0;
+
+    // whether worlds should hold render records , see setRenderDataEnabled(boolean)
+    private volatile boolean renderDataEnabled;
+
+    // number of boids whose acceleration was re-used during the last step
+    private volatile int skippedUpdateCount;
+
+    // null if this simulation runs single-threaded
+    private final WorkerPool workers;
+
+    // null if this simulation runs single-threaded
+    private final WorkUnitController workUnitController;
+
+    // execution time of each work unit during the last step
+    // @GuardedBy( WORLD_LOCK )
+    private long[] unitNanos = new long[0];
     
     public Simulation(World initialWorld) 
     {
-        System.out.println("Using "+THREAD_COUNT+" CPUs.");
+        this( initialWorld , THREAD_COUNT );
+    }
 
-        final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>( THREAD_COUNT*(WORK_UNITS_PER_THREAD+1) );
+    /**
+     * Create instance.
+     * 
+     * @param initialWorld
+     * @param threadCount number of threads to use, a value of 1 
+     * makes {@link #advance()} run on the calling thread without setting up a thread pool
+     * (useful when running many simulations in parallel, see {@link Ensemble}).
+     */
+    public Simulation(World initialWorld,int threadCount) 
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
 
-        final ThreadFactory threadFactory = new ThreadFactory() {
+        this.threadCount = threadCount;
 
-            @Override
-            public Thread newThread(Runnable r)
-            {
-                final Thread t= new Thread(r);
-                t.setDaemon( true );
-                return t;
-            }
-        };
-        this.threadPool = new ThreadPoolExecutor( THREAD_COUNT , THREAD_COUNT , 1 , TimeUnit.MINUTES , queue,threadFactory, new CallerRunsPolicy() );
+        if ( threadCount > 1 ) 
+        {
+            System.out.println("Using "+threadCount+" CPUs.");
+
+            this.workers = new WorkerPool( "simulation-worker" , threadCount );
+            this.workUnitController = new WorkUnitController( threadCount , WORK_UNITS_PER_THREAD );
+        } else {
+            this.workers = null;
+            this.workUnitController = null;
+        }
         
         this.currentWorld = initialWorld;
         this.simulationParameters = initialWorld.getSimulationParameters();
     }
 
-    @Override
-    public void setSimulationParameters(SimulationParameters parameters)
+    /**
+     * Enables temporal level-of-detail.
+     * 
+     * <p>Boids that had at most <code>neighbourThreshold</code> neighbours when their acceleration
+     * was last calculated will re-use this acceleration for up to <code>maxSkippedSteps</code> subsequent
+     * simulation steps instead of querying their neighbourhood again.</p>
+     * <p>The number of steps a boid may skip is limited so that no other boid could have moved into its 
+     * neighbour radius in the meantime (assuming both boids travel at max. speed towards each other), so boids
+     * get promoted back to full updates as soon as new neighbours may appear. Boids that could get within the border radius while 
+     * skipping steps are always updated.</p>
+     * 
+     * @param maxSkippedSteps max. number of steps to re-use an acceleration for, 0 disables level-of-detail
+     * @param neighbourThreshold max. number of neighbours a boid may have to be updated less often
+     */
+    public void setLevelOfDetail(int maxSkippedSteps,int neighbourThreshold) 
+    {
+        if ( maxSkippedSteps < 0 || neighbourThreshold < 0 ) {
+            throw new IllegalArgumentException("Level-of-detail settings must be >= 0");
+        }
+        this.lodNeighbourThreshold = neighbourThreshold;
+        this.lodMaxSkippedSteps = maxSkippedSteps;
+    }
+
+    /**
+     * Returns the number of boids whose acceleration was re-used
+     * during the last call to {@link #advance()}.
+     * 
+     * @return
+     */
+    public int getSkippedUpdateCount()
+    {
+        return skippedUpdateCount;
+    }
+
+    /**
+     * Returns the number of threads that will be used by the next call to {@link #advance()}.
+     * 
+     * @return
+     */
+    public int getActiveThreadCount() 
+    {
+        return workUnitController != null ? workUnitController.getThreadCount() : 1;
+    }
+
+    /**
+     * Returns the number of work units that will be used by the next call to {@link #advance()}.
+     * 
+     * @return
+     */
+    public int getWorkUnitCount() 
+    {
+        return workUnitController != null ? workUnitController.getUnitCount() : 1;
+    }
+
+    /**
+     * Returns the controller that picks thread and work unit counts.
+     * 
+     * @return controller or <code>null</code> if this simulation runs single-threaded
+     */
+    public WorkUnitController getWorkUnitController()
+    {
+        return workUnitController;
+    }
+
+    /**
+     * Sets the arena used to recycle worlds.
+     * 
+     * <p>With an arena set , each world returned by {@link #advance()} carries one reference 
+     * that the caller needs to release (by calling {@link World#release()}) once it no longer 
+     * uses the world. Worlds that are never released work fine but will not get recycled.</p>
+     * 
+     * @param arena arena to use , <code>null</code> to always create new worlds
+     */
+    public void setFrameArena(FrameArena arena) 
+    {
+        synchronized(WORLD_LOCK) {
+            this.frameArena = arena;
+        }
+    }
+
+    /**
+     * Enables writing render records.
+     * 
+     * <p>If enabled , worker threads write each boid's render record right after calculating 
+     * its new state (see {@link World#enableRenderData()}) so renderers can upload them as-is.</p>
+     * 
+     * @param enabled
+     */
+    public void setRenderDataEnabled(boolean enabled) 
+    {
+        this.renderDataEnabled = enabled;
+    }
+
+    /**
+     * Restarts this simulation from a new world state.
+     * 
+     * <p>Any simulation parameters previously set will be replaced
+     * by the parameters of the new world.</p>
+     * 
+     * @param world
+     */
+    public void reset(World world) 
     {
         synchronized(WORLD_LOCK) 
         {
-            /*
-             * Do NOT modify the currentWorld since this reference may have been
-             * passed to external code by advance()
-             */
-            if ( this.simulationParameters.populationSize > parameters.populationSize ) 
-            {
-                System.out.println("Changing simulation size: "+this.simulationParameters.populationSize+" -> "+parameters.populationSize);
-                World newWorld = new World(parameters);
-                
-                int i = parameters.populationSize;
-                for ( Boid b : currentWorld.getAllBoids() ) {
-                    newWorld.add( b );
-                    i--;
-                    if ( i <= 0 ) {
-                        break;
-                    }
-                }
-                this.currentWorld = newWorld;
-            } 
-            else if ( this.simulationParameters.populationSize < parameters.populationSize ) 
-            {
-                System.out.println("Changing simulation size: "+this.simulationParameters.populationSize+" -> "+parameters.populationSize);
-                final int toAdd = parameters.populationSize - this.simulationParameters.populationSize;
-                
-                final World newWorld = new World(parameters);
-                
-                for ( Boid b : currentWorld.getAllBoids() ) {
-                    newWorld.add( b );
-                }
-                
-                for ( int i = 0 ; i < toAdd ; i++ ) {
-                    newWorld.add( createRandomBoid( parameters ) );
-                }
-                this.currentWorld = newWorld;
-            } 
-            this.simulationParameters = parameters;
+            this.currentWorld.release();
+            this.currentWorld = world;
+            this.simulationParameters = world.getSimulationParameters();
+            this.pendingParameters.set( null );
+            this.generationCounter = 0;
         }
     }
+
+    /**
+     * Sets the simulation parameters to be used.
+     * 
+     * <p>This method never blocks, the parameters are picked up 
+     * at the start of the next call to {@link #advance()}. If the population size
+     * changed, boids get removed/added as part of that step.</p>
+     * 
+     * @param parameters
+     */
+    @Override
+    public void setSimulationParameters(SimulationParameters parameters)
+    {
+        if ( parameters == null ) {
+            throw new IllegalArgumentException("Parameters must not be NULL");
+        }
+        pendingParameters.set( parameters );
+    }
     
     @Override
     public World advance()
     {
         synchronized(WORLD_LOCK) 
         {
-            final World newWorld = new World( simulationParameters );
+            final SimulationParameters newParameters = pendingParameters.getAndSet( null );
+            if ( newParameters != null ) 
+            {
+                if ( newParameters.populationSize != currentWorld.getPopulationCount() ) {
+                    System.out.println("Changing simulation size: "+currentWorld.getPopulationCount()+" -> "+newParameters.populationSize);
+                }
+                simulationParameters = newParameters;
+            }
+
+            final SimulationParameters parameters = simulationParameters;
 
-            final int unitCount = THREAD_COUNT*WORK_UNITS_PER_THREAD;
-            final CountDownLatch workerThreads = new CountDownLatch( unitCount );        
+            // boids beyond the population size are dropped, missing boids 
+            // get created while populating the new world
+            final int boidCount = Math.min( currentWorld.getPopulationCount() , parameters.populationSize );
+            final int newBoidCount = parameters.populationSize;
 
-            for ( final ArrayList<Boid> inputList : slice( currentWorld.getAllBoids() , unitCount ) ) 
+            final World oldWorld = currentWorld;
+            final World newWorld = frameArena != null ? frameArena.acquire( parameters , newBoidCount ) : new World( parameters , newBoidCount );
+            if ( renderDataEnabled ) {
+                newWorld.enableRenderData();
+            }
+
+            final int maxSkippedSteps = lodMaxSkippedSteps;
+            final int neighbourThreshold = lodNeighbourThreshold;
+
+            if ( workers == null ) 
+            {
+                skippedUpdateCount = advance( oldWorld , null , 0 , boidCount , newWorld , parameters , maxSkippedSteps , neighbourThreshold );
+                for ( int i = 0 ; i < newBoidCount ; i++ ) 
+                {
+                    if ( i >= boidCount ) {
+                        newWorld.set( i , createRandomBoid( parameters ) );
+                    }
+                    newWorld.addToIndex( i );
+                }
+            } 
+            else 
             {
-                threadPool.submit( new Runnable() 
+                final int workerCount = workUnitController.getThreadCount();
+                final int unitCount = workUnitController.getUnitCount();
+
+                // sort boids spatially so that each work unit covers a compact area 
+                final int[] order = partitioner.sort( oldWorld , boidCount , unitCount );
+
+                if ( unitNanos.length < unitCount ) {
+                    unitNanos = new long[ unitCount ];
+                }
+                final long[] unitTimes = unitNanos;
+
+                final AtomicInteger skipped = new AtomicInteger();
+                final AtomicInteger nextUnit = new AtomicInteger(0);
+
+                final long frameStart = System.nanoTime();
+
+                // phase 1: calculate new boid states, each boid keeps its index
+                workers.execute( workerCount , new Runnable() 
                 {
                     public void run() 
                     {
-                        try 
+                        int skippedCount = 0;
+                        int unit;
+                        while ( ( unit = nextUnit.getAndIncrement() ) < unitCount ) 
                         {
-                            final SimulationParameters parameters = simulationParameters;
-                            for ( Boid boid : inputList ) 
-                            {
-                                final Vec2dMutable newAcceleration = flock(boid,parameters); 
-
-                                final Vec2d newVelocity = boid.getVelocity().plus( newAcceleration ).limit( parameters.maxSpeed );
-                                final Vec2d newLocation = boid.getLocation().plus( newVelocity ).wrapIfNecessary( parameters.modelMax );
-
-                                newWorld.add( new Boid( newLocation , new Vec2d( newAcceleration ) , newVelocity ) );
+                            final long start = System.nanoTime();
+                            final int first = (int) ( (long) unit * boidCount / unitCount );
+                            final int last = (int) ( (long) (unit+1) * boidCount / unitCount );
+                            skippedCount += advance( oldWorld , order , first , last , newWorld , parameters , maxSkippedSteps , neighbourThreshold );
+                            unitTimes[unit] = System.nanoTime() - start;
+                        }
+                        skipped.addAndGet( skippedCount );
+                    }
+                });
+
+                /*
+                 * phase 2: build spatial index.
+                 * 
+                 * Adding boids to the kd-tree in spatial order (as processed by phase 1) would yield a badly
+                 * degenerated tree (the first few boids determine the splits near the root) so
+                 * boids are added in index order instead.
+                 */
+                final AtomicInteger nextWorker = new AtomicInteger(0);
+                workers.execute( workerCount , new Runnable() 
+                {
+                    public void run() 
+                    {
+                        final int worker = nextWorker.getAndIncrement();
+                        final Random random = ThreadLocalRandom.current();
+                        for ( int i = worker ; i < newBoidCount ; i += workerCount ) 
+                        {
+                            if ( i >= boidCount ) {
+                                newWorld.set( i , createRandomBoid( parameters , random ) );
                             }
-                        } finally {
-                            workerThreads.countDown();
-                        }                   
-                    };
-                } );
-            }
+                            newWorld.addToIndex( i );
+                        }
+                    }
+                });
 
-            // wait for worker threads to finish
-            try {
-                workerThreads.await();
-            } 
-            catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                workUnitController.frameFinished( System.nanoTime() - frameStart , unitTimes , unitCount , newBoidCount );
+                skippedUpdateCount = skipped.get();
             }
+            newWorld.seal();
 
             if ( DEBUG_TREE_DEPTH ) {
         		if ( (generationCounter++ % 30 ) == 0 ) 
@@ -167,35 +358,84 @@ public final class Simulation implements ISimulation
         		}
             }
             currentWorld = newWorld;
-            return newWorld;
+            oldWorld.release();
+            // the caller's reference
+            return newWorld.retain();
         }
     }
 
-    // divide boids into separate lists, each being processed by a different thread      
-    private static ArrayList<Boid>[] slice(List<Boid> allBoids, int listCount)
+    // returns the number of boids that re-used their previous acceleration
+    // (order may be null to process boids in index order)
+    private int advance(World input,int[] order,int first,int last,World output,SimulationParameters parameters,int maxSkippedSteps,int neighbourThreshold) 
     {
-        @SuppressWarnings("unchecked")
-        final ArrayList<Boid>[] toProcess = new ArrayList[listCount ];
-        final int boidsPerThread = allBoids.size() / listCount;
+        int skipped = 0;
+        for ( int i = first ; i < last ; i++ ) 
+        {
+            final int index = order != null ? order[i] : i;
+            final Boid boid = input.getBoid( index );
 
-        for ( int i = 0 ;i < listCount ; i++ ) {
-            toProcess[i] = new ArrayList<Boid>( boidsPerThread );
-        }
+            final Vec2d newAcceleration;
+            final int neighbourCount;
+            final int skipSteps;
 
-        int currentStart = 0;
-        for ( int index = 0 ; index < listCount ; index++ , currentStart += boidsPerThread ) {
-            toProcess[index].addAll( allBoids.subList( currentStart , currentStart + boidsPerThread ) );
-        }
-        if ( currentStart < allBoids.size() ) {
-            toProcess[listCount-1].addAll( allBoids.subList( currentStart , allBoids.size() ) );
+            if ( boid.skipSteps > 0 && maxSkippedSteps > 0 ) 
+            {
+                newAcceleration = boid.getAcceleration();
+                neighbourCount = boid.getNeighbourCount();
+                skipSteps = Math.min( boid.skipSteps , maxSkippedSteps ) - 1;
+                skipped++;
+            } 
+            else 
+            {
+                final NeighborAggregator visitor = new NeighborAggregator( boid , parameters.separationRadius );
+                newAcceleration = new Vec2d( flock( boid , parameters , visitor , parameters.neighbourRadius ) );
+                neighbourCount = visitor.getNeighbourCount();
+
+                // boids that were (almost) isolated last time look further out so we know 
+                // for how many steps we may skip updating them
+                final boolean isCandidate = maxSkippedSteps > 0 && 
+                        boid.getNeighbourCount() != Boid.UNKNOWN_NEIGHBOUR_COUNT && 
+                        boid.getNeighbourCount() <= neighbourThreshold &&
+                        neighbourCount <= neighbourThreshold && 
+                        ! mayReachBorder( boid , parameters , maxSkippedSteps );
+
+                if ( isCandidate ) 
+                {
+                    final SkipDistanceVisitor distanceVisitor = new SkipDistanceVisitor( boid , parameters.neighbourRadius );
+                    final Vec2d center = boid.getNeighbourCenter();
+                    input.visitBoidsInRadius( center.x , center.y , parameters.neighbourRadius + 2 * parameters.maxSpeed * maxSkippedSteps , distanceVisitor );
+                    skipSteps = distanceVisitor.getSafeSkipSteps( parameters , maxSkippedSteps , neighbourThreshold );
+                } else {
+                    skipSteps = 0;
+                }
+            }
+
+            final Vec2d newVelocity = boid.getVelocity().plus( newAcceleration ).limit( parameters.maxSpeed );
+            final Vec2d newLocation = boid.getLocation().plus( newVelocity ).wrapIfNecessary( parameters.modelMax );
+
+            output.set( index , new Boid( newLocation , newAcceleration , newVelocity , neighbourCount , skipSteps ) );
         }
-        return toProcess;
+        return skipped;
+    }
+
+    // a boid re-using its acceleration also re-uses the border force , so it must not get close to the border while skipping
+    private static boolean mayReachBorder(Boid boid,SimulationParameters parameters,int maxSkippedSteps) 
+    {
+        final double distance = parameters.borderRadius + parameters.maxSpeed * maxSkippedSteps;
+        final Vec2d pos = boid.getLocation();
+        return pos.x < distance || pos.x > parameters.modelMax - distance || 
+               pos.y < distance || pos.y > parameters.modelMax - distance;
     }
 
     protected Vec2dMutable flock(Boid boid,final SimulationParameters parameters)
     {
         final NeighborAggregator visitor =new NeighborAggregator( boid , parameters.separationRadius);
-        boid.visitNeighbors(currentWorld , parameters.neighbourRadius , visitor );
+        return flock( boid , parameters , visitor , parameters.neighbourRadius );
+    }
+
+    protected Vec2dMutable flock(Boid boid,final SimulationParameters parameters,NeighborAggregator visitor,double queryRadius)
+    {
+        boid.visitNeighbors(currentWorld , queryRadius , visitor );
 
         // cohesion
         Vec2dMutable cohesionVec = steerTo( parameters , boid , visitor.getAverageLocation() );
@@ -354,25 +594,128 @@ public final class Simulation implements ISimulation
         }        
     }
     
+    /**
+     * Finds the distance to the closest boid outside of a boid's neighbour radius.
+     * 
+     * <p>Needs to be passed to an exact query like {@link World#visitBoidsInRadius(double, double, double, IBoidVisitor)} , 
+     * approximate queries may miss the closest boid.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class SkipDistanceVisitor implements IBoidVisitor 
+    {
+        private final Boid boid;
+        private final double neighbourRadius;
+
+        private int neighbourCount;
+        private double closestNonNeighbourDistance = Double.POSITIVE_INFINITY;
+
+        public SkipDistanceVisitor(Boid boid,double neighbourRadius) 
+        {
+            this.boid = boid;
+            this.neighbourRadius = neighbourRadius;
+        }
+
+        @Override
+        public void visit(Boid otherBoid)
+        {
+            if ( boid == otherBoid ) {
+                return;
+            }
+
+            final double distance = otherBoid.location.distanceTo( boid.getNeighbourCenter() );
+            if ( distance <= neighbourRadius ) {
+                neighbourCount++;
+            } else if ( distance < closestNonNeighbourDistance ) {
+                closestNonNeighbourDistance = distance;
+            }
+        }
+
+        /**
+         * Returns the number of simulation steps the boid's acceleration may be re-used
+         * without any other boid being able to move into the neighbour radius.
+         * 
+         * @param parameters
+         * @param maxSkippedSteps
+         * @param neighbourThreshold
+         * @return number of steps , 0 if the boid has more than <code>neighbourThreshold</code> neighbours
+         */
+        public int getSafeSkipSteps(SimulationParameters parameters,int maxSkippedSteps,int neighbourThreshold) 
+        {
+            if ( neighbourCount > neighbourThreshold ) {
+                return 0;
+            }
+            if ( closestNonNeighbourDistance == Double.POSITIVE_INFINITY ) {
+                return maxSkippedSteps;
+            }
+            // both boids may move towards each other at max. speed
+            final double steps = ( closestNonNeighbourDistance - neighbourRadius ) / ( 2 * parameters.maxSpeed );
+            return (int) Math.max( 0 , Math.min( maxSkippedSteps , Math.floor( steps ) ) );
+        }
+    }
+
+    /**
+     * Creates a world populated with randomly placed boids.
+     * 
+     * @param parameters
+     * @param rnd
+     * @return
+     */
+    public static World createRandomWorld(SimulationParameters parameters,Random rnd) 
+    {
+        final World world = new World(parameters,parameters.populationSize); 
+
+        for ( int i = 0 ; i < parameters.populationSize ; i++ ) 
+        {
+            world.set( i , createRandomBoid( parameters , rnd ) );
+            world.addToIndex( i );
+        }
+        world.seal();
+        return world;
+    }
+
     public static Boid createRandomBoid(SimulationParameters parameters) {
-        return new Boid(createRandomPosition(parameters) , createRandomAcceleration(parameters), createRandomVelocity(parameters));
+        return createRandomBoid( parameters , rnd );
+    }
+
+    public static Boid createRandomBoid(SimulationParameters parameters,Random rnd) {
+        return new Boid(createRandomPosition(parameters,rnd) , createRandomAcceleration(parameters,rnd), createRandomVelocity(parameters,rnd));
+    }
+
+    /**
+     * Stores a random boid , with the same distribution as {@link #createRandomBoid(SimulationParameters, Random)}.
+     * 
+     * @param store
+     * @param index
+     * @param parameters
+     * @param rnd
+     */
+    public static void setRandomBoid(IBoidStore store,int index,SimulationParameters parameters,Random rnd) 
+    {
+        final double x = rnd.nextDouble()* parameters.modelMax;
+        final double y = rnd.nextDouble()* parameters.modelMax;
+        final double ax = (rnd.nextDouble()-0.5)*parameters.maxSteeringForce;
+        final double ay = (rnd.nextDouble()-0.5)*parameters.maxSteeringForce;
+        final double vx = (rnd.nextDouble()-0.5)*parameters.maxSpeed;
+        final double vy = (rnd.nextDouble()-0.5)*parameters.maxSpeed;
+        store.set( index , x , y , vx , vy , ax , ay );
     }
 
-    private static Vec2d createRandomPosition(SimulationParameters parameters) 
+    private static Vec2d createRandomPosition(SimulationParameters parameters,Random rnd) 
     {
         final double x = rnd.nextDouble()* parameters.modelMax;
         final double y = rnd.nextDouble()* parameters.modelMax;
         return new Vec2d(x,y);
     }
 
-    private static Vec2d createRandomAcceleration(SimulationParameters parameters) {
+    private static Vec2d createRandomAcceleration(SimulationParameters parameters,Random rnd) {
 
         final double x = (rnd.nextDouble()-0.5)*parameters.maxSteeringForce;
         final double y = (rnd.nextDouble()-0.5)*parameters.maxSteeringForce;
         return new Vec2d(x,y);
     }
 
-    private static Vec2d createRandomVelocity(SimulationParameters parameters) {
+    private static Vec2d createRandomVelocity(SimulationParameters parameters,Random rnd) {
         final double x = (rnd.nextDouble()-0.5)*parameters.maxSpeed;
         final double y = (rnd.nextDouble()-0.5)*parameters.maxSpeed;
         return new Vec2d(x,y);
@@ -15,42 +15,135 @@
  */
 package de.codesourcery.flocking;
 
+import java.awt.Canvas;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
+import java.awt.DisplayMode;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.Toolkit;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 import de.codesourcery.flocking.Simulation.NeighborAggregator;
-import de.codesourcery.flocking.World.IBoidVisitor;
 
 /**
  * Simulation renderer that uses Java2D for rendering.
  *
+ * <p>By default boids are drawn by a {@link TileRasterizer} into an image that then gets 
+ * copied to the screen at once , drawing each boid using {@link Graphics2D#fillPolygon(int[], int[], int)}
+ * only works for small populations.</p>
+ * <p>Worlds with more than {@link DensityMap#DENSITY_THRESHOLD} boids per pixel are drawn as a {@link DensityMap}.</p>
+ * <p>The mouse wheel zooms , dragging with the left mouse button pans and clicking the right mouse button shows the whole model again.
+ * When zoomed in only visible boids are fetched from the world's spatial index (see {@link Viewport#collectVisibleBoids(World, BoidStore)}).</p>
+ * 
+ * <p>By default {@link #render(World)} just asks Swing to repaint the window , Swing coalesces repaint requests so 
+ * worlds may be skipped or displayed late. With active rendering enabled worlds are drawn into a {@link Canvas} with a 
+ * page-flipping {@link BufferStrategy} by a dedicated thread , once per display refresh. {@link #displayTitle(String)} then 
+ * also shows the number of worlds actually displayed per second and the avg. time between {@link #render(World)} 
+ * and the world being displayed.</p>
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public final class SoftwareRenderer implements IRenderer {
 
     private static final Color BOID_COLOR = new Color(0.5f, 0.5f, 1.0f);
 
+    // zoom factor per mouse wheel step
+    private static final double ZOOM_STEP = 1.25;
+
+    // frame rate used for active rendering if the display's refresh rate is unknown
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
     private final JFrame frame = new JFrame();
 
-    private final MyPanel panel = new MyPanel();
-    
-    private final Object WORLD_LOCK=new Object();
+    private final Painter painter = new Painter();
+
+    // JPanel when using passive rendering , Canvas when using active rendering
+    private final Component display;
+
+    // null when using passive rendering
+    private final RenderThread renderThread;
     
-    // @GuardedBy( WORLD_LOCK )
-    private World worldToRender;
+    // hands worlds from render() to the event dispatch thread (or the render thread)
+    private final TripleBuffer<PublishedWorld> worlds = new TripleBuffer<PublishedWorld>() 
+    {
+        @Override
+        protected void discard(PublishedWorld published) {
+            published.world.release();
+        }
+    };
+
+    // a world and the time it was passed to render() , used to measure display latency
+    protected static final class PublishedWorld 
+    {
+        public final World world;
+        public final long publishNanos;
+
+        public PublishedWorld(World world,long publishNanos) 
+        {
+            this.world = world;
+            this.publishNanos = publishNanos;
+        }
+    }
     
     private final boolean debug;
 
+    // written by the EDT , read while painting
+    private volatile Viewport viewport = Viewport.FULL;
+
+    // null if boids should be drawn using Graphics2D#fillPolygon()
+    private final TileRasterizer rasterizer;
+
     public SoftwareRenderer(boolean debug) 
+    {
+        this(debug,true);
+    }
+
+    public SoftwareRenderer(boolean debug,boolean useRasterizer) 
+    {
+        this(debug,useRasterizer,false);
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param debug
+     * @param useRasterizer whether to draw boids using a {@link TileRasterizer} 
+     * instead of calling {@link Graphics2D#fillPolygon(int[], int[], int)} for each boid
+     * @param activeRendering whether to draw on a dedicated thread using a {@link BufferStrategy} instead of 
+     * letting Swing repaint the window
+     */
+    public SoftwareRenderer(boolean debug,boolean useRasterizer,boolean activeRendering) 
     {
     	this.debug = debug;
+    	this.rasterizer = useRasterizer ? new TileRasterizer( Runtime.getRuntime().availableProcessors() ) : null;
+    	if ( activeRendering ) 
+    	{
+    	    final Canvas canvas = new Canvas();
+    	    // all drawing happens on the render thread
+    	    canvas.setIgnoreRepaint( true );
+    	    this.display = canvas;
+    	    this.renderThread = new RenderThread( canvas );
+    	} 
+    	else 
+    	{
+    	    this.display = new MyPanel();
+    	    this.renderThread = null;
+    	}
     }
 
     @Override
@@ -58,8 +151,8 @@ public final class SoftwareRenderer implements IRenderer {
     {
         frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
 
-        panel.setBackground(Color.BLACK);
-        panel.setPreferredSize(new Dimension(800,600));
+        display.setBackground(Color.BLACK);
+        display.setPreferredSize(new Dimension(800,600));
 
         frame.getContentPane().setLayout( new GridBagLayout() );
         GridBagConstraints cnstrs = new GridBagConstraints();
@@ -69,64 +162,305 @@ public final class SoftwareRenderer implements IRenderer {
         cnstrs.gridwidth=GridBagConstraints.REMAINDER;
         cnstrs.fill = GridBagConstraints.BOTH;
 
-        frame.getContentPane().add( panel , cnstrs );
+        frame.getContentPane().add( display , cnstrs );
         frame.pack();
 
+        final MouseAdapter mouseListener = new MouseAdapter() {
+
+            private int lastX;
+            private int lastY;
+
+            @Override
+            public void mousePressed(MouseEvent e)
+            {
+                lastX = e.getX();
+                lastY = e.getY();
+                if ( SwingUtilities.isRightMouseButton( e ) ) {
+                    viewportChanged( Viewport.FULL );
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e)
+            {
+                if ( SwingUtilities.isLeftMouseButton( e ) ) 
+                {
+                    // move the model along with the mouse
+                    final double dx = ( lastX - e.getX() ) / (double) display.getWidth();
+                    final double dy = ( lastY - e.getY() ) / (double) display.getHeight();
+                    viewportChanged( viewport.pan( dx , dy ) );
+                }
+                lastX = e.getX();
+                lastY = e.getY();
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e)
+            {
+                final double factor = Math.pow( ZOOM_STEP , -e.getWheelRotation() );
+                viewportChanged( viewport.zoom( factor , e.getX() / (double) display.getWidth() , e.getY() / (double) display.getHeight() ) );
+            }
+        };
+        display.addMouseListener( mouseListener );
+        display.addMouseMotionListener( mouseListener );
+        display.addMouseWheelListener( mouseListener );
+
         frame.setVisible(true);   
+
+        if ( renderThread != null ) {
+            // the canvas needs to be displayable before a buffer strategy can be created
+            ((Canvas) display).createBufferStrategy( 2 );
+            renderThread.start();
+        }
     }   
 
+    private void viewportChanged(Viewport newViewport) 
+    {
+        viewport = newViewport;
+        if ( renderThread == null ) {
+            // the render thread picks up the new viewport on its own
+            display.repaint();
+        }
+    }
+
     @Override
     public void displayTitle(String title)
     {
-        frame.setTitle( title );
+        if ( renderThread != null ) {
+            frame.setTitle( title+" , "+renderThread.getStatistics() );
+        } else {
+            frame.setTitle( title );
+        }
     }
-    
-    protected final class MyPanel extends JPanel {
 
-        private double xInc=1.0;
-        private double yInc=1.0;
-        
-        private World currentWorld;
+    protected final class MyPanel extends JPanel {
 
         public void paint(Graphics g) {
 
             super.paint(g);
-            final Graphics2D graphics = (Graphics2D) g;
 
-            synchronized( WORLD_LOCK ) 
+            // the world stays valid until the next call to acquire() 
+            final PublishedWorld published = worlds.acquire();
+            if ( published != null ) {
+                painter.paintWorld( published.world , (Graphics2D) g , getWidth() , getHeight() );
+            }
+        }
+    }
+
+    /**
+     * Draws worlds using active rendering.
+     * 
+     * <p>Wakes up once per display refresh and draws (and shows) the most recently published world if it changed 
+     * (or the viewport , window size or contents of the buffer strategy did).</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected final class RenderThread extends Thread 
+    {
+        private final Canvas canvas;
+
+        private volatile boolean terminate;
+
+        // worlds displayed and sum of their display latencies since the last call to getStatistics()
+        private final AtomicLong displayedCount = new AtomicLong();
+        private final AtomicLong latencyNanosSum = new AtomicLong();
+
+        // only accessed by getStatistics()
+        private long statisticsStartNanos = System.nanoTime();
+
+        public RenderThread(Canvas canvas) 
+        {
+            super("software-renderer");
+            setDaemon( true );
+            this.canvas = canvas;
+        }
+
+        @Override
+        public void run() 
+        {
+            final BufferStrategy strategy = canvas.getBufferStrategy();
+            final long frameNanos = 1000000000L / getRefreshRate();
+
+            PublishedWorld lastWorld = null;
+            Viewport lastViewport = null;
+            int lastWidth = -1;
+            int lastHeight = -1;
+
+            long nextFrameNanos = System.nanoTime();
+            while ( ! terminate ) 
             {
-                this.currentWorld = worldToRender;
-                
-                if ( currentWorld == null ) {
-                    return;
+                long now = System.nanoTime();
+                while ( ! terminate && now < nextFrameNanos ) 
+                {
+                    LockSupport.parkNanos( nextFrameNanos - now );
+                    now = System.nanoTime();
+                }
+                nextFrameNanos += frameNanos;
+                if ( nextFrameNanos < now ) {
+                    // fell behind by more than one frame , don't try to catch up
+                    nextFrameNanos = now + frameNanos;
+                }
+
+                // the world stays valid until the next call to acquire() 
+                final PublishedWorld world = worlds.acquire();
+                final Viewport view = viewport;
+                final int width = canvas.getWidth();
+                final int height = canvas.getHeight();
+                if ( world == null || width < 1 || height < 1 ) {
+                    continue;
                 }
+                if ( world == lastWorld && view == lastViewport && width == lastWidth && height == lastHeight && ! strategy.contentsLost() ) {
+                    continue;
+                }
+
+                do 
+                {
+                    do 
+                    {
+                        final Graphics2D graphics = (Graphics2D) strategy.getDrawGraphics();
+                        try 
+                        {
+                            graphics.setColor( canvas.getBackground() );
+                            graphics.fillRect( 0 , 0 , width , height );
+                            painter.paintWorld( world.world , graphics , width , height );
+                        } 
+                        finally {
+                            graphics.dispose();
+                        }
+                    } 
+                    while ( strategy.contentsRestored() );
+                    strategy.show();
+                } 
+                while ( strategy.contentsLost() );
+
+                // flush the X11 command queue so the frame actually gets displayed now
+                Toolkit.getDefaultToolkit().sync();
+
+                if ( world != lastWorld ) 
+                {
+                    displayedCount.incrementAndGet();
+                    latencyNanosSum.addAndGet( System.nanoTime() - world.publishNanos );
+                }
+                lastWorld = world;
+                lastViewport = view;
+                lastWidth = width;
+                lastHeight = height;
             }
+        }
+
+        private int getRefreshRate() 
+        {
+            final DisplayMode mode = canvas.getGraphicsConfiguration().getDevice().getDisplayMode();
+            final int rate = mode.getRefreshRate();
+            return rate != DisplayMode.REFRESH_RATE_UNKNOWN && rate > 0 ? rate : DEFAULT_REFRESH_RATE;
+        }
+
+        /**
+         * Returns the number of worlds displayed per second and their avg. latency since the last call to this method.
+         * 
+         * @return
+         */
+        public String getStatistics() 
+        {
+            final long now = System.nanoTime();
+            final long count = displayedCount.getAndSet( 0 );
+            final long latency = latencyNanosSum.getAndSet( 0 );
+            final double seconds = ( now - statisticsStartNanos ) / 1000000000.0;
+            statisticsStartNanos = now;
+
+            final long fps = seconds > 0 ? Math.round( count / seconds ) : 0;
+            final long avgLatencyMillis = count > 0 ? latency / count / 1000000 : 0;
+            return "displayed: "+fps+" FPS , latency: "+avgLatencyMillis+" ms";
+        }
+
+        public void terminate() throws InterruptedException 
+        {
+            terminate = true;
+            LockSupport.unpark( this );
+            join();
+        }
+    }
+
+    // draws worlds , not tied to a particular component
+    protected final class Painter {
+
+        private final ArrowPainter arrows = new ArrowPainter();
+        
+        private World currentWorld;
+        private int width;
+        private int height;
+
+        // created on demand
+        private DensityMap densityMap;
+        private BufferedImage densityImage;
+
+        public void paintWorld(World world,final Graphics2D graphics,int width,int height) 
+        {
+            this.currentWorld = world;
+            this.width = width;
+            this.height = height;
 
             final SimulationParameters params = currentWorld.getSimulationParameters();            
             final double modelMax = params.modelMax;
+            final Viewport view = viewport;
 
-            xInc = getWidth() / modelMax;
-            yInc = getHeight() / modelMax;
-
-            final IBoidVisitor visitor = new IBoidVisitor() {
+            arrows.setViewport( view , modelMax , width , height );
 
-                private int count = 0;
+            if ( DensityMap.isDense( currentWorld , view , width , height ) ) 
+            {
+                graphics.drawImage( renderDensityMap( view ) , 0 , 0 , null );
+                if ( debug && currentWorld.getPopulationCount() > 0 ) {
+                    drawBoid( currentWorld.getBoid( 0 ) , true , params , graphics );
+                }
+                return;
+            }
 
-                @Override
-                public void visit(Boid boid)
-                {
-                    drawBoid( boid ,count == 0 , params , graphics );
-                    count++;
+            if ( rasterizer != null ) 
+            {
+                final BufferedImage image = rasterizer.rasterize( currentWorld , view , width , height , display.getBackground().getRGB() , BOID_COLOR.getRGB() );
+                graphics.drawImage( image , 0 , 0 , null );
+                if ( debug && currentWorld.getPopulationCount() > 0 ) {
+                    drawBoid( currentWorld.getBoid( 0 ) , true , params , graphics );
                 }
-            };
+                return;
+            }
 
-            g.setColor( BOID_COLOR );
-            currentWorld.visitAllBoids( visitor );                    
+            if ( debug && currentWorld.getPopulationCount() > 0 ) {
+                drawBoid( currentWorld.getBoid( 0 ) , true , params , graphics );
+            }
+
+            graphics.setColor( BOID_COLOR );
+            arrows.drawArrows( currentWorld , graphics );
         }
 
-        private void drawBoid(Boid boid, boolean firstBoid , final SimulationParameters params , Graphics2D g)
+        private BufferedImage renderDensityMap(Viewport view) 
         {
-            drawBoid(boid,firstBoid,Color.BLUE,true , params , g);
+            final int width = Math.max( 1 , this.width );
+            final int height = Math.max( 1 , this.height );
+            if ( densityMap == null ) {
+                densityMap = new DensityMap( Runtime.getRuntime().availableProcessors() );
+            }
+            if ( densityImage == null || densityImage.getWidth() != width || densityImage.getHeight() != height ) {
+                densityImage = new BufferedImage( width , height , BufferedImage.TYPE_INT_RGB );
+            }
+            final int[] pixels = ( (DataBufferInt) densityImage.getRaster().getDataBuffer() ).getData();
+            densityMap.render( currentWorld , view , width , height , pixels , display.getBackground().getRGB() );
+            return densityImage;
+        }
+
+        public void dispose() 
+        {
+            if ( rasterizer != null ) {
+                rasterizer.dispose();
+            }
+            if ( densityMap != null ) {
+                densityMap.dispose();
+            }
+        }
+
+        private void drawBoid(Boid boid, boolean isDebugBoid , final SimulationParameters params , Graphics2D g)
+        {
+            drawBoid(boid,isDebugBoid,Color.BLUE,true , params , g);
         }
 
         private void drawBoid(final Boid boid, boolean isDebugBoid , Color color , boolean fill , final SimulationParameters params, final Graphics2D g)
@@ -183,52 +517,7 @@ public final class SoftwareRenderer implements IRenderer {
 
         private void drawArrow(boolean fill , Boid b,Graphics2D g) 
         {
-            // create vector perpendicular to heading
-            double headingNormalizedX = b.getVelocity().x;
-            double headingNormalizedY = b.getVelocity().y;
-
-            double d = headingNormalizedX*headingNormalizedX + headingNormalizedY*headingNormalizedY;
-            if ( d > 0.00001 ) {
-                d = Math.sqrt( d );
-                headingNormalizedX = headingNormalizedX / d;
-                headingNormalizedY = headingNormalizedY / d;
-            }
-
-            // rotate 90 degrees clockwise
-            final double rotatedX = headingNormalizedY;
-            final double rotatedY = -headingNormalizedX;
-
-            /*      heading
-             *        /\
-             *        / \
-             *       /   \
-             *      /     \
-             *     /       \
-             *    /         \
-             * p1 +----+----+ p2
-             *        center
-             */
-            final int[] x=new int[3];
-            final int[] y=new int[3];                
-
-            final double centerX = b.getLocation().x;
-            final double centerY = b.getLocation().y;
-
-            x[0] = round( (centerX + rotatedX * ARROW_WIDTH) * xInc ); 
-            y[0] = round( ( centerY + rotatedY * ARROW_WIDTH ) * yInc );
-
-            x[1]= round( (centerX + headingNormalizedX*ARROW_LENGTH) * xInc );
-            y[1] = round( (centerY + headingNormalizedY*ARROW_LENGTH) * yInc );                
-
-            x[2]= round( (centerX + rotatedX * ARROW_WIDTH*-1 )*xInc);
-            y[2] = round( (centerY + rotatedY * ARROW_WIDTH*-1 )*yInc);
-
-            if ( fill ) 
-            {
-                g.fillPolygon( x , y , 3 );
-            } else {
-                g.drawPolygon( x , y , 3 );
-            }                
+            arrows.drawArrow( g , b.getLocation().x , b.getLocation().y , b.getVelocity().x , b.getVelocity().y , fill );
         }
 
         private void drawVec(Vec2d src, Vec2d dst, Graphics g) {
@@ -251,14 +540,14 @@ public final class SoftwareRenderer implements IRenderer {
             final int x[] = new int[3];
             final int y[] = new int[3];
 
-            x[0] = (int) Math.round(p1.x * xInc);
-            y[0] = (int) Math.round(p1.y * yInc);
+            x[0] = arrows.toScreenX( p1.x );
+            y[0] = arrows.toScreenY( p1.y );
 
-            x[1] = (int) Math.round(p2.x * xInc);
-            y[1] = (int) Math.round(p2.y * yInc);
+            x[1] = arrows.toScreenX( p2.x );
+            y[1] = arrows.toScreenY( p2.y );
 
-            x[2] = (int) Math.round(p3.x * xInc);
-            y[2] = (int) Math.round(p3.y * yInc);            
+            x[2] = arrows.toScreenX( p3.x );
+            y[2] = arrows.toScreenY( p3.y );
 
             if ( fill ) {
                 g.fillPolygon( x , y , 3 );
@@ -269,42 +558,61 @@ public final class SoftwareRenderer implements IRenderer {
 
         private void drawLine(Vec2d p1,Vec2d p2,Graphics g) {
 
-            final int x1 = (int) Math.round(p1.x * xInc);
-            final int y1 = (int) Math.round(p1.y * yInc);
+            final int x1 = arrows.toScreenX( p1.x );
+            final int y1 = arrows.toScreenY( p1.y );
 
-            final int x2 = (int) Math.round(p2.x * xInc);
-            final int y2 = (int) Math.round(p2.y * yInc);
+            final int x2 = arrows.toScreenX( p2.x );
+            final int y2 = arrows.toScreenY( p2.y );
             g.drawLine( x1,y1,x2,y2);
         }        
 
         private void drawCircle(Vec2d center, double boidNeightbourRadius, Graphics g)
         {
-            final double x1 = (center.x - boidNeightbourRadius)*xInc;
-            final double y1 = (center.y - boidNeightbourRadius)*yInc;
+            final int x1 = arrows.toScreenX( center.x - boidNeightbourRadius );
+            final int y1 = arrows.toScreenY( center.y - boidNeightbourRadius );
 
-            final double x2 = (center.x + boidNeightbourRadius)*xInc;
-            final double y2 = (center.y + boidNeightbourRadius)*yInc;            
+            final int x2 = arrows.toScreenX( center.x + boidNeightbourRadius );
+            final int y2 = arrows.toScreenY( center.y + boidNeightbourRadius );
 
-            g.fillOval( round(x1) , round(y1) , round(x2-x1) , round(y2-y1) ); 
+            g.fillOval( x1 , y1 , x2-x1 , y2-y1 ); 
         }        
     }
 
     @Override
     public void render(World world) throws Exception
     {
-        synchronized (WORLD_LOCK) {
-            worldToRender = world;
+        worlds.publish( new PublishedWorld( world , System.nanoTime() ) );
+        if ( renderThread == null ) {
+            display.repaint();
         }
-        panel.repaint();
     }
 
     @Override
     public void destroy()
     {
+        if ( renderThread != null ) 
+        {
+            try {
+                renderThread.terminate();
+            } 
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if ( ! renderThread.isAlive() ) {
+                // render() is not invoked while destroy() is running
+                worlds.clear();
+            }
+        }
+
         frame.dispose();
+        // paint() may still run after dispose() , worlds not released here are left to the garbage collector
+        SwingUtilities.invokeLater( new Runnable() {
+
+            @Override
+            public void run()
+            {
+                painter.dispose();
+            }
+        });
     }
-    
-    protected static final int round(double d) {
-        return (int) Math.round(d);
-    }    
-}
\ No newline at end of file
+    }
\ No newline at end of file
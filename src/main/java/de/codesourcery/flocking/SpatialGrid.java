@@ -0,0 +1,235 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Uniform grid spatial index over the boids in an {@link IBoidStore}.
+ *
+ * <p>The model area is divided into square cells that are at least as large as the
+ * neighbour radius, so all neighbours of a boid are located in the 3x3 cells around the boid's cell. 
+ * Boids get bucket-sorted by cell in O(n). All index data lives in direct buffers so
+ * (like the store itself) the index does not occupy heap space proportional to the population size.</p>
+ * 
+ * <p>Alternatively the grid can describe a store whose boids are already sorted by cell 
+ * (see {@link #setSortedCellCounts(int[])}) , in which case the sort order is the store order.</p>
+ * 
+ * <p>Buffers are re-used across invocations of {@link #build(IBoidStore, int, double, double)}.</p>
+ * <p>This class is <b>not</b> thread-safe, concurrent queries are fine once the index has been built.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SpatialGrid
+{
+    // max. number of cells per side
+    private static final int MAX_CELLS_PER_SIDE = 2048;
+
+    private int cellsPerSide;
+    private double cellScale;
+
+    // whether the store is sorted by cell already
+    private boolean presorted;
+
+    // index of first boid in 'sorted' for each cell , cellCount+1 entries
+    private IntBuffer cellStart = createBuffer( 0 );
+    // boid indices sorted by cell
+    private IntBuffer sorted = createBuffer( 0 );
+    // cell of each boid
+    private IntBuffer cellOfBoid = createBuffer( 0 );
+
+    private static IntBuffer createBuffer(int size) 
+    {
+        return ByteBuffer.allocateDirect( size * 4 ).order( ByteOrder.nativeOrder() ).asIntBuffer();
+    }
+
+    /**
+     * (Re-)builds the index.
+     * 
+     * @param store
+     * @param count number of boids to index , starting at index 0
+     * @param modelMax
+     * @param minCellSize minimum cell size (the max. radius used in queries)
+     */
+    public void build(IBoidStore store,int count,double modelMax,double minCellSize) 
+    {
+        configure( modelMax , minCellSize );
+        presorted = false;
+
+        final int cellCount = getCellCount();
+        if ( sorted.capacity() < count ) 
+        {
+            sorted = createBuffer( count );
+            cellOfBoid = createBuffer( count );
+        }
+
+        final IntBuffer starts = cellStart;
+        for ( int i = 0 ; i <= cellCount ; i++ ) {
+            starts.put( i , 0 );
+        }
+
+        // count boids per cell
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final int cell = getCell( store.getX( i ) , store.getY( i ) );
+            cellOfBoid.put( i , cell );
+            starts.put( cell+1 , starts.get( cell+1 ) + 1 );
+        }
+
+        // prefix sums
+        for ( int i = 1 ; i <= cellCount ; i++ ) {
+            starts.put( i , starts.get( i ) + starts.get( i-1 ) );
+        }
+
+        // scatter , temporarily advancing the start of each cell as insertion pointer
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final int cell = cellOfBoid.get( i );
+            final int pos = starts.get( cell );
+            sorted.put( pos , i );
+            starts.put( cell , pos+1 );
+        }
+
+        // restore cell starts
+        for ( int i = cellCount ; i > 0 ; i-- ) {
+            starts.put( i , starts.get( i-1 ) );
+        }
+        starts.put( 0 , 0 );
+    }
+
+    /**
+     * Sets up the grid geometry.
+     * 
+     * @param modelMax
+     * @param minCellSize minimum cell size (the max. radius used in queries)
+     */
+    public void configure(double modelMax,double minCellSize) 
+    {
+        cellsPerSide = (int) Math.max( 1 , Math.min( MAX_CELLS_PER_SIDE , Math.floor( modelMax / minCellSize ) ) );
+        cellScale = cellsPerSide / modelMax;
+
+        final int cellCount = getCellCount();
+        if ( cellStart.capacity() < cellCount+1 ) {
+            cellStart = createBuffer( cellCount+1 );
+        }
+    }
+
+    /**
+     * Sets up the index for a store whose boids are already sorted by cell (row-major).
+     * 
+     * @param cellCounts number of boids in each cell (as returned by {@link #getCell(double, double)}) using the 
+     * geometry set by the last call to {@link #configure(double, double)}
+     */
+    public void setSortedCellCounts(int[] cellCounts) 
+    {
+        presorted = true;
+
+        final int cellCount = getCellCount();
+        int start = 0;
+        for ( int i = 0 ; i < cellCount ; i++ ) 
+        {
+            cellStart.put( i , start );
+            start += cellCounts[i];
+        }
+        cellStart.put( cellCount , start );
+    }
+
+    public int getCellsPerSide()
+    {
+        return cellsPerSide;
+    }
+
+    public int getCellCount() 
+    {
+        return cellsPerSide * cellsPerSide;
+    }
+
+    /**
+     * Returns the (row-major) cell number for a location.
+     * 
+     * @param x
+     * @param y
+     * @return
+     */
+    public int getCell(double x,double y) 
+    {
+        return getCellY( y ) * cellsPerSide + getCellX( x );
+    }
+
+    public double getCellSize()
+    {
+        return 1 / cellScale;
+    }
+
+    public int getCellX(double x) 
+    {
+        return clamp( (int) ( x * cellScale ) );
+    }
+
+    public int getCellY(double y) 
+    {
+        return clamp( (int) ( y * cellScale ) );
+    }
+
+    private int clamp(int value) 
+    {
+        if ( value < 0 ) {
+            return 0;
+        }
+        return value < cellsPerSide ? value : cellsPerSide-1;
+    }
+
+    /**
+     * Returns the position (in sort order) of the first boid in a cell.
+     * 
+     * @param cellX
+     * @param cellY
+     * @return
+     * @see #getBoid(int)
+     */
+    public int getCellStart(int cellX,int cellY) 
+    {
+        return cellStart.get( cellY * cellsPerSide + cellX );
+    }
+
+    /**
+     * Returns the position (in sort order) after the last boid in a cell.
+     * 
+     * @param cellX
+     * @param cellY
+     * @return
+     * @see #getBoid(int)
+     */
+    public int getCellEnd(int cellX,int cellY) 
+    {
+        return cellStart.get( cellY * cellsPerSide + cellX + 1 );
+    }
+
+    /**
+     * Returns the index of the boid at a given position in sort order.
+     * 
+     * <p>Iterating over all positions visits boids cell by cell (row-major).</p>
+     * 
+     * @param position
+     * @return
+     */
+    public int getBoid(int position) 
+    {
+        return presorted ? position : sorted.get( position );
+    }
+}
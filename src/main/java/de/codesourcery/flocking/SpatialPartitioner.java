@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+/**
+ * Orders boids by spatial locality so that work units cover compact areas.
+ *
+ * <p>The model area is divided into a grid of square tiles that are numbered along a
+ * Z-order (Morton) curve. Boids get bucket-sorted by tile number in O(n), so any
+ * contiguous range of the sorted boids covers only a few neighbouring tiles. Cutting this
+ * sequence into equally sized ranges yields work units with (roughly) equal boid counts whose
+ * neighbour queries mostly touch the same part of the kd-tree.</p>
+ *
+ * <p>Internal buffers are re-used across invocations.</p>
+ * <p>This class is <b>not</b> thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SpatialPartitioner
+{
+    // min. number of tiles per work unit
+    private static final int TILES_PER_UNIT = 4;
+
+    // max. tile grid resolution (tiles per side = 2^MAX_GRID_BITS)
+    private static final int MAX_GRID_BITS = 10;
+
+    private int[] tileOfBoid = new int[0];
+    private int[] tileStart = new int[0];
+    private int[] order = new int[0];
+
+    /**
+     * Sorts boids by tile.
+     *
+     * @param world world whose boids should be sorted
+     * @param count number of boids to sort, starting at index 0
+     * @param unitCount number of work units the result will be divided into, used to pick the tile size
+     * @return array holding the indices of the boids in spatial order, may be larger than <code>count</code>. 
+     * The returned array is re-used by subsequent invocations.
+     */
+    public int[] sort(World world,int count,int unitCount)
+    {
+        final double modelMax = world.getSimulationParameters().modelMax;
+
+        int gridBits = 1;
+        while ( gridBits < MAX_GRID_BITS && ( 1 << (2*gridBits) ) < unitCount * TILES_PER_UNIT ) {
+            gridBits++;
+        }
+        final int tilesPerSide = 1 << gridBits;
+        final int tileCount = tilesPerSide * tilesPerSide;
+        final double tileScale = tilesPerSide / modelMax;
+
+        if ( tileOfBoid.length < count ) {
+            tileOfBoid = new int[ count ];
+            order = new int[ count ];
+        }
+        if ( tileStart.length < tileCount+1 ) {
+            tileStart = new int[ tileCount+1 ];
+        }
+
+        final int[] tiles = tileOfBoid;
+        final int[] starts = tileStart;
+        for ( int i = 0 ; i <= tileCount ; i++ ) {
+            starts[i] = 0;
+        }
+
+        // count boids per tile
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final Vec2d location = world.getBoid(i).location;
+            final int tx = clamp( (int) ( location.x * tileScale ) , tilesPerSide );
+            final int ty = clamp( (int) ( location.y * tileScale ) , tilesPerSide );
+            final int tile = interleave( tx ) | ( interleave( ty ) << 1 );
+            tiles[i] = tile;
+            starts[ tile+1 ]++;
+        }
+
+        // prefix sums
+        for ( int i = 1 ; i <= tileCount ; i++ ) {
+            starts[i] += starts[i-1];
+        }
+
+        // scatter
+        final int[] result = order;
+        for ( int i = 0 ; i < count ; i++ ) {
+            result[ starts[ tiles[i] ]++ ] = i;
+        }
+        return result;
+    }
+
+    private static int clamp(int value,int tilesPerSide)
+    {
+        if ( value < 0 ) {
+            return 0;
+        }
+        return value < tilesPerSide ? value : tilesPerSide-1;
+    }
+
+    // spreads the lower 16 bits of a value so that there's one zero bit between each of them
+    private static int interleave(int value)
+    {
+        int x = value & 0xffff;
+        x = (x | (x << 8)) & 0x00ff00ff;
+        x = (x | (x << 4)) & 0x0f0f0f0f;
+        x = (x | (x << 2)) & 0x33333333;
+        x = (x | (x << 1)) & 0x55555555;
+        return x;
+    }
+}
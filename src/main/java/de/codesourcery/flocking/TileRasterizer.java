@@ -0,0 +1,469 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Software rasterizer that draws boids as filled arrows directly into the <code>int[]</code> raster of a {@link BufferedImage}.
+ *
+ * <p>Rendering a world happens in three phases:</p>
+ * <ol>
+ *   <li>setup - the arrow triangle of each boid is transformed into screen coordinates and 
+ *   its bounding box is clipped against the screen (parallel)</li>
+ *   <li>binning - each visible triangle is added to the list of every {@link #TILE_SIZE}x{@link #TILE_SIZE} pixel 
+ *   tile its bounding box overlaps, using a counting sort (calling thread)</li>
+ *   <li>filling - each tile is cleared and its triangles are rasterized using edge functions (parallel). 
+ *   Since no two threads ever write to the same tile , no synchronization is needed.</li>
+ * </ol>
+ * <p>When zoomed in , only boids fetched by {@link Viewport#collectVisibleBoids(World, BoidStore)} are processed.</p>
+ * <p>The calling thread takes part in both parallel phases , work gets distributed by letting
+ * threads claim chunks of boids/tiles from a shared counter.</p>
+ * 
+ * <p>Internal buffers (and the image) are re-used across invocations.</p>
+ * <p>This class is <b>not</b> thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class TileRasterizer
+{
+    // tile size in pixels (power of two)
+    public static final int TILE_SIZE = 64;
+    private static final int TILE_SHIFT = 6;
+
+    // number of boids a thread claims at once during setup
+    private static final int SETUP_CHUNK_SIZE = 4096;
+
+    private final WorkerPool workers;
+
+    // created on demand by rasterize(World,Viewport,int,int,int,int)
+    private BufferedImage image;
+
+    private int width;
+    private int height;
+    private int tilesX;
+    private int tileCount;
+
+    // 6 floats (x0,y0,x1,y1,x2,y2) per triangle in screen coordinates
+    private float[] vertices = new float[0];
+    // 4 ints (minX,minY,maxX,maxY) per triangle in pixels , minX > maxX if the triangle is not visible
+    private int[] bounds = new int[0];
+    // triangle indices sorted by tile
+    private int[] binned = new int[0];
+    // index into binned[] of the first triangle of each tile
+    private int[] tileStart = new int[0];
+
+    // visible boids when zoomed in , created on demand
+    private BoidStore visibleBoids;
+
+    // per-frame state read by worker threads
+    private int[] pixels;
+    private World world;
+    private IBoidStore store; // store to read boids from , null to read them from the world
+    private int boidCount;
+    private double originX;
+    private double originY;
+    private double xInc;
+    private double yInc;
+    private int backgroundColor;
+    private int boidColor;
+
+    private final AtomicInteger nextChunk = new AtomicInteger();
+
+    private final Runnable setupTask = new Runnable() {
+
+        @Override
+        public void run()
+        {
+            final int chunkCount = ( boidCount + SETUP_CHUNK_SIZE - 1 ) / SETUP_CHUNK_SIZE;
+            for ( int chunk = nextChunk.getAndIncrement() ; chunk < chunkCount ; chunk = nextChunk.getAndIncrement() ) 
+            {
+                final int first = chunk * SETUP_CHUNK_SIZE;
+                setup( first , Math.min( boidCount , first + SETUP_CHUNK_SIZE ) );
+            }
+        }
+    };
+
+    private final Runnable fillTask = new Runnable() {
+
+        @Override
+        public void run()
+        {
+            for ( int tile = nextChunk.getAndIncrement() ; tile < tileCount ; tile = nextChunk.getAndIncrement() ) {
+                fill( tile );
+            }
+        }
+    };
+
+    /**
+     * Create instance.
+     * 
+     * @param threadCount number of threads to use (including the thread calling {@link #rasterize(World, Viewport, int, int, int, int)}), 
+     * a value of 1 does all work on the calling thread without setting up a thread pool
+     */
+    public TileRasterizer(int threadCount)
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        this.workers = new WorkerPool( "rasterizer-worker" , threadCount );
+    }
+
+    /**
+     * Renders a world.
+     * 
+     * @param world
+     * @param viewport part of the world to render
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param backgroundColor background color (RGB)
+     * @param boidColor boid color (RGB)
+     * @return image holding the rendered world , the image is re-used (and overwritten) by subsequent invocations
+     */
+    public BufferedImage rasterize(World world,Viewport viewport,int width,int height,int backgroundColor,int boidColor) 
+    {
+        width = Math.max( 1 , width );
+        height = Math.max( 1 , height );
+        if ( image == null || image.getWidth() != width || image.getHeight() != height ) {
+            image = new BufferedImage( width , height , BufferedImage.TYPE_INT_RGB );
+        }
+        rasterize( world , viewport , width , height , ( (DataBufferInt) image.getRaster().getDataBuffer() ).getData() , backgroundColor , boidColor );
+        return image;
+    }
+
+    /**
+     * Renders a world into a pixel array.
+     * 
+     * @param world
+     * @param viewport part of the world to render
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param pixels array to store RGB pixel values in , row by row , needs to hold at least <code>width*height</code> elements
+     * @param backgroundColor background color (RGB)
+     * @param boidColor boid color (RGB)
+     */
+    public void rasterize(World world,Viewport viewport,int width,int height,int[] pixels,int backgroundColor,int boidColor) 
+    {
+        if ( pixels.length < width * height ) {
+            throw new IllegalArgumentException("Pixel array too small");
+        }
+        setSize( width , height );
+        this.pixels = pixels;
+
+        final double modelMax = world.getSimulationParameters().modelMax;
+        this.world = world;
+        if ( viewport.isFullView() ) 
+        {
+            this.store = world.getBoidStore();
+            this.boidCount = world.getPopulationCount();
+        } 
+        else 
+        {
+            if ( visibleBoids == null ) {
+                visibleBoids = new BoidStore( 0 );
+            }
+            this.store = visibleBoids;
+            this.boidCount = viewport.collectVisibleBoids( world , visibleBoids );
+        }
+        this.originX = viewport.getMinX( modelMax );
+        this.originY = viewport.getMinY( modelMax );
+        this.xInc = this.width / viewport.getSize( modelMax );
+        this.yInc = this.height / viewport.getSize( modelMax );
+        this.backgroundColor = backgroundColor;
+        this.boidColor = boidColor;
+
+        if ( vertices.length < boidCount*6 ) {
+            vertices = new float[ boidCount * 6 ];
+            bounds = new int[ boidCount * 4 ];
+        }
+
+        try {
+            nextChunk.set( 0 );
+            workers.execute( setupTask );
+
+            bin();
+
+            nextChunk.set( 0 );
+            workers.execute( fillTask );
+        } finally {
+            this.world = null;
+            this.store = null;
+            this.pixels = null;
+        }
+    }
+
+    private void setSize(int width,int height) 
+    {
+        if ( tileStart.length > 0 && this.width == width && this.height == height ) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+
+        this.tilesX = ( width + TILE_SIZE - 1 ) >> TILE_SHIFT;
+        final int tilesY = ( height + TILE_SIZE - 1 ) >> TILE_SHIFT;
+        this.tileCount = tilesX * tilesY;
+        this.tileStart = new int[ tileCount + 1 ];
+    }
+
+    private void setup(int first,int last) 
+    {
+        final IBoidStore store = this.store;
+        final float[] v = vertices;
+        final int[] b = bounds;
+        final int maxX = width - 1;
+        final int maxY = height - 1;
+
+        for ( int i = first ; i < last ; i++ ) 
+        {
+            final double centerX;
+            final double centerY;
+            double headingX;
+            double headingY;
+            if ( store != null ) 
+            {
+                centerX = store.getX( i );
+                centerY = store.getY( i );
+                headingX = store.getVelocityX( i );
+                headingY = store.getVelocityY( i );
+            } 
+            else 
+            {
+                final Boid boid = world.getBoid( i );
+                centerX = boid.location.x;
+                centerY = boid.location.y;
+                headingX = boid.velocity.x;
+                headingY = boid.velocity.y;
+            }
+
+            double d = headingX*headingX + headingY*headingY;
+            if ( d > 0.00001 ) {
+                d = Math.sqrt( d );
+                headingX = headingX / d;
+                headingY = headingY / d;
+            }
+
+            final double viewX = centerX - originX;
+            final double viewY = centerY - originY;
+
+            // same arrow shape as drawn by SoftwareRenderer ,
+            // perpendicular vector is heading rotated 90 degrees clockwise
+            final float x0 = (float) ( ( viewX + headingY * IRenderer.ARROW_WIDTH ) * xInc );
+            final float y0 = (float) ( ( viewY - headingX * IRenderer.ARROW_WIDTH ) * yInc );
+            final float x1 = (float) ( ( viewX + headingX * IRenderer.ARROW_LENGTH ) * xInc );
+            final float y1 = (float) ( ( viewY + headingY * IRenderer.ARROW_LENGTH ) * yInc );
+            final float x2 = (float) ( ( viewX - headingY * IRenderer.ARROW_WIDTH ) * xInc );
+            final float y2 = (float) ( ( viewY + headingX * IRenderer.ARROW_WIDTH ) * yInc );
+
+            final int vOffset = i*6;
+            v[vOffset  ] = x0;
+            v[vOffset+1] = y0;
+            v[vOffset+2] = x1;
+            v[vOffset+3] = y1;
+            v[vOffset+4] = x2;
+            v[vOffset+5] = y2;
+
+            // pixels whose centers lie inside the bounding box , clipped to the screen
+            final int bOffset = i*4;
+            b[bOffset  ] = Math.max( 0 , (int) Math.ceil( Math.min( x0 , Math.min( x1 , x2 ) ) - 0.5f ) );
+            b[bOffset+1] = Math.max( 0 , (int) Math.ceil( Math.min( y0 , Math.min( y1 , y2 ) ) - 0.5f ) );
+            b[bOffset+2] = Math.min( maxX , (int) Math.floor( Math.max( x0 , Math.max( x1 , x2 ) ) - 0.5f ) );
+            b[bOffset+3] = Math.min( maxY , (int) Math.floor( Math.max( y0 , Math.max( y1 , y2 ) ) - 0.5f ) );
+            if ( b[bOffset+1] > b[bOffset+3] ) {
+                b[bOffset] = b[bOffset+2] + 1; // not visible
+            }
+        }
+    }
+
+    private void bin() 
+    {
+        final int[] b = bounds;
+        final int[] starts = tileStart;
+        final int count = boidCount;
+        final int tileCount = this.tileCount;
+        final int tilesX = this.tilesX;
+
+        for ( int i = 0 ; i <= tileCount ; i++ ) {
+            starts[i] = 0;
+        }
+
+        // count triangles per tile
+        for ( int i = 0 , offset = 0 ; i < count ; i++ , offset += 4 ) 
+        {
+            if ( b[offset] > b[offset+2] ) {
+                continue;
+            }
+            final int tx0 = b[offset] >> TILE_SHIFT;
+            final int tx1 = b[offset+2] >> TILE_SHIFT;
+            final int ty1 = b[offset+3] >> TILE_SHIFT;
+            for ( int ty = b[offset+1] >> TILE_SHIFT ; ty <= ty1 ; ty++ ) 
+            {
+                for ( int tx = tx0 ; tx <= tx1 ; tx++ ) {
+                    starts[ ty*tilesX + tx + 1 ]++;
+                }
+            }
+        }
+
+        // prefix sums
+        for ( int i = 1 ; i <= tileCount ; i++ ) {
+            starts[i] += starts[i-1];
+        }
+
+        if ( binned.length < starts[ tileCount ] ) {
+            binned = new int[ starts[ tileCount ] + starts[ tileCount ] / 4 ];
+        }
+
+        // scatter , afterwards starts[i] holds the end of tile i
+        final int[] result = binned;
+        for ( int i = 0 , offset = 0 ; i < count ; i++ , offset += 4 ) 
+        {
+            if ( b[offset] > b[offset+2] ) {
+                continue;
+            }
+            final int tx0 = b[offset] >> TILE_SHIFT;
+            final int tx1 = b[offset+2] >> TILE_SHIFT;
+            final int ty1 = b[offset+3] >> TILE_SHIFT;
+            for ( int ty = b[offset+1] >> TILE_SHIFT ; ty <= ty1 ; ty++ ) 
+            {
+                for ( int tx = tx0 ; tx <= tx1 ; tx++ ) {
+                    result[ starts[ ty*tilesX + tx ]++ ] = i;
+                }
+            }
+        }
+    }
+
+    private void fill(int tile) 
+    {
+        final int[] p = pixels;
+        final int w = width;
+
+        final int clipMinX = ( tile % tilesX ) << TILE_SHIFT;
+        final int clipMinY = ( tile / tilesX ) << TILE_SHIFT;
+        final int clipMaxX = Math.min( w , clipMinX + TILE_SIZE ) - 1;
+        final int clipMaxY = Math.min( height , clipMinY + TILE_SIZE ) - 1;
+
+        // clear tile
+        for ( int y = clipMinY ; y <= clipMaxY ; y++ ) 
+        {
+            final int row = y * w;
+            for ( int x = clipMinX ; x <= clipMaxX ; x++ ) {
+                p[ row + x ] = backgroundColor;
+            }
+        }
+
+        final float[] v = vertices;
+        final int[] b = bounds;
+        final int color = boidColor;
+
+        // binning left the end of each tile in tileStart[tile] , 
+        // so tile i covers tileStart[i-1] ... tileStart[i]-1
+        final int first = tile > 0 ? tileStart[ tile-1 ] : 0;
+        final int last = tileStart[ tile ];
+        for ( int j = first ; j < last ; j++ ) 
+        {
+            final int i = binned[j];
+            final int bOffset = i*4;
+            final int minX = Math.max( clipMinX , b[bOffset] );
+            final int minY = Math.max( clipMinY , b[bOffset+1] );
+            final int maxX = Math.min( clipMaxX , b[bOffset+2] );
+            final int maxY = Math.min( clipMaxY , b[bOffset+3] );
+
+            final int vOffset = i*6;
+            final float x0 = v[vOffset];
+            final float y0 = v[vOffset+1];
+            float x1 = v[vOffset+2];
+            float y1 = v[vOffset+3];
+            float x2 = v[vOffset+4];
+            float y2 = v[vOffset+5];
+
+            // make vertices counter-clockwise so that inside pixels have non-negative edge functions
+            final float area = ( x1 - x0 ) * ( y2 - y0 ) - ( y1 - y0 ) * ( x2 - x0 );
+            if ( area == 0 ) {
+                continue;
+            }
+            if ( area < 0 ) 
+            {
+                float tmp = x1; x1 = x2; x2 = tmp;
+                tmp = y1; y1 = y2; y2 = tmp;
+            }
+
+            // edge function E(px,py) = (bx-ax)*(py-ay) - (by-ay)*(px-ax) for edges 0->1 , 1->2 and 2->0
+            final float stepX0 = y0 - y1;
+            final float stepX1 = y1 - y2;
+            final float stepX2 = y2 - y0;
+
+            // instead of testing each pixel , solve E(x) >= 0 for the span of pixels covered in each row
+            final float inv0 = 1f / stepX0;
+            final float inv1 = 1f / stepX1;
+            final float inv2 = 1f / stepX2;
+
+            final float px = minX + 0.5f;
+            final float py = minY + 0.5f;
+            float e0 = ( x1 - x0 ) * ( py - y0 ) + stepX0 * ( px - x0 );
+            float e1 = ( x2 - x1 ) * ( py - y1 ) + stepX1 * ( px - x1 );
+            float e2 = ( x0 - x2 ) * ( py - y2 ) + stepX2 * ( px - x2 );
+            final float maxOffset = maxX - minX;
+
+            for ( int row = minY * w + minX , lastRow = maxY * w + minX ; row <= lastRow ; row += w ) 
+            {
+                final float left = Math.max( spanStart( e0 , stepX0 , inv0 ) , Math.max( spanStart( e1 , stepX1 , inv1 ) , spanStart( e2 , stepX2 , inv2 ) ) );
+                final float right = Math.min( maxOffset , Math.min( spanEnd( e0 , stepX0 , inv0 ) , Math.min( spanEnd( e1 , stepX1 , inv1 ) , spanEnd( e2 , stepX2 , inv2 ) ) ) );
+
+                e0 += x1 - x0;
+                e1 += x2 - x1;
+                e2 += x0 - x2;
+
+                if ( left > right ) {
+                    continue;
+                }
+                final int end = row + (int) right;
+                for ( int offset = row + (int) Math.ceil( left ) ; offset <= end ; offset++ ) {
+                    p[ offset ] = color;
+                }
+            }
+        }
+    }
+
+    // returns the smallest pixel offset k >= 0 for which e + k*step >= 0 
+    private static float spanStart(float e,float step,float invStep) 
+    {
+        if ( step > 0 ) {
+            return Math.max( 0 , -e * invStep );
+        }
+        return step < 0 || e >= 0 ? 0 : Float.POSITIVE_INFINITY;
+    }
+
+    // returns the largest pixel offset k for which e + k*step >= 0 
+    private static float spanEnd(float e,float step,float invStep) 
+    {
+        if ( step < 0 ) {
+            return -e * invStep;
+        }
+        return step > 0 || e >= 0 ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Shuts down the thread pool used by this rasterizer.
+     * 
+     * <p>Rendering still works afterwards but all work will be done by the calling thread.</p>
+     */
+    public void dispose() 
+    {
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free hand-off of values (usually {@link World}s) from a single producer to a single consumer thread.
+ *
+ * <p>Uses three slots: the producer owns the <i>back</i> slot , the consumer owns the <i>front</i> slot and the 
+ * <i>middle</i> slot is exchanged atomically. {@link #publish(Object)} stores a value in the back slot and swaps 
+ * it with the middle slot , {@link #acquire()} swaps the front slot with the middle slot if the 
+ * latter holds a value that has not been consumed yet. Neither side ever waits for the other , the consumer always 
+ * gets the most recently published value and values that got replaced before being consumed are dropped.</p>
+ * 
+ * <p>Values that are dropped or that the consumer is done with are passed to {@link #discard(Object)} (on the producer's thread).</p>
+ * 
+ * <p>This class is thread-safe for one producer and one consumer thread.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class TripleBuffer<T>
+{
+    // set in the state if the middle slot holds a value that has not been consumed yet
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final Object[] slots = new Object[3];
+
+    // index of the middle slot | FRESH flag
+    private final AtomicInteger state = new AtomicInteger( 1 );
+
+    // only accessed by the producer thread
+    private int back = 0;
+
+    // only accessed by the consumer thread
+    private int front = 2;
+
+    /**
+     * Publishes a value.
+     * 
+     * <p>Must only be called by the producer thread , never blocks.</p>
+     * 
+     * @param value
+     */
+    public final void publish(T value) 
+    {
+        slots[ back ] = value;
+        final int previous = state.getAndSet( back | FRESH );
+        back = previous & INDEX_MASK;
+
+        // the new back slot holds either a value that was never consumed or the one the consumer just gave up
+        @SuppressWarnings("unchecked")
+        final T old = (T) slots[ back ];
+        slots[ back ] = null;
+        if ( old != null ) {
+            discard( old );
+        }
+    }
+
+    /**
+     * Returns the most recently published value.
+     * 
+     * <p>Must only be called by the consumer thread , never blocks. The returned value stays valid 
+     * until the next call to this method.</p>
+     * 
+     * @return the most recently published value or the value returned by the previous invocation if nothing has been 
+     * published since (<code>null</code> if nothing has been published at all)
+     */
+    @SuppressWarnings("unchecked")
+    public final T acquire() 
+    {
+        if ( ( state.get() & FRESH ) != 0 ) 
+        {
+            final int previous = state.getAndSet( front );
+            front = previous & INDEX_MASK;
+        }
+        return (T) slots[ front ];
+    }
+
+    /**
+     * Discards all values.
+     * 
+     * <p>Must only be called when neither the producer nor the consumer are using this buffer.</p>
+     */
+    @SuppressWarnings("unchecked")
+    public final void clear() 
+    {
+        for ( int i = 0 ; i < slots.length ; i++ ) 
+        {
+            final T value = (T) slots[i];
+            slots[i] = null;
+            if ( value != null ) {
+                discard( value );
+            }
+        }
+    }
+
+    /**
+     * Invoked for values that got dropped or that the consumer is done with.
+     * 
+     * <p>Default implementation does nothing.</p>
+     * 
+     * @param value
+     */
+    protected void discard(T value) 
+    {
+    }
+}
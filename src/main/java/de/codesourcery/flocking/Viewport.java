@@ -0,0 +1,172 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import de.codesourcery.flocking.World.IBoidStateVisitor;
+
+/**
+ * Part of the model that should be displayed by a renderer.
+ *
+ * <p>The viewport is a square described by its center and a zoom factor , both relative to the model size 
+ * so that they stay valid when {@link SimulationParameters#modelMax} changes. A zoom factor of 1 shows the whole model.</p>
+ * <p>Screen coordinates passed to {@link #zoom(double, double, double)} and {@link #pan(double, double)} are fractions of the
+ * screen size with (0,0) being where the viewport's minimum model coordinates are displayed.</p>
+ * 
+ * <p>Instances are immutable , so renderers can hand them between the UI and rendering threads through a <code>volatile</code> field.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class Viewport
+{
+    /**
+     * Viewport that displays the whole model.
+     */
+    public static final Viewport FULL = new Viewport( 0.5 , 0.5 , 1 );
+
+    public static final double MAX_ZOOM = 1000;
+
+    // viewport center as fraction of the model size
+    public final double centerX;
+    public final double centerY;
+
+    public final double zoom;
+
+    /**
+     * Create instance.
+     * 
+     * @param centerX viewport center as fraction of the model size
+     * @param centerY viewport center as fraction of the model size
+     * @param zoom zoom factor , gets clamped to <code>[1,MAX_ZOOM]</code>. The center gets moved as necessary
+     * so that the viewport does not extend beyond the model.
+     */
+    public Viewport(double centerX,double centerY,double zoom)
+    {
+        this.zoom = Math.max( 1 , Math.min( MAX_ZOOM , zoom ) );
+        final double halfSize = 0.5 / this.zoom;
+        this.centerX = Math.max( halfSize , Math.min( 1 - halfSize , centerX ) );
+        this.centerY = Math.max( halfSize , Math.min( 1 - halfSize , centerY ) );
+    }
+
+    /**
+     * Check whether this viewport displays the whole model.
+     * 
+     * @return
+     */
+    public boolean isFullView() 
+    {
+        return zoom == 1;
+    }
+
+    /**
+     * Returns the size of the displayed area.
+     * 
+     * @param modelMax
+     * @return width (= height) in model coordinates
+     */
+    public double getSize(double modelMax) 
+    {
+        return modelMax / zoom;
+    }
+
+    /**
+     * Returns the smallest X coordinate being displayed.
+     * 
+     * @param modelMax
+     * @return
+     */
+    public double getMinX(double modelMax) 
+    {
+        return ( centerX - 0.5 / zoom ) * modelMax;
+    }
+
+    /**
+     * Returns the smallest Y coordinate being displayed.
+     * 
+     * @param modelMax
+     * @return
+     */
+    public double getMinY(double modelMax) 
+    {
+        return ( centerY - 0.5 / zoom ) * modelMax;
+    }
+
+    /**
+     * Zooms in or out , keeping the model location displayed at a given screen location in place.
+     * 
+     * @param factor values > 1 zoom in
+     * @param screenX screen location as fraction of the screen width
+     * @param screenY screen location as fraction of the screen height
+     * @return
+     */
+    public Viewport zoom(double factor,double screenX,double screenY) 
+    {
+        final double newZoom = Math.max( 1 , Math.min( MAX_ZOOM , zoom * factor ) );
+        final double x = centerX + ( screenX - 0.5 ) / zoom;
+        final double y = centerY + ( screenY - 0.5 ) / zoom;
+        return new Viewport( x - ( screenX - 0.5 ) / newZoom , y - ( screenY - 0.5 ) / newZoom , newZoom );
+    }
+
+    /**
+     * Moves the viewport.
+     * 
+     * @param screenDX distance as fraction of the screen width
+     * @param screenDY distance as fraction of the screen height
+     * @return
+     */
+    public Viewport pan(double screenDX,double screenDY) 
+    {
+        return new Viewport( centerX + screenDX / zoom , centerY + screenDY / zoom , zoom );
+    }
+
+    /**
+     * Copies all boids whose arrows may be (partially) visible in this viewport to a store.
+     * 
+     * <p>Uses {@link World#visitBoidsInRectangle(double, double, double, double, IBoidStateVisitor)}
+     * so the cost depends on the number of visible boids , not on the population size.</p>
+     * 
+     * @param world
+     * @param target store to copy boids to , starting at index 0. Grown as necessary.
+     * @return number of boids copied
+     */
+    public int collectVisibleBoids(World world,final BoidStore target) 
+    {
+        final double modelMax = world.getSimulationParameters().modelMax;
+        final double minX = getMinX( modelMax ) - IRenderer.ARROW_LENGTH;
+        final double minY = getMinY( modelMax ) - IRenderer.ARROW_LENGTH;
+        final double size = getSize( modelMax ) + 2 * IRenderer.ARROW_LENGTH;
+
+        final int[] count = { 0 };
+        world.visitBoidsInRectangle( minX , minY , minX + size , minY + size , new IBoidStateVisitor() {
+
+            @Override
+            public void visit(double x,double y,double velocityX,double velocityY)
+            {
+                final int index = count[0]++;
+                if ( index >= target.getCapacity() ) {
+                    target.ensureCapacity( index + 1 ); // grows by a whole chunk
+                }
+                target.set( index , x , y , velocityX , velocityY , 0 , 0 );
+            }
+        });
+        return count[0];
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Viewport[ center=("+centerX+","+centerY+") , zoom="+zoom+" ]";
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+/**
+ * Picks the number of work units and worker threads used by {@link Simulation#advance()}.
+ *
+ * <p>The simulation reports the execution time of each work unit along with the total
+ * frame time after every step. Decisions are based on measurements averaged over {@link #FRAMES_PER_DECISION} frames:</p>
+ * <ul>
+ *   <li>if work units are so small that scheduling overhead dominates, the unit count is halved</li>
+ *   <li>if the slowest work unit takes up a large part of the frame time (so threads sit idle while
+ *   waiting for it), the unit count is doubled - unless halved work units would be shorter than {@link #GROW_MARGIN} 
+ *   times the min. duration</li>
+ * </ul>
+ * <p>With small populations both conditions may hold at the same time , the margin leaves a dead band between 
+ * the two thresholds so the unit count doesn't flip back and forth between decisions.</p>
+ * <p>Every {@link #PROBE_INTERVAL} decisions the thread count gets adjusted by hill-climbing: a neighbouring 
+ * thread count is tried and kept only if it lowers the average frame time (per boid) by at least {@link #MIN_IMPROVEMENT}.
+ * Probing is repeated periodically because the optimum changes as flocks form and disperse.</p>
+ *
+ * <p>This class is <b>not</b> thread-safe except for the getter methods.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class WorkUnitController
+{
+    public static final int FRAMES_PER_DECISION = 8;
+
+    // work units shorter than this are considered to be dominated by scheduling overhead
+    public static final long MIN_UNIT_NANOS = 50 * 1000;
+
+    // max. fraction of the frame time a single work unit may take
+    public static final double MAX_UNIT_FRACTION = 0.1;
+
+    // the unit count is only doubled if the resulting work units take at least this many times MIN_UNIT_NANOS
+    public static final double GROW_MARGIN = 1.5;
+
+    public static final double MIN_IMPROVEMENT = 0.03;
+
+    public static final int PROBE_INTERVAL = 16;
+
+    private static final int MAX_UNITS_PER_THREAD = 1024;
+
+    private final int maxThreadCount;
+
+    private volatile int threadCount;
+    private volatile int unitCount;
+    private volatile long lastFrameNanos;
+
+    // measurements for the current decision window
+    private int frameCount;
+    private double frameNanosPerBoidSum;
+    private long unitNanosSum;
+    private long unitCountSum;
+    private double maxUnitFractionSum;
+
+    // thread count hill-climbing state
+    private int decisionsUntilProbe = PROBE_INTERVAL;
+    private int probeDirection = -1;
+    private int previousThreadCount = -1; // thread count before the current probe, -1 if not probing
+    private double previousFrameNanosPerBoid;
+
+    /**
+     * Create instance.
+     *
+     * @param maxThreadCount max. number of threads that may be used
+     * @param initialUnitsPerThread initial number of work units per thread
+     */
+    public WorkUnitController(int maxThreadCount,int initialUnitsPerThread)
+    {
+        if ( maxThreadCount < 1 || initialUnitsPerThread < 1 ) {
+            throw new IllegalArgumentException("Thread count and units per thread must be >= 1");
+        }
+        this.maxThreadCount = maxThreadCount;
+        this.threadCount = maxThreadCount;
+        this.unitCount = maxThreadCount * initialUnitsPerThread;
+    }
+
+    /**
+     * Returns the number of threads to use for the next frame.
+     *
+     * @return
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Returns the number of work units to use for the next frame.
+     *
+     * @return
+     */
+    public int getUnitCount()
+    {
+        return unitCount;
+    }
+
+    /**
+     * Returns the time it took to process the last frame.
+     *
+     * @return time in nanoseconds
+     */
+    public long getLastFrameNanos()
+    {
+        return lastFrameNanos;
+    }
+
+    /**
+     * Report measurements for a frame that has been processed.
+     *
+     * @param frameNanos time it took to process all work units
+     * @param unitNanos execution time of each work unit
+     * @param unitCount number of work units that were processed
+     * @param boidCount number of boids that were processed
+     */
+    public void frameFinished(long frameNanos,long[] unitNanos,int unitCount,int boidCount)
+    {
+        lastFrameNanos = frameNanos;
+
+        long sum = 0;
+        long max = 0;
+        for ( int i = 0 ; i < unitCount ; i++ )
+        {
+            final long value = unitNanos[i];
+            sum += value;
+            if ( value > max ) {
+                max = value;
+            }
+        }
+
+        frameNanosPerBoidSum += frameNanos / (double) Math.max( 1 , boidCount );
+        unitNanosSum += sum;
+        unitCountSum += unitCount;
+        maxUnitFractionSum += frameNanos > 0 ? max / (double) frameNanos : 0;
+
+        if ( ++frameCount >= FRAMES_PER_DECISION )
+        {
+            decide( frameNanosPerBoidSum / frameCount , unitNanosSum / (double) unitCountSum , maxUnitFractionSum / frameCount );
+
+            frameCount = 0;
+            frameNanosPerBoidSum = 0;
+            unitNanosSum = 0;
+            unitCountSum = 0;
+            maxUnitFractionSum = 0;
+        }
+    }
+
+    private void decide(double frameNanosPerBoid,double avgUnitNanos,double maxUnitFraction)
+    {
+        if ( previousThreadCount != -1 )
+        {
+            // evaluate thread count probe
+            if ( frameNanosPerBoid > previousFrameNanosPerBoid * ( 1 - MIN_IMPROVEMENT ) )
+            {
+                // no improvement, revert and try the other direction next time
+                threadCount = previousThreadCount;
+                probeDirection = -probeDirection;
+            }
+            previousThreadCount = -1;
+            decisionsUntilProbe = PROBE_INTERVAL;
+            return;
+        }
+
+        final int threads = threadCount;
+        if ( --decisionsUntilProbe <= 0 )
+        {
+            int newThreadCount = threads + probeDirection;
+            if ( newThreadCount < 1 || newThreadCount > maxThreadCount ) {
+                probeDirection = -probeDirection;
+                newThreadCount = threads + probeDirection;
+            }
+
+            if ( newThreadCount >= 1 && newThreadCount <= maxThreadCount )
+            {
+                previousThreadCount = threads;
+                previousFrameNanosPerBoid = frameNanosPerBoid;
+                threadCount = newThreadCount;
+                unitCount = Math.max( unitCount , newThreadCount );
+                return;
+            } 
+            decisionsUntilProbe = PROBE_INTERVAL;
+        }
+
+        if ( avgUnitNanos < MIN_UNIT_NANOS && unitCount > threads )
+        {
+            unitCount = Math.max( threads , unitCount / 2 );
+        } 
+        else if ( maxUnitFraction > MAX_UNIT_FRACTION && unitCount < threads * MAX_UNITS_PER_THREAD && 
+                avgUnitNanos / 2 >= MIN_UNIT_NANOS * GROW_MARGIN )
+        {
+            unitCount = Math.min( threads * MAX_UNITS_PER_THREAD , unitCount * 2 );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "threads="+threadCount+", work units="+unitCount+", last frame="+(lastFrameNanos/1000)+" us";
+    }
+}
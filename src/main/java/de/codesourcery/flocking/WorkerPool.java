@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a task on several threads at once and waits for all of them to finish.
+ *
+ * <p>Used for data-parallel passes where every thread runs the same task and claims work 
+ * (for example ranges of boids) from a shared counter. The calling thread always takes part , 
+ * so a pool for <code>n</code> threads only starts <code>n-1</code> (daemon) threads and a pool 
+ * for a single thread runs everything on the calling thread.</p>
+ * <p>After {@link #shutdown()} tasks are still executed but only on the calling thread.</p>
+ *
+ * <p>This class is thread-safe , tasks passed to {@link #execute(int, Runnable)} by different threads 
+ * share the pool threads.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class WorkerPool
+{
+    private final int threadCount;
+
+    // null if all work is done by the calling thread
+    private final ExecutorService threadPool;
+
+    /**
+     * Create instance.
+     * 
+     * @param name name of the pool threads
+     * @param threadCount max. number of threads a task may run on (including the calling thread)
+     */
+    public WorkerPool(final String name,int threadCount)
+    {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be >= 1");
+        }
+        this.threadCount = threadCount;
+
+        if ( threadCount > 1 ) 
+        {
+            final ThreadFactory threadFactory = new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    final Thread t= new Thread(r,name);
+                    t.setDaemon( true );
+                    return t;
+                }
+            };
+            this.threadPool = new ThreadPoolExecutor( threadCount-1 , threadCount-1 , 1 , TimeUnit.MINUTES , new LinkedBlockingQueue<Runnable>() , threadFactory );
+        } else {
+            this.threadPool = null;
+        }
+    }
+
+    /**
+     * Returns the max. number of threads a task may run on.
+     * 
+     * @return
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Runs a task on all threads of this pool (including the calling thread) and waits for all of them to finish.
+     * 
+     * @param task
+     * @see #execute(int, Runnable)
+     */
+    public void execute(Runnable task) 
+    {
+        execute( threadCount , task );
+    }
+
+    /**
+     * Runs a task on some threads of this pool (including the calling thread) and waits for all of them to finish.
+     * 
+     * <p>Runs the task exactly <code>threads</code> times. If any run fails , the first exception gets 
+     * re-thrown on the calling thread (wrapped in a <code>RuntimeException</code> if it is a checked exception).</p>
+     * 
+     * @param threads number of threads to run the task on , values above {@link #getThreadCount()} are clamped
+     * @param task
+     */
+    public void execute(int threads,final Runnable task) 
+    {
+        final int poolThreads = threadPool == null ? 0 : Math.max( 0 , Math.min( threads , threadCount ) - 1 );
+        final CountDownLatch workerThreads = new CountDownLatch( poolThreads );
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // number of runs the calling thread has to do itself
+        int callerRuns = 1;
+        for ( int i = 0 ; i < poolThreads ; i++ ) 
+        {
+            try 
+            {
+                threadPool.execute( new Runnable() 
+                {
+                    public void run() 
+                    {
+                        try {
+                            task.run();
+                        } 
+                        catch(Throwable t) {
+                            failure.compareAndSet( null , t );
+                        } 
+                        finally {
+                            workerThreads.countDown();
+                        }                   
+                    };
+                } );
+            } 
+            catch(RejectedExecutionException e) 
+            {
+                // pool has been shut down , the calling thread will pick up the work
+                workerThreads.countDown();
+                callerRuns++;
+            }
+        }
+
+        try 
+        {
+            for ( int i = 0 ; i < callerRuns ; i++ ) {
+                task.run();
+            }
+        } 
+        finally 
+        {
+            // wait for worker threads to finish
+            try {
+                workerThreads.await();
+            } 
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        final Throwable t = failure.get();
+        if ( t instanceof RuntimeException ) {
+            throw (RuntimeException) t;
+        }
+        if ( t instanceof Error ) {
+            throw (Error) t;
+        }
+        if ( t != null ) {
+            throw new RuntimeException( t );
+        }
+    }
+
+    /**
+     * Stops the pool threads.
+     * 
+     * <p>Tasks that are currently running are allowed to finish , subsequent tasks run on the calling thread only.</p>
+     */
+    public void shutdown() 
+    {
+        if ( threadPool != null ) {
+            threadPool.shutdown();
+        }
+    }
+}
@@ -15,9 +15,15 @@
  */
 package de.codesourcery.flocking;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.codesourcery.flocking.KDTree.ValueVisitor;
 
@@ -27,25 +33,191 @@ import de.codesourcery.flocking.KDTree.ValueVisitor;
  * <p>This class holds a simulation state along with the simulation
  * parameters that were used when creating it.</p>
  * 
- * <p>This class is <b>not</b> thread-safe except for the {@link #add(Boid)} method.</p>
+ * <p>Worlds can be populated in two ways:</p>
+ * <ul>
+ *   <li>by calling {@link #add(Boid)} , or</li>
+ *   <li>by creating the world with a fixed population size using {@link #World(SimulationParameters, int)}, storing 
+ *   each boid in its slot using {@link #set(int, Boid)} , adding each slot to the spatial index using {@link #addToIndex(int)} 
+ *   (or all slots at once using {@link #buildIndex()}) and finally calling {@link #seal()}. Different threads may populate different slots concurrently without any locking.</li>
+ * </ul>
+ * 
+ * <p>Worlds may alternatively keep their boids in an off-heap {@link IBoidStore} (see {@link OffHeapSimulation}). Such
+ * worlds have no spatial index , {@link Boid} instances returned by their methods are created on-the-fly 
+ * and code that processes all boids should use {@link #visitAllBoids(IBoidStateVisitor)} instead.</p>
+ * 
+ * <p>Worlds may also hold render records (see {@link #enableRenderData()}) that get written while the world is being 
+ * populated , so renderers do not need another pass over all boids.</p>
+ * 
+ * <p>Worlds created by a {@link FrameArena} are reference-counted and get recycled by the arena
+ * once the last reference has been released , see {@link #retain()} and {@link #release()}.</p>
+ * 
+ * <p>This class is <b>not</b> thread-safe except for the {@link #add(Boid)} , {@link #set(int, Boid)} ,
+ * {@link #addToIndex(int)} , {@link #retain()} and {@link #release()} methods.</p>
  * 
  * @author tobias.gierke@code-sourcery.de
  */
 public final class World
 {
+	/**
+	 * Number of floats per render record: x , y , heading (see {@link #encodeHeading(double, double)}).
+	 */
+	public static final int RENDER_RECORD_SIZE = 3;
+
 	private final KDTree<Boid> tree = new KDTree<Boid>();
 
-	// separate list to keep track of all boids that have been added to
+	// separate array to keep track of all boids that have been added to
 	// the kd-tree , required because traversing the tree to collect
 	// all boids is too slow
-	private final List<Boid> allBoids = new ArrayList<>();
+	private Boid[] allBoids;
 
-	private final SimulationParameters simulationParameters;
+	// @GuardedBy( this ) while being populated through add()
+	private int size;
+
+	// number of slots when populated through set()
+	private int slotCount;
+
+	// NULL unless boids are kept off-heap
+	private final IBoidStore store;
+
+	private SimulationParameters simulationParameters;
+
+	// arena this world gets returned to , NULL if not managed by an arena
+	private final FrameArena arena;
+	private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+	// render records , kept across resets to avoid re-allocating direct memory
+	private FloatBuffer renderData;
+	private boolean renderDataEnabled;
 
 	public World(SimulationParameters simulationParameters) {
+		this( simulationParameters , 0 );
+		this.allBoids = new Boid[ Math.max( 16 , simulationParameters.populationSize ) ];
+	} 
+
+	/**
+	 * Creates a world with a fixed number of slots. 
+	 * 
+	 * <p>All slots need to be populated using {@link #set(int, Boid)} and {@link #addToIndex(int)} 
+	 * before calling {@link #seal()}.</p>
+	 * 
+	 * @param simulationParameters
+	 * @param populationCount
+	 */
+	public World(SimulationParameters simulationParameters,int populationCount) {
+		this( simulationParameters , populationCount , null );
+	} 
+
+	protected World(SimulationParameters simulationParameters,int populationCount,FrameArena arena) {
+		this.simulationParameters = simulationParameters;
+		this.allBoids = new Boid[ populationCount ];
+		this.slotCount = populationCount;
+		this.arena = arena;
+		this.store = null;
+		if ( arena != null ) {
+			tree.ensureCapacity( populationCount );
+		}
+	} 
+
+	/**
+	 * Creates a world that keeps its boids in an off-heap store.
+	 * 
+	 * <p>All records need to be populated (either directly in the store or using {@link #set(int, Boid)}) 
+	 * before calling {@link #seal()}.</p>
+	 * 
+	 * @param simulationParameters
+	 * @param store
+	 * @param populationCount
+	 * @param arena arena this world belongs to , may be <code>null</code>
+	 */
+	protected World(SimulationParameters simulationParameters,IBoidStore store,int populationCount,FrameArena arena) {
 		this.simulationParameters = simulationParameters;
+		this.allBoids = new Boid[0];
+		this.slotCount = populationCount;
+		this.arena = arena;
+		this.store = store;
+		store.reset( simulationParameters , populationCount );
 	} 
 
+	/**
+	 * Returns the off-heap store holding this world's boids.
+	 * 
+	 * @return store or <code>null</code> if this world keeps {@link Boid} instances
+	 */
+	public IBoidStore getBoidStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Prepares a recycled world for being populated again.
+	 * 
+	 * <p>Keeps the slot array and all kd-tree nodes so that re-populating 
+	 * the world (almost) does not allocate any objects.</p>
+	 * 
+	 * @param simulationParameters
+	 * @param populationCount
+	 */
+	protected void reset(SimulationParameters simulationParameters,int populationCount) 
+	{
+		this.simulationParameters = simulationParameters;
+		this.slotCount = populationCount;
+		this.size = 0;
+		this.renderDataEnabled = false;
+		referenceCount.set( 1 );
+
+		if ( store != null ) {
+			store.reset( simulationParameters , populationCount );
+			return;
+		}
+
+		if ( allBoids.length < populationCount ) {
+			allBoids = new Boid[ populationCount ];
+		} else {
+			// do not keep boids from the previous frame reachable
+			Arrays.fill( allBoids , populationCount , allBoids.length , null );
+		}
+		tree.clear();
+		tree.ensureCapacity( populationCount );
+	}
+
+	/**
+	 * Acquires an additional reference to this world.
+	 * 
+	 * <p>Each reference needs to be released by calling {@link #release()} once 
+	 * it is no longer used.</p>
+	 * 
+	 * @return this instance
+	 */
+	public World retain() 
+	{
+		if ( arena != null && referenceCount.getAndIncrement() <= 0 ) {
+			throw new IllegalStateException("retain() called on recycled world");
+		}
+		return this;
+	}
+
+	/**
+	 * Releases a reference to this world.
+	 * 
+	 * <p>Once the last reference has been released , worlds created by a {@link FrameArena} are
+	 * returned to the arena and must no longer be accessed. This method does nothing
+	 * for worlds that are not managed by an arena.</p>
+	 */
+	public void release() 
+	{
+		if ( arena == null ) {
+			return;
+		}
+
+		final int count = referenceCount.decrementAndGet();
+		if ( count == 0 ) {
+			arena.recycle( this );
+		} 
+		else if ( count < 0 ) {
+			throw new IllegalStateException("release() called on recycled world");
+		}
+	}
+
 	public SimulationParameters getSimulationParameters()
 	{
 		return simulationParameters;
@@ -60,19 +232,234 @@ public final class World
 	 */
 	public void add(Boid boid) 
 	{
-		synchronized( allBoids ) {
-			allBoids.add( boid );
+		if ( store != null ) {
+			throw new UnsupportedOperationException("add() not supported by off-heap worlds");
+		}
+
+		synchronized( this ) 
+		{
+			if ( size == allBoids.length ) {
+				allBoids = Arrays.copyOf( allBoids , Math.max( 16 , allBoids.length * 2 ) );
+			}
+			allBoids[ size++ ] = boid;
 		}
 
 		final Vec2d loc = boid.getLocation();        
 		tree.add( loc.x , loc.y , boid );
 	}
 
+	/**
+	 * Stores a boid in a slot.
+	 * 
+	 * <p>This method is thread-safe as long as different threads store
+	 * to different slots. Note that the boid does not become visible to
+	 * neighbour queries until {@link #addToIndex(int)} gets called for its slot.</p>
+	 * 
+	 * @param index slot index
+	 * @param boid
+	 * @see #World(SimulationParameters, int)
+	 */
+	public void set(int index,Boid boid) 
+	{
+		if ( store != null ) {
+			store.set( index , boid );
+		} else {
+			allBoids[index] = boid;
+		}
+
+		if ( renderDataEnabled ) 
+		{
+			// absolute puts , safe for concurrent writes to different slots
+			final int offset = index * RENDER_RECORD_SIZE;
+			final FloatBuffer buffer = renderData;
+			buffer.put( offset , (float) boid.location.x );
+			buffer.put( offset+1 , (float) boid.location.y );
+			buffer.put( offset+2 , encodeHeading( boid.velocity.x , boid.velocity.y ) );
+		}
+	}
+
+	/**
+	 * Makes {@link #set(int, Boid)} write a render record for each boid.
+	 * 
+	 * <p>Needs to be called before populating the world. Render records are a
+	 * direct buffer holding {@link #RENDER_RECORD_SIZE} floats per slot (see {@link #getRenderData()}).</p>
+	 */
+	public void enableRenderData() 
+	{
+		final int capacity = slotCount * RENDER_RECORD_SIZE;
+		if ( renderData == null || renderData.capacity() < capacity ) {
+			renderData = ByteBuffer.allocateDirect( capacity * 4 ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+		}
+		renderDataEnabled = true;
+	}
+
+	/**
+	 * Returns the render records written while populating this world.
+	 * 
+	 * @return buffer holding {@link #RENDER_RECORD_SIZE} floats for each boid (position 0 , limit = number of floats) or 
+	 * <code>null</code> if render data was not enabled for this world
+	 * @see #enableRenderData()
+	 */
+	public FloatBuffer getRenderData() 
+	{
+		if ( ! renderDataEnabled ) {
+			return null;
+		}
+		final FloatBuffer result = renderData.duplicate();
+		result.clear().limit( getPopulationCount() * RENDER_RECORD_SIZE );
+		return result;
+	}
+
+	/**
+	 * Maps a direction to a value in [0,4) that increases monotonically with the direction's angle.
+	 * 
+	 * <p>Cheaper than {@link Math#atan2(double, double)}. The direction can be recovered (up to its length) 
+	 * using {@link #decodeHeadingX(float)} and {@link #decodeHeadingY(float)}.</p>
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public static float encodeHeading(double x,double y) 
+	{
+		if ( y >= 0 ) 
+		{
+			if ( x >= 0 ) {
+				final double sum = x + y;
+				return sum > 0 ? (float) ( y / sum ) : 0;
+			}
+			return (float) ( 1 - x / ( -x + y ) );
+		}
+		if ( x < 0 ) {
+			return (float) ( 2 - y / ( -x - y ) );
+		}
+		return (float) ( 3 + x / ( x - y ) );
+	}
+
+	/**
+	 * Returns the X component of a (not normalized) direction encoded by {@link #encodeHeading(double, double)}.
+	 * 
+	 * @param heading
+	 * @return
+	 */
+	public static float decodeHeadingX(float heading) 
+	{
+		if ( heading < 2 ) {
+			return 1 - heading;
+		}
+		return heading - 3;
+	}
+
+	/**
+	 * Returns the Y component of a (not normalized) direction encoded by {@link #encodeHeading(double, double)}.
+	 * 
+	 * @param heading
+	 * @return
+	 */
+	public static float decodeHeadingY(float heading) 
+	{
+		if ( heading < 1 ) {
+			return heading;
+		}
+		if ( heading < 3 ) {
+			return 2 - heading;
+		}
+		return heading - 4;
+	}
+
+	/**
+	 * Adds the boid stored in a slot to the spatial index.
+	 * 
+	 * <p>This method is thread-safe as long as the slot's boid has been set by the
+	 * calling thread (or the caller otherwise made sure the slot's contents are visible).</p>
+	 * 
+	 * @param index slot index
+	 */
+	public void addToIndex(int index) 
+	{
+		if ( store != null ) {
+			return;
+		}
+
+		final Boid boid = allBoids[index];
+		final Vec2d loc = boid.getLocation();        
+		if ( arena != null ) {
+			tree.add( loc.x , loc.y , boid , index );
+		} else {
+			tree.add( loc.x , loc.y , boid );
+		}
+	}
+
+	/**
+	 * Adds all slots to the spatial index at once.
+	 * 
+	 * <p>Alternative to calling {@link #addToIndex(int)} for each slot , builds a balanced 
+	 * kd-tree in bulk (see {@link KDTree#build(double[], double[], Object[], int)}). All slots need to be populated 
+	 * before calling this method.</p>
+	 * <p>This method is <b>not</b> thread-safe.</p>
+	 */
+	public void buildIndex() 
+	{
+		if ( store != null ) {
+			return;
+		}
+
+		final int count = slotCount;
+		final double[] x = new double[ count ];
+		final double[] y = new double[ count ];
+		for ( int i = 0 ; i < count ; i++ ) 
+		{
+			final Vec2d loc = allBoids[i].getLocation();
+			x[i] = loc.x;
+			y[i] = loc.y;
+		}
+		tree.build( x , y , allBoids , count );
+	}
+
+	/**
+	 * Finishes populating a world created with {@link #World(SimulationParameters, int)}.
+	 * 
+	 * <p>Must be called after all slots have been populated (and 
+	 * in a way that makes all slots visible to the calling thread).</p>
+	 */
+	public void seal() 
+	{
+		this.size = slotCount;
+	}
+
+	/**
+	 * Returns the boid at a given index.
+	 * 
+	 * <p>Boids returned by {@link Simulation#advance()} keep their index across
+	 * simulation steps (unless the population size gets decreased to below their index).</p>
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public Boid getBoid(int index) 
+	{
+		if ( store != null ) {
+			return store.getBoid( index );
+		}
+		return allBoids[index];
+	}
+
 	public interface IBoidVisitor extends ValueVisitor<Boid>
 	{
 		public void visit(Boid boid);
 	}
 
+	/**
+	 * Visitor that receives a boid's location and velocity as primitive values.
+	 *
+	 * @author tobias.gierke@code-sourcery.de
+	 * @see World#visitAllBoids(IBoidStateVisitor)
+	 */
+	public interface IBoidStateVisitor
+	{
+		public void visit(double x,double y,double velocityX,double velocityY);
+	}
+
 	/**
 	 * Visits all boids in this simulation state.
 	 * 
@@ -80,8 +467,45 @@ public final class World
 	 */
 	public void visitAllBoids(IBoidVisitor visitor) 
 	{
-		for ( Boid b : allBoids ) {
-			visitor.visit( b );
+		final int len = size;
+		if ( store != null ) 
+		{
+			for ( int i = 0 ; i < len ; i++ ) {
+				visitor.visit( store.getBoid( i ) );
+			}
+			return;
+		}
+
+		final Boid[] boids = allBoids;
+		for ( int i = 0 ; i < len ; i++ ) {
+			visitor.visit( boids[i] );
+		}
+	}
+
+	/**
+	 * Visits the location and velocity of all boids in this simulation state.
+	 * 
+	 * <p>Reads off-heap worlds without creating any objects.</p>
+	 * 
+	 * @param visitor
+	 */
+	public void visitAllBoids(IBoidStateVisitor visitor) 
+	{
+		final int len = size;
+		if ( store != null ) 
+		{
+			final IBoidStore boids = store;
+			for ( int i = 0 ; i < len ; i++ ) {
+				visitor.visit( boids.getX( i ) , boids.getY( i ) , boids.getVelocityX( i ) , boids.getVelocityY( i ) );
+			}
+			return;
+		}
+
+		final Boid[] boids = allBoids;
+		for ( int i = 0 ; i < len ; i++ ) 
+		{
+			final Boid boid = boids[i];
+			visitor.visit( boid.location.x , boid.location.y , boid.velocity.x , boid.velocity.y );
 		}
 	}
 
@@ -94,17 +518,118 @@ public final class World
 	 */
 	public void visitBoids(double x , double y , double maxRadius,IBoidVisitor visitor) 
 	{
+		if ( store != null ) 
+		{
+			// no spatial index , only meant for debugging
+			final double radiusSquared = maxRadius*maxRadius;
+			for ( int i = 0 ; i < size ; i++ ) 
+			{
+				final double dx = store.getX( i ) - x;
+				final double dy = store.getY( i ) - y;
+				if ( dx*dx + dy*dy <= radiusSquared ) {
+					visitor.visit( store.getBoid( i ) );
+				}
+			}
+			return;
+		}
 		tree.visitApproxNearestNeighbours( x , y , maxRadius , 10 , visitor );
 	}
 
+	/**
+	 * Visits all boids within a given distance of a location.
+	 * 
+	 * <p>Unlike {@link #visitBoids(double, double, double, IBoidVisitor)} this method visits <b>every</b> boid 
+	 * inside the radius (worlds that keep their boids in an off-heap store have no spatial index and need to check every boid).</p>
+	 * 
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @param visitor
+	 */
+	public void visitBoidsInRadius(final double x , final double y , double radius,final IBoidVisitor visitor) 
+	{
+		final double radiusSquared = radius*radius;
+		if ( store != null ) 
+		{
+			for ( int i = 0 ; i < size ; i++ ) 
+			{
+				final double dx = store.getX( i ) - x;
+				final double dy = store.getY( i ) - y;
+				if ( dx*dx + dy*dy <= radiusSquared ) {
+					visitor.visit( store.getBoid( i ) );
+				}
+			}
+			return;
+		}
+
+		tree.visitRange( x - radius , y - radius , x + radius , y + radius , new IBoidVisitor() {
+
+			@Override
+			public void visit(Boid boid)
+			{
+				final double dx = boid.location.x - x;
+				final double dy = boid.location.y - y;
+				if ( dx*dx + dy*dy <= radiusSquared ) {
+					visitor.visit( boid );
+				}
+			}
+		});
+	}
+
+	/**
+	 * Visits all boids located inside a rectangle.
+	 * 
+	 * <p>Uses the kd-tree so the cost depends on the number of boids inside the rectangle (worlds that keep their boids
+	 * in an off-heap store have no spatial index and need to check every boid).</p>
+	 * 
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param visitor
+	 */
+	public void visitBoidsInRectangle(double minX,double minY,double maxX,double maxY,final IBoidStateVisitor visitor) 
+	{
+		if ( store != null ) 
+		{
+			final IBoidStore boids = store;
+			for ( int i = 0 ; i < size ; i++ ) 
+			{
+				final double x = boids.getX( i );
+				final double y = boids.getY( i );
+				if ( x >= minX && x <= maxX && y >= minY && y <= maxY ) {
+					visitor.visit( x , y , boids.getVelocityX( i ) , boids.getVelocityY( i ) );
+				}
+			}
+			return;
+		}
+
+		tree.visitRange( minX , minY , maxX , maxY , new IBoidVisitor() {
+
+			@Override
+			public void visit(Boid boid)
+			{
+				visitor.visit( boid.location.x , boid.location.y , boid.velocity.x , boid.velocity.y );
+			}
+		});
+	}
+
 	/**
 	 * Returns all boids in this simulation state.
 	 * 
-	 * @return
+	 * @return read-only list
 	 */
 	public List<Boid> getAllBoids()
 	{
-		return allBoids;
+		if ( store != null ) 
+		{
+			final List<Boid> result = new ArrayList<>( size );
+			for ( int i = 0 ; i < size ; i++ ) {
+				result.add( store.getBoid( i ) );
+			}
+			return Collections.unmodifiableList( result );
+		}
+		return Collections.unmodifiableList( Arrays.asList( allBoids ).subList( 0 , size ) );
 	} 
 
 	/**
@@ -113,7 +638,7 @@ public final class World
 	 * @return
 	 */
 	public int getPopulationCount() {
-		return this.allBoids.size();
+		return this.size;
 	}    
 
 	/**
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Random;
+
+/**
+ * Saves and loads {@link World}s (along with their {@link SimulationParameters}) using a compact binary format.
+ *
+ * <p>File layout (big-endian):</p>
+ * <pre>
+ * int    magic ({@link #MAGIC})
+ * int    format version ({@link #VERSION})
+ * int    population size
+ * double model max , max. steering force , max. speed , cohesion weight , separation weight , alignment weight ,
+ *        border force weight , separation radius , neighbour radius , border radius
+ * int    number of boids
+ * boids  {@link BoidStore#RECORD_SIZE} bytes per boid: x , y , velocity x , velocity y , acceleration x , acceleration y
+ * </pre>
+ * <p>Files are read and written through memory-mappings. Loading creates the world's spatial 
+ * index in bulk (see {@link World#buildIndex()}) , so restoring even large , converged worlds only takes seconds.</p>
+ * 
+ * <p>Run {@link #main(String[])} to create snapshots of converged worlds.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class WorldSnapshot
+{
+    // 'BOID'
+    public static final int MAGIC = 0x424f4944;
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 4 + 4 + 10 * 8 + 4;
+
+    // max. number of boids per mapped region
+    private static final int RECORDS_PER_REGION = 1 << 20;
+
+    private WorldSnapshot() {
+    }
+
+    /**
+     * Saves a world.
+     * 
+     * @param world
+     * @param file file to write , gets overwritten if it already exists
+     * @throws IOException
+     */
+    public static void save(World world,File file) throws IOException 
+    {
+        final SimulationParameters params = world.getSimulationParameters();
+        final int count = world.getPopulationCount();
+        final IBoidStore store = world.getBoidStore();
+
+        try ( RandomAccessFile out = new RandomAccessFile( file , "rw" ) ) 
+        {
+            final FileChannel channel = out.getChannel();
+            channel.truncate( 0 );
+
+            final MappedByteBuffer header = channel.map( MapMode.READ_WRITE , 0 , HEADER_SIZE );
+            header.putInt( MAGIC );
+            header.putInt( VERSION );
+            header.putInt( params.populationSize );
+            header.putDouble( params.modelMax );
+            header.putDouble( params.maxSteeringForce );
+            header.putDouble( params.maxSpeed );
+            header.putDouble( params.cohesionWeight );
+            header.putDouble( params.separationWeight );
+            header.putDouble( params.alignmentWeight );
+            header.putDouble( params.borderForceWeight );
+            header.putDouble( params.separationRadius );
+            header.putDouble( params.neighbourRadius );
+            header.putDouble( params.borderRadius );
+            header.putInt( count );
+
+            for ( int first = 0 ; first < count ; first += RECORDS_PER_REGION ) 
+            {
+                final int last = Math.min( count , first + RECORDS_PER_REGION );
+                final MappedByteBuffer region = channel.map( MapMode.READ_WRITE , HEADER_SIZE + (long) first * BoidStore.RECORD_SIZE , 
+                        (long) ( last - first ) * BoidStore.RECORD_SIZE );
+
+                for ( int i = first ; i < last ; i++ ) 
+                {
+                    if ( store != null ) 
+                    {
+                        region.putDouble( store.getX( i ) );
+                        region.putDouble( store.getY( i ) );
+                        region.putDouble( store.getVelocityX( i ) );
+                        region.putDouble( store.getVelocityY( i ) );
+                        region.putDouble( store.getAccelerationX( i ) );
+                        region.putDouble( store.getAccelerationY( i ) );
+                    } 
+                    else 
+                    {
+                        final Boid boid = world.getBoid( i );
+                        region.putDouble( boid.location.x );
+                        region.putDouble( boid.location.y );
+                        region.putDouble( boid.velocity.x );
+                        region.putDouble( boid.velocity.y );
+                        region.putDouble( boid.acceleration.x );
+                        region.putDouble( boid.acceleration.y );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a world.
+     * 
+     * <p>The world's population count is the number of boids stored in the file , which
+     * may differ from the population size of the stored simulation parameters.</p>
+     * 
+     * @param file
+     * @return
+     * @throws IOException if the file could not be read or is not a valid snapshot
+     */
+    public static World load(File file) throws IOException 
+    {
+        try ( RandomAccessFile in = new RandomAccessFile( file , "r" ) ) 
+        {
+            final FileChannel channel = in.getChannel();
+            if ( channel.size() < HEADER_SIZE ) {
+                throw new IOException("Not a snapshot file (too short): "+file);
+            }
+
+            final MappedByteBuffer header = channel.map( MapMode.READ_ONLY , 0 , HEADER_SIZE );
+            if ( header.getInt() != MAGIC ) {
+                throw new IOException("Not a snapshot file (bad magic): "+file);
+            }
+            final int version = header.getInt();
+            if ( version != VERSION ) {
+                throw new IOException("Unsupported snapshot version "+version+": "+file);
+            }
+
+            final SimulationParameters params = new SimulationParameters( header.getInt() , header.getDouble() , header.getDouble() , 
+                    header.getDouble() , header.getDouble() , header.getDouble() , header.getDouble() , header.getDouble() , 
+                    header.getDouble() , header.getDouble() , header.getDouble() );
+            final int count = header.getInt();
+
+            if ( count < 0 || channel.size() < HEADER_SIZE + (long) count * BoidStore.RECORD_SIZE ) {
+                throw new IOException("Snapshot file is truncated: "+file);
+            }
+
+            final World world = new World( params , count );
+            for ( int first = 0 ; first < count ; first += RECORDS_PER_REGION ) 
+            {
+                final int last = Math.min( count , first + RECORDS_PER_REGION );
+                final MappedByteBuffer region = channel.map( MapMode.READ_ONLY , HEADER_SIZE + (long) first * BoidStore.RECORD_SIZE , 
+                        (long) ( last - first ) * BoidStore.RECORD_SIZE );
+
+                for ( int i = first ; i < last ; i++ ) 
+                {
+                    final Vec2d location = new Vec2d( region.getDouble() , region.getDouble() );
+                    final Vec2d velocity = new Vec2d( region.getDouble() , region.getDouble() );
+                    final Vec2d acceleration = new Vec2d( region.getDouble() , region.getDouble() );
+                    world.set( i , new Boid( location , acceleration , velocity ) );
+                }
+            }
+            world.buildIndex();
+            world.seal();
+            return world;
+        }
+    }
+
+    /**
+     * Creates a snapshot of a converged world.
+     * 
+     * <p>Usage: <code>WorldSnapshot &lt;file&gt; [population size] [steps]</code></p>
+     * <p>Starts from a random world (with the model size scaled so boid density matches the 
+     * default parameters) , runs the given number of steps and saves the result.</p>
+     * 
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException 
+    {
+        if ( args.length < 1 ) {
+            System.err.println("Usage: WorldSnapshot <file> [population size] [steps]");
+            System.exit(1);
+        }
+
+        final File file = new File( args[0] );
+        final int populationSize = args.length > 1 ? Integer.parseInt( args[1] ) : 1000000;
+        final int steps = args.length > 2 ? Integer.parseInt( args[2] ) : 500;
+        if ( populationSize < 1 || steps < 0 ) {
+            System.err.println("Population size must be >= 1 and number of steps must be >= 0");
+            System.exit(1);
+        }
+
+        final SimulationParameters defaults = SimulationParameters.getDefaultParameters();
+        final double modelMax = defaults.modelMax * Math.sqrt( populationSize / (double) defaults.populationSize );
+        final SimulationParameters params = new SimulationParameters( populationSize , modelMax , defaults.maxSteeringForce , defaults.maxSpeed ,
+                defaults.cohesionWeight , defaults.separationWeight , defaults.alignmentWeight , defaults.borderForceWeight ,
+                defaults.separationRadius , defaults.neighbourRadius , defaults.borderRadius );
+
+        // saved as-is if no steps are to be run
+        World world = Simulation.createRandomWorld( params , new Random( System.currentTimeMillis() ) );
+        final Simulation simulation = new Simulation( world );
+        simulation.setFrameArena( new FrameArena( 2 ) );
+
+        for ( int i = 1 ; i <= steps ; i++ ) 
+        {
+            final World next = simulation.advance();
+            world.release();
+            world = next;
+            if ( ( i % 50 ) == 0 ) {
+                System.out.println("Step "+i+" of "+steps+": "+WorldStatistics.of( world ) );
+            }
+        }
+
+        long time = -System.currentTimeMillis();
+        try {
+            save( world , file );
+            time += System.currentTimeMillis();
+            System.out.println("Saved "+world.getPopulationCount()+" boids to "+file+" in "+time+" ms");
+        } finally {
+            world.release();
+        }
+
+        time = -System.currentTimeMillis();
+        final World loaded = load( file );
+        time += System.currentTimeMillis();
+        System.out.println("Loaded "+loaded.getPopulationCount()+" boids in "+time+" ms");
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import de.codesourcery.flocking.World.IBoidVisitor;
+
+/**
+ * Immutable summary metrics of a simulation state.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class WorldStatistics
+{
+    public final int populationCount;
+    
+    // average length of the boids' velocity vectors
+    public final double averageSpeed;
+    
+    // length of the average normalized velocity vector, 
+    // 1.0 = all boids are heading in the same direction , 0.0 = no alignment at all
+    public final double polarization;
+    
+    // average location of all boids
+    public final double centerX;
+    public final double centerY;
+
+    public WorldStatistics(int populationCount, double averageSpeed, double polarization, double centerX, double centerY)
+    {
+        this.populationCount = populationCount;
+        this.averageSpeed = averageSpeed;
+        this.polarization = polarization;
+        this.centerX = centerX;
+        this.centerY = centerY;
+    }
+
+    /**
+     * Calculates summary metrics for a given world.
+     * 
+     * @param world
+     * @return
+     */
+    public static WorldStatistics of(World world) 
+    {
+        final double[] sums = new double[5];
+        world.visitAllBoids( new IBoidVisitor() {
+
+            @Override
+            public void visit(Boid boid)
+            {
+                final double vx = boid.velocity.x;
+                final double vy = boid.velocity.y;
+                final double speed = Math.sqrt( vx*vx + vy*vy );
+                sums[0] += speed;
+                if ( speed > 0.00001 ) {
+                    sums[1] += vx / speed;
+                    sums[2] += vy / speed;
+                }
+                sums[3] += boid.location.x;
+                sums[4] += boid.location.y;
+            }
+        });
+
+        final int count = world.getPopulationCount();
+        if ( count == 0 ) {
+            return new WorldStatistics(0,0,0,0,0);
+        }
+        final double headingX = sums[1] / count;
+        final double headingY = sums[2] / count;
+        return new WorldStatistics( count , sums[0] / count , Math.sqrt( headingX*headingX + headingY*headingY ) , sums[3] / count , sums[4] / count );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "population="+populationCount+", avg_speed="+averageSpeed+", polarization="+polarization+", center=("+centerX+","+centerY+")";
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Receives worlds published by a {@link WorldStreamServer}.
+ *
+ * <p>A background thread receives and decodes frames , {@link #advance()} returns the most recent one so that 
+ * received worlds can be displayed using any {@link IRenderer}. Boids in received worlds have no acceleration.</p>
+ * 
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class WorldStreamClient implements ISimulation
+{
+    // max. time advance() waits for a new frame before returning the current one again
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    private final SocketChannel channel;
+
+    private final Thread receiverThread;
+
+    private final FrameArena frameArena = new FrameArena( 3 , FrameArena.Storage.OFF_HEAP );
+
+    private final Object LOCK = new Object();
+
+    // @GuardedBy( LOCK )
+    private World latestWorld;
+
+    // @GuardedBy( LOCK )
+    private long receivedCount;
+
+    // @GuardedBy( LOCK )
+    private long returnedCount;
+
+    // @GuardedBy( LOCK )
+    private IOException error;
+
+    private volatile boolean closed;
+
+    /**
+     * Connects to a server.
+     * 
+     * @param host
+     * @param port
+     * @throws IOException
+     */
+    public WorldStreamClient(String host,int port) throws IOException
+    {
+        channel = SocketChannel.open( new InetSocketAddress( host , port ) );
+        try 
+        {
+            channel.socket().setTcpNoDelay( true );
+            channel.socket().setReceiveBufferSize( 1024*1024 );
+
+            final ByteBuffer greeting = ByteBuffer.allocate( 8 );
+            readFully( greeting );
+            if ( greeting.getInt() != WorldStreamServer.MAGIC ) {
+                throw new IOException("Not a world stream server: "+host+":"+port);
+            }
+            final int version = greeting.getInt();
+            if ( version != WorldStreamServer.VERSION ) {
+                throw new IOException("Unsupported world stream version "+version+": "+host+":"+port);
+            }
+        } 
+        catch(IOException e) 
+        {
+            channel.close();
+            throw e;
+        }
+
+        receiverThread = new Thread( new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try {
+                    receiveLoop();
+                } 
+                catch (IOException e) 
+                {
+                    synchronized( LOCK ) 
+                    {
+                        if ( ! closed ) {
+                            error = e;
+                        }
+                        LOCK.notifyAll();
+                    }
+                }
+            }
+        }, "world-stream-client" );
+        receiverThread.setDaemon( true );
+        receiverThread.start();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException 
+    {
+        while ( buffer.hasRemaining() ) 
+        {
+            if ( channel.read( buffer ) == -1 ) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+        buffer.flip();
+    }
+
+    private void receiveLoop() throws IOException 
+    {
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate( 4 );
+        ByteBuffer buffer = ByteBuffer.allocateDirect( 64*1024 );
+
+        while ( ! closed ) 
+        {
+            lengthBuffer.clear();
+            readFully( lengthBuffer );
+            final int length = lengthBuffer.getInt();
+            if ( length < WorldStreamServer.FRAME_HEADER_SIZE ) {
+                throw new IOException("Corrupted frame (length "+length+")");
+            }
+
+            if ( buffer.capacity() < length ) {
+                buffer = ByteBuffer.allocateDirect( length );
+            }
+            buffer.clear().limit( length );
+            readFully( buffer );
+
+            final World world = decode( buffer );
+            synchronized( LOCK )
+            {
+                // close() may have released latestWorld while this frame was being decoded
+                if ( closed )
+                {
+                    world.release();
+                    return;
+                }
+                if ( latestWorld != null ) {
+                    latestWorld.release();
+                }
+                latestWorld = world;
+                receivedCount++;
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    private World decode(ByteBuffer buffer) throws IOException 
+    {
+        final int count = buffer.getInt();
+        if ( count < 0 || buffer.remaining() != WorldStreamServer.FRAME_HEADER_SIZE - 4 + count * WorldStreamServer.BYTES_PER_BOID ) {
+            throw new IOException("Corrupted frame (boid count "+count+")");
+        }
+
+        final SimulationParameters params = new SimulationParameters( buffer.getInt() , buffer.getDouble() , buffer.getDouble() , 
+                buffer.getDouble() , buffer.getDouble() , buffer.getDouble() , buffer.getDouble() , buffer.getDouble() , 
+                buffer.getDouble() , buffer.getDouble() , buffer.getDouble() );
+
+        final World world = frameArena.acquire( params , count );
+        final IBoidStore store = world.getBoidStore();
+
+        final double locationScale = params.modelMax / 65536;
+        final double velocityScale = params.maxSpeed / 127;
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final double x = ( ( buffer.getShort() & 0xffff ) + 0.5 ) * locationScale;
+            final double y = ( ( buffer.getShort() & 0xffff ) + 0.5 ) * locationScale;
+            final double velocityX = buffer.get() * velocityScale;
+            final double velocityY = buffer.get() * velocityScale;
+            store.set( i , x , y , velocityX , velocityY , 0 , 0 );
+        }
+        world.seal();
+        return world;
+    }
+
+    /**
+     * Returns the most recently received world.
+     * 
+     * <p>Blocks until a world has been received that has not been returned before , but 
+     * at most {@link #MAX_WAIT_MILLIS} (unless no world has been received at all yet).</p>
+     * 
+     * @throws RuntimeException if the connection to the server was lost
+     */
+    @Override
+    public World advance()
+    {
+        synchronized( LOCK ) 
+        {
+            final long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+            while ( error == null && ( latestWorld == null || ( receivedCount == returnedCount && System.currentTimeMillis() < deadline ) ) ) 
+            {
+                if ( closed ) {
+                    throw new IllegalStateException("Client has been closed");
+                }
+                try {
+                    LOCK.wait( latestWorld == null ? MAX_WAIT_MILLIS : Math.max( 1 , deadline - System.currentTimeMillis() ) );
+                } 
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException( e );
+                }
+            }
+            if ( error != null ) {
+                throw new RuntimeException("Connection to server lost",error);
+            }
+            returnedCount = receivedCount;
+            return latestWorld.retain();
+        }
+    }
+
+    /**
+     * Returns the number of frames received so far.
+     * 
+     * @return
+     */
+    public long getReceivedCount() 
+    {
+        synchronized( LOCK ) {
+            return receivedCount;
+        }
+    }
+
+    /**
+     * Does nothing , the simulation parameters are controlled by the server.
+     */
+    @Override
+    public void setSimulationParameters(SimulationParameters parameters)
+    {
+    }
+
+    /**
+     * Disconnects from the server.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException 
+    {
+        closed = true;
+        channel.close();
+        synchronized( LOCK ) 
+        {
+            if ( latestWorld != null ) {
+                latestWorld.release();
+                latestWorld = null;
+            }
+            LOCK.notifyAll();
+        }
+    }
+}
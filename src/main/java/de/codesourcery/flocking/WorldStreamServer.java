@@ -0,0 +1,511 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.flocking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes worlds to any number of remote viewers ({@link WorldStreamClient}) over TCP.
+ *
+ * <p>{@link #publish(World)} encodes a world into a compact frame (see below) on the calling thread
+ * and hands it to a network thread that writes it to all connected clients using non-blocking I/O. A client that 
+ * is still busy receiving an older frame skips all frames published in the meantime and gets 
+ * the latest one next , so slow clients never stall the simulation or other clients.</p>
+ *
+ * <p>Stream format (big-endian): on connect the server sends {@link #MAGIC} and {@link #VERSION} (two ints) , followed by frames:</p>
+ * <pre>
+ * int    number of bytes following
+ * int    number of boids
+ * int    population size + 10 doubles simulation parameters , see {@link WorldSnapshot}
+ * per boid: 
+ *   ushort x , ushort y    (location , quantized to 1/65536th of model size)
+ *   byte   vx , byte vy    (velocity , quantized to 1/127th of max. speed)
+ * </pre>
+ * 
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class WorldStreamServer
+{
+    // 'BSTR'
+    public static final int MAGIC = 0x42535452;
+
+    public static final int VERSION = 1;
+
+    public static final int DEFAULT_PORT = 4711;
+
+    public static final int BYTES_PER_BOID = 6;
+
+    // frame header size , excluding the length field
+    public static final int FRAME_HEADER_SIZE = 4 + 4 + 10 * 8;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread networkThread;
+
+    // most recently published frame
+    private final AtomicReference<Frame> latestFrame = new AtomicReference<>();
+
+    // frames that are no longer in use
+    private final AtomicReference<Frame> freeFrame = new AtomicReference<>();
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicInteger clientCount = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    // @GuardedBy( this )
+    private final Encoder encoder = new Encoder();
+
+    /**
+     * A reference-counted , encoded frame.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected final class Frame 
+    {
+        public ByteBuffer data;
+        public long sequence;
+        private final AtomicInteger referenceCount = new AtomicInteger();
+
+        public Frame(int capacity) {
+            data = ByteBuffer.allocateDirect( capacity );
+        }
+
+        public Frame retain() 
+        {
+            referenceCount.incrementAndGet();
+            return this;
+        }
+
+        public void release() 
+        {
+            if ( referenceCount.decrementAndGet() == 0 ) {
+                freeFrame.set( this );
+            }
+        }
+    }
+
+    // per-client state , only accessed by the network thread
+    protected static final class Client 
+    {
+        public final SocketChannel channel;
+        public final ByteBuffer greeting;
+
+        public Frame frame;
+        public ByteBuffer pending;
+        public long lastSequence = -1;
+
+        public Client(SocketChannel channel) 
+        {
+            this.channel = channel;
+            this.greeting = ByteBuffer.allocate( 8 );
+            this.greeting.putInt( MAGIC ).putInt( VERSION ).flip();
+            this.pending = greeting;
+        }
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param port port to listen on , 0 picks a free port
+     * @throws IOException
+     */
+    public WorldStreamServer(int port) throws IOException
+    {
+        serverChannel = ServerSocketChannel.open();
+        try 
+        {
+            serverChannel.bind( new InetSocketAddress( port ) );
+            serverChannel.configureBlocking( false );
+            selector = Selector.open();
+            serverChannel.register( selector , SelectionKey.OP_ACCEPT );
+        } 
+        catch(IOException e) 
+        {
+            serverChannel.close();
+            throw e;
+        }
+
+        networkThread = new Thread( new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try {
+                    networkLoop();
+                } 
+                catch (IOException | ClosedSelectorException e) 
+                {
+                    if ( ! closed ) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "world-stream-server" );
+        networkThread.setDaemon( true );
+        networkThread.start();
+    }
+
+    /**
+     * Returns the port this server listens on.
+     * 
+     * @return
+     */
+    public int getPort() 
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Encodes a world and sends it to all connected clients.
+     * 
+     * <p>Does not block , the caller keeps its reference to the world.</p>
+     * 
+     * @param world
+     */
+    public synchronized void publish(World world) 
+    {
+        if ( clientCount.get() == 0 ) {
+            return;
+        }
+
+        final int count = world.getPopulationCount();
+        final int size = 4 + FRAME_HEADER_SIZE + count * BYTES_PER_BOID;
+
+        Frame frame = freeFrame.getAndSet( null );
+        if ( frame == null || frame.data.capacity() < size ) {
+            frame = new Frame( size );
+        }
+        encode( world , frame.data );
+        frame.sequence = publishedCount.incrementAndGet();
+
+        final Frame previous = latestFrame.getAndSet( frame.retain() );
+        if ( previous != null ) {
+            previous.release();
+        }
+        selector.wakeup();
+    }
+
+    private void encode(World world,ByteBuffer buffer) 
+    {
+        final SimulationParameters params = world.getSimulationParameters();
+        final int count = world.getPopulationCount();
+
+        buffer.clear();
+        buffer.putInt( FRAME_HEADER_SIZE + count * BYTES_PER_BOID );
+        buffer.putInt( count );
+        buffer.putInt( params.populationSize );
+        buffer.putDouble( params.modelMax );
+        buffer.putDouble( params.maxSteeringForce );
+        buffer.putDouble( params.maxSpeed );
+        buffer.putDouble( params.cohesionWeight );
+        buffer.putDouble( params.separationWeight );
+        buffer.putDouble( params.alignmentWeight );
+        buffer.putDouble( params.borderForceWeight );
+        buffer.putDouble( params.separationRadius );
+        buffer.putDouble( params.neighbourRadius );
+        buffer.putDouble( params.borderRadius );
+
+        // encode into a heap array first , per-element puts into a direct buffer are a lot slower
+        encoder.encode( world , 65536 / params.modelMax , 127 / params.maxSpeed );
+        buffer.put( encoder.data , 0 , count * BYTES_PER_BOID );
+        buffer.flip();
+    }
+
+    // only used by threads calling publish()
+    protected static final class Encoder implements World.IBoidStateVisitor 
+    {
+        public byte[] data = new byte[0];
+        private int position;
+        private double locationScale;
+        private double velocityScale;
+
+        public void encode(World world,double locationScale,double velocityScale) 
+        {
+            final int size = world.getPopulationCount() * BYTES_PER_BOID;
+            if ( data.length < size ) {
+                data = new byte[ size ];
+            }
+            this.position = 0;
+            this.locationScale = locationScale;
+            this.velocityScale = velocityScale;
+            world.visitAllBoids( this );
+        }
+
+        @Override
+        public void visit(double x, double y, double velocityX, double velocityY)
+        {
+            final byte[] d = data;
+            int p = position;
+
+            final int qx = quantize( x * locationScale );
+            final int qy = quantize( y * locationScale );
+            d[p++] = (byte) ( qx >> 8 );
+            d[p++] = (byte) qx;
+            d[p++] = (byte) ( qy >> 8 );
+            d[p++] = (byte) qy;
+            // velocity is limited to max. speed
+            d[p++] = (byte) round( velocityX * velocityScale );
+            d[p++] = (byte) round( velocityY * velocityScale );
+            position = p;
+        }
+
+        // rounds values in [-127,127] , branch-free because signs are random
+        private static int round(double value) {
+            return (int) ( value + 128.5 ) - 128;
+        }
+    }
+
+    private static int quantize(double value) 
+    {
+        final int result = (int) value;
+        if ( result < 0 ) {
+            return 0;
+        }
+        return result < 65536 ? result : 65535;
+    }
+
+    private void networkLoop() throws IOException 
+    {
+        final ByteBuffer readBuffer = ByteBuffer.allocate( 1024 );
+        final List<Client> clients = new ArrayList<>();
+
+        while ( ! closed ) 
+        {
+            selector.select();
+
+            final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while ( it.hasNext() ) 
+            {
+                final SelectionKey key = it.next();
+                it.remove();
+
+                if ( ! key.isValid() ) {
+                    continue;
+                }
+
+                if ( key.isAcceptable() ) 
+                {
+                    final SocketChannel channel = serverChannel.accept();
+                    if ( channel != null ) 
+                    {
+                        channel.configureBlocking( false );
+                        channel.socket().setTcpNoDelay( true );
+                        final Client client = new Client( channel );
+                        channel.register( selector , SelectionKey.OP_READ | SelectionKey.OP_WRITE , client );
+                        clients.add( client );
+                        clientCount.incrementAndGet();
+                        System.out.println("Viewer connected: "+channel.getRemoteAddress() );
+                    }
+                    continue;
+                }
+
+                final Client client = (Client) key.attachment();
+                try 
+                {
+                    if ( key.isReadable() ) 
+                    {
+                        // clients never send anything , just detect disconnects
+                        readBuffer.clear();
+                        if ( client.channel.read( readBuffer ) == -1 ) {
+                            disconnect( client , key , clients );
+                            continue;
+                        }
+                    }
+                    if ( key.isWritable() ) {
+                        write( client , key );
+                    }
+                } 
+                catch(IOException e) {
+                    disconnect( client , key , clients );
+                }
+            }
+
+            // hand the latest frame to idle clients
+            for ( int i = 0 , len = clients.size() ; i < len ; i++ ) 
+            {
+                final Client client = clients.get(i);
+                final SelectionKey key = client.channel.keyFor( selector );
+                if ( client.pending == null && key != null && key.isValid() && nextFrame( client ) ) {
+                    key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+                }
+            }
+        }
+
+        for ( Client client : clients ) {
+            disconnect( client , client.channel.keyFor( selector ) , null );
+        }
+        Frame frame = latestFrame.getAndSet( null );
+        if ( frame != null ) {
+            frame.release();
+        }
+    }
+
+    private void write(Client client,SelectionKey key) throws IOException 
+    {
+        while ( client.pending != null ) 
+        {
+            client.channel.write( client.pending );
+            if ( client.pending.hasRemaining() ) {
+                return; // socket buffer full , wait for OP_WRITE
+            }
+
+            if ( client.frame != null ) {
+                client.frame.release();
+                client.frame = null;
+            }
+            client.pending = null;
+            nextFrame( client );
+        }
+        key.interestOps( SelectionKey.OP_READ );
+    }
+
+    // assigns the latest frame to a client , returns false if the client already received it
+    private boolean nextFrame(Client client) 
+    {
+        Frame frame;
+        do 
+        {
+            frame = latestFrame.get();
+            if ( frame == null || frame.sequence == client.lastSequence ) {
+                return false;
+            }
+        } 
+        while ( ! tryRetain( frame ) );
+
+        if ( client.lastSequence != -1 && frame.sequence > client.lastSequence+1 ) {
+            droppedCount.addAndGet( frame.sequence - client.lastSequence - 1 );
+        }
+        client.lastSequence = frame.sequence;
+        client.frame = frame;
+        client.pending = frame.data.duplicate();
+        return true;
+    }
+
+    // retains a frame unless it has already been released by the publisher
+    private boolean tryRetain(Frame frame) 
+    {
+        int count;
+        do {
+            count = frame.referenceCount.get();
+            if ( count == 0 ) {
+                return false;
+            }
+        } while ( ! frame.referenceCount.compareAndSet( count , count+1 ) );
+        return true;
+    }
+
+    private void disconnect(Client client,SelectionKey key,List<Client> clients) 
+    {
+        if ( key != null ) {
+            key.cancel();
+        }
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if ( client.frame != null ) {
+            client.frame.release();
+            client.frame = null;
+        }
+        if ( clients != null ) {
+            clients.remove( client );
+        }
+        clientCount.decrementAndGet();
+        System.out.println("Viewer disconnected.");
+    }
+
+    /**
+     * Stops the server and disconnects all clients.
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void close() throws IOException, InterruptedException 
+    {
+        closed = true;
+        selector.wakeup();
+        networkThread.join();
+        selector.close();
+        serverChannel.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "clients="+clientCount.get()+", frames published="+publishedCount.get()+", dropped (all clients)="+droppedCount.get();
+    }
+
+    /**
+     * Runs a headless simulation and publishes it.
+     * 
+     * <p>Usage: <code>WorldStreamServer [port] [population size]</code></p>
+     * 
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException 
+    {
+        final int port = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_PORT;
+        final SimulationParameters defaults = SimulationParameters.getDefaultParameters();
+        final int populationSize = args.length > 1 ? Integer.parseInt( args[1] ) : defaults.populationSize;
+        final double modelMax = defaults.modelMax * Math.sqrt( populationSize / (double) defaults.populationSize );
+        final SimulationParameters params = new SimulationParameters( populationSize , modelMax , defaults.maxSteeringForce , defaults.maxSpeed ,
+                defaults.cohesionWeight , defaults.separationWeight , defaults.alignmentWeight , defaults.borderForceWeight ,
+                defaults.separationRadius , defaults.neighbourRadius , defaults.borderRadius );
+
+        final WorldStreamServer server = new WorldStreamServer( port );
+        System.out.println("Publishing "+populationSize+" boids on port "+server.getPort());
+
+        final Simulation simulation = new Simulation( Simulation.createRandomWorld( params , new Random( System.currentTimeMillis() ) ) );
+        simulation.setFrameArena( new FrameArena( 2 ) );
+
+        long publishNanos = 0;
+        for ( long step = 1 ; ; step++ ) 
+        {
+            final World world = simulation.advance();
+            long time = -System.nanoTime();
+            server.publish( world );
+            time += System.nanoTime();
+            publishNanos += time;
+            world.release();
+
+            if ( ( step % 100 ) == 0 ) 
+            {
+                System.out.println("Avg. publish time: "+(publishNanos/100/1000)+" us ("+server+")");
+                publishNanos = 0;
+            }
+        }
+    }
+}